@@ -43,10 +43,12 @@ import com.sonicle.security.auth.directory.AbstractDirectory;
 import com.sonicle.webtop.core.app.CoreAdminManifest;
 import com.sonicle.webtop.core.app.RunContext;
 import com.sonicle.webtop.core.app.CoreManifest;
+import com.sonicle.webtop.core.app.IncomingShareIndex;
 import com.sonicle.webtop.core.app.OTPManager;
 import com.sonicle.webtop.core.app.ServiceManager;
 import com.sonicle.webtop.core.app.SessionManager;
 import com.sonicle.webtop.core.app.SettingsManager;
+import com.sonicle.webtop.core.app.SettingsSnapshot;
 import com.sonicle.webtop.core.app.WebTopManager;
 import com.sonicle.webtop.core.app.WT;
 import com.sonicle.webtop.core.app.WebTopApp;
@@ -90,7 +92,6 @@ import com.sonicle.webtop.core.dal.RolePermissionDAO;
 import com.sonicle.webtop.core.dal.ServiceStoreEntryDAO;
 import com.sonicle.webtop.core.dal.ShareDAO;
 import com.sonicle.webtop.core.dal.ShareDataDAO;
-import com.sonicle.webtop.core.dal.UserDAO;
 import com.sonicle.webtop.core.model.Activity;
 import com.sonicle.webtop.core.model.Causal;
 import com.sonicle.webtop.core.model.CausalExt;
@@ -109,14 +110,18 @@ import com.sonicle.webtop.core.util.ZPushManager;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import javax.mail.internet.InternetAddress;
 import org.apache.commons.lang3.StringUtils;
@@ -131,6 +136,10 @@ import org.slf4j.Logger;
  */
 public class CoreManager extends BaseManager {
 	private static final Logger logger = WT.getLogger(CoreManager.class);
+	private static final IncomingShareIndex incomingShareIndex = new IncomingShareIndex();
+	private static final String SQL_SELECT_INCOMING_ROOTS = "SELECT \"s\".\"share_id\", \"s\".\"user_uid\", \"u\".\"domain_id\", \"u\".\"user_id\", \"u\".\"display_name\" "
+			+ "FROM \"core\".\"shares\" AS \"s\" INNER JOIN \"core\".\"users\" AS \"u\" ON \"s\".\"user_uid\" = \"u\".\"user_uid\" "
+			+ "WHERE \"s\".\"service_id\" = ? AND \"s\".\"key\" = ? AND \"s\".\"instance\" = ? AND \"s\".\"user_uid\" = ANY(?)";
 	private WebTopApp wta = null;
 	
 	public static final String RECIPIENT_PROVIDER_AUTO_SOURCE_ID = "auto";
@@ -165,6 +174,11 @@ public class CoreManager extends BaseManager {
 		return wta.getOTPManager();
 	}
 	
+	public SessionManager getSessionManager() {
+		ensureCallerService(SERVICE_ID, "getSessionManager");
+		return wta.getSessionManager();
+	}
+	
 	public List<JsSimple> listThemes() throws WTException {
 		ArrayList<JsSimple> items = new ArrayList<>();
 		//TODO: gestire i temi dinamicamente
@@ -432,10 +446,18 @@ public class CoreManager extends BaseManager {
 			
 		} else {
 			ServiceManager svcm = wta.getServiceManager();
+			boolean impersonated = RunContext.isImpersonated();
+			ArrayList<String> candidates = new ArrayList<>();
+			ArrayList<RunContext.PermissionCheck> checks = new ArrayList<>();
 			for (String id : svcm.listRegisteredServices()) {
 				// We don't want to add admin service during impersonation
-				if (id.equals(CoreAdminManifest.ID) && RunContext.isImpersonated()) continue;
-				if (RunContext.isPermitted(SERVICE_ID, "SERVICE", "ACCESS", id)) ids.add(id);
+				if (id.equals(CoreAdminManifest.ID) && impersonated) continue;
+				candidates.add(id);
+				checks.add(new RunContext.PermissionCheck(SERVICE_ID, "SERVICE", "ACCESS", id));
+			}
+			boolean[] perms = RunContext.arePermitted(checks);
+			for (int i = 0; i < perms.length; i++) {
+				if (perms[i]) ids.add(candidates.get(i));
 			}
 		}
 		return ids;
@@ -489,8 +511,14 @@ public class CoreManager extends BaseManager {
 			ids.add(CoreAdminManifest.ID);
 		} else {
 			ServiceManager svcm = wta.getServiceManager();
-			for(String id : svcm.listRegisteredServices()) {
-				if(RunContext.isPermitted(SERVICE_ID, "SERVICE", "ACCESS", id)) ids.add(id);
+			List<String> candidates = svcm.listRegisteredServices();
+			ArrayList<RunContext.PermissionCheck> checks = new ArrayList<>(candidates.size());
+			for(String id : candidates) {
+				checks.add(new RunContext.PermissionCheck(SERVICE_ID, "SERVICE", "ACCESS", id));
+			}
+			boolean[] perms = RunContext.arePermitted(checks);
+			for(int i=0; i<perms.length; i++) {
+				if(perms[i]) ids.add(candidates.get(i));
 			}
 		}
 		return ids;
@@ -571,6 +599,25 @@ public class CoreManager extends BaseManager {
 		return setm.listProfilesWith(serviceId, key, value);
 	}
 	
+	public Map<UserProfileId, SettingsSnapshot> getUserSettingsSnapshots(Collection<UserProfileId> profileIds, String serviceId) throws WTException {
+		SettingsManager setm = wta.getSettingsManager();
+		return setm.getUserSettingsSnapshots(profileIds, serviceId, true);
+	}
+	
+	/**
+	 * Like {@link #getUserSettingsSnapshots(Collection, String)} but 
+	 * without adding loaded settings to the cache: intended for jobs 
+	 * scanning many profiles.
+	 * @param profileIds The profile IDs.
+	 * @param serviceId The service ID.
+	 * @return Snapshots mapped by profile.
+	 * @throws WTException If settings cannot be read.
+	 */
+	public Map<UserProfileId, SettingsSnapshot> getUncachedUserSettingsSnapshots(Collection<UserProfileId> profileIds, String serviceId) throws WTException {
+		SettingsManager setm = wta.getSettingsManager();
+		return setm.getUserSettingsSnapshots(profileIds, serviceId, false);
+	}
+	
 	public List<Activity> listAllLiveActivities() throws WTException {
 		ActivityDAO actDao = ActivityDAO.getInstance();
 		ArrayList<Activity> items = new ArrayList<>();
@@ -1181,10 +1228,13 @@ public class CoreManager extends BaseManager {
 	public List<IncomingShareRoot> listIncomingShareRoots(String serviceId, String groupName) throws WTException {
 		WebTopManager wtmgr = wta.getWebTopManager();
 		ShareDAO shadao = ShareDAO.getInstance();
-		UserDAO usedao = UserDAO.getInstance();
 		UserProfileId targetPid = getTargetProfileId();
+		long version = RunContext.getPermissionsVersion();
 		Connection con = null;
 		
+		List<IncomingShareRoot> cached = incomingShareIndex.getRoots(targetPid, version, serviceId, groupName);
+		if(cached != null) return cached;
+		
 		try {
 			String profileUid = wtmgr.userToUid(targetPid);
 			List<String> roleUids = wtmgr.getComputedRolesAsStringByUser(targetPid, true, true);
@@ -1204,20 +1254,21 @@ public class CoreManager extends BaseManager {
 			// get a list of unique uids (from shares table) that owns the share.
 			List<String> permissionKeys = Arrays.asList(rootPermissionKey, folderPermissionKey, elementsPermissionKey);
 			List<String> originUids = shadao.viewOriginByRoleServiceKey(con, roleUids, serviceId, folderKey, permissionKeys);
-			ArrayList<IncomingShareRoot> roots = new ArrayList<>();
+			ArrayList<String> uids = new ArrayList<>(originUids.size());
 			for(String uid : originUids) {
 				if(uid.equals(profileUid)) continue; // Skip self role
-				
-				// Foreach incoming uid we have to find the root share and then
-				// test if READ right is allowed
-				
-				OShare root = shadao.selectByUserServiceKeyInstance(con, uid, serviceId, rootKey, OShare.INSTANCE_ROOT);
-				if(root == null) continue;
-				OUser user = usedao.selectByUid(con, uid);
-				if(user == null) continue;
-				
-				roots.add(new IncomingShareRoot(root.getShareId().toString(), wtmgr.uidToUser(root.getUserUid()), user.getDisplayName()));
+				uids.add(uid);
+			}
+			
+			// Root shares and their owners are then resolved all together,
+			// keeping the order in which origins were returned.
+			HashMap<String, IncomingShareRoot> rootsByUid = selectIncomingShareRoots(con, serviceId, rootKey, uids);
+			ArrayList<IncomingShareRoot> roots = new ArrayList<>(rootsByUid.size());
+			for(String uid : uids) {
+				IncomingShareRoot root = rootsByUid.get(uid);
+				if(root != null) roots.add(root);
 			}
+			incomingShareIndex.putRoots(targetPid, version, serviceId, groupName, roots);
 			return roots;
 			
 		} catch(SQLException | DAOException ex) {
@@ -1227,6 +1278,30 @@ public class CoreManager extends BaseManager {
 		}
 	}
 	
+	private HashMap<String, IncomingShareRoot> selectIncomingShareRoots(Connection con, String serviceId, String rootKey, List<String> userUids) throws SQLException {
+		HashMap<String, IncomingShareRoot> roots = new HashMap<>();
+		if(userUids.isEmpty()) return roots;
+		
+		PreparedStatement stmt = null;
+		try {
+			stmt = con.prepareStatement(SQL_SELECT_INCOMING_ROOTS);
+			stmt.setString(1, serviceId);
+			stmt.setString(2, rootKey);
+			stmt.setString(3, OShare.INSTANCE_ROOT);
+			stmt.setArray(4, con.createArrayOf("varchar", userUids.toArray()));
+			ResultSet rs = stmt.executeQuery();
+			while(rs.next()) {
+				UserProfileId ownerPid = new UserProfileId(rs.getString(3), rs.getString(4));
+				roots.put(rs.getString(2), new IncomingShareRoot(String.valueOf(rs.getInt(1)), ownerPid, rs.getString(5)));
+			}
+			return roots;
+			
+		} finally {
+			// Closing the statement also closes its result set
+			if(stmt != null) try { stmt.close(); } catch(SQLException ex) { /* Do nothing... */ }
+		}
+	}
+	
 	/**
 	 * Lists incoming share folders (level 1, eg: Calendars, Categories, etc) 
 	 * for the targetProfile.
@@ -1237,8 +1312,13 @@ public class CoreManager extends BaseManager {
 	 */
 	public List<OShare> listIncomingShareFolders(String rootShareId, String groupName) throws WTException {
 		ShareDAO shadao = ShareDAO.getInstance();
+		UserProfileId targetPid = getTargetProfileId();
+		long version = RunContext.getPermissionsVersion();
 		Connection con = null;
 		
+		List<OShare> cached = incomingShareIndex.getFolders(targetPid, version, rootShareId, groupName);
+		if(cached != null) return cached;
+		
 		try {
 			con = WT.getCoreConnection();
 			
@@ -1250,11 +1330,15 @@ public class CoreManager extends BaseManager {
 			
 			ArrayList<OShare> folders = new ArrayList<>();
 			List<OShare> shares = shadao.selectByUserServiceKey(con, rootShare.getUserUid(), rootShare.getServiceId(), folderShareKey);
+			ArrayList<RunContext.PermissionCheck> checks = new ArrayList<>(shares.size());
 			for(OShare share : shares) {
-				if(RunContext.isPermitted(getTargetProfileId(), rootShare.getServiceId(), folderPermissionKey, ServicePermission.ACTION_READ, share.getShareId().toString())) {
-					folders.add(share);
-				}
+				checks.add(new RunContext.PermissionCheck(rootShare.getServiceId(), folderPermissionKey, ServicePermission.ACTION_READ, share.getShareId().toString()));
 			}
+			boolean[] perms = RunContext.arePermitted(targetPid, checks);
+			for(int i=0; i<perms.length; i++) {
+				if(perms[i]) folders.add(shares.get(i));
+			}
+			incomingShareIndex.putFolders(targetPid, version, rootShareId, groupName, folders);
 			return folders;
 			
 		} catch(SQLException | DAOException ex) {
@@ -1271,13 +1355,20 @@ public class CoreManager extends BaseManager {
 		Connection con = null;
 		
 		try {
-			String profileUid = usrm.userToUid(getTargetProfileId());
+			UserProfileId targetPid = getTargetProfileId();
+			long version = RunContext.getPermissionsVersion();
+			String profileUid = usrm.userToUid(targetPid);
 			con = WT.getCoreConnection();
 			
-			OShare share = shadao.selectById(con, Integer.valueOf(shareId));
-			if(share == null) throw new WTException("Unable to find share [{0}]", shareId);
-			if(!areActionsPermittedOnShare(share, ServiceSharePermission.TARGET_FOLDER, new String[]{ServicePermission.ACTION_READ})[0]) {
-				throw new WTException("Share not accessible [{0}]", shareId);
+			// Folders already listed as incoming are known to be readable
+			int id = Integer.valueOf(shareId);
+			if(!incomingShareIndex.isReadableFolder(targetPid, version, id)) {
+				OShare share = shadao.selectById(con, id);
+				if(share == null) throw new WTException("Unable to find share [{0}]", shareId);
+				if(!areActionsPermittedOnShare(share, ServiceSharePermission.TARGET_FOLDER, new String[]{ServicePermission.ACTION_READ})[0]) {
+					throw new WTException("Share not accessible [{0}]", shareId);
+				}
+				incomingShareIndex.putReadableFolder(targetPid, version, id);
 			}
 			
 			OShareData data = shddao.selectByShareUser(con, Integer.valueOf(shareId), profileUid);
@@ -1316,12 +1407,11 @@ public class CoreManager extends BaseManager {
 		String groupName = OShare.extractGroupNameFromKey(share.getKey());
 		String permKey = ServiceSharePermission.buildPermissionKey(permissionTarget, groupName);
 		
-		UserProfileId targetPid = getTargetProfileId();
-		boolean[] perms = new boolean[actions.length];
-		for(int i=0; i<actions.length; i++) {
-			perms[i] = RunContext.isPermitted(targetPid, share.getServiceId(), permKey, actions[i], instance);
+		ArrayList<RunContext.PermissionCheck> checks = new ArrayList<>(actions.length);
+		for(String action : actions) {
+			checks.add(new RunContext.PermissionCheck(share.getServiceId(), permKey, action, instance));
 		}
-		return perms;
+		return RunContext.arePermitted(getTargetProfileId(), checks);
 	}
 	
 	public boolean isShareRootPermitted(String shareId, String action) throws WTException {
@@ -1549,6 +1639,8 @@ public class CoreManager extends BaseManager {
 			}
 			
 			DbUtils.commitQuietly(con);
+			RunContext.invalidatePermissions();
+			incomingShareIndex.clear();
 			
 		} catch(SQLException | DAOException ex) {
 			DbUtils.rollbackQuietly(con);
@@ -1661,9 +1753,15 @@ public class CoreManager extends BaseManager {
 		//TODO: se admin allora targetprofileSenza problemi altrimenti controllo che corrisponda
 		UserProfileId pid = getTargetProfileId();
 		List<String> ids = svcm.listUserOptionServices();
+		ArrayList<RunContext.PermissionCheck> checks = new ArrayList<>(ids.size());
 		for(String id : ids) {
+			checks.add(new RunContext.PermissionCheck(SERVICE_ID, "SERVICE", "ACCESS", id));
+		}
+		boolean[] perms = RunContext.arePermitted(checks);
+		for(int i=0; i<perms.length; i++) {
+			String id = ids.get(i);
 			// Checks user rights on service...
-			if(RunContext.isPermitted(SERVICE_ID, "SERVICE", "ACCESS", id)) {
+			if(perms[i]) {
 				uos = new UserOptionsServiceData(svcm.getManifest(id));
 				uos.name = wta.lookupResource(id, getLocale(), CoreLocaleKey.SERVICE_NAME);
 				items.add(uos);
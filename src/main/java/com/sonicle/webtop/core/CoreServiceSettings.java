@@ -87,6 +87,30 @@ public class CoreServiceSettings extends BaseServiceSettings {
         return getInteger(SMTP_PORT, 25);
     }
 	
+	public int getSMTPPoolSize() {
+		return getInteger(SMTP_POOL_SIZE, 4);
+	}
+	
+	public long getSMTPPoolMaxIdle() {
+		return getLong(SMTP_POOL_MAXIDLE, (long)30000);
+	}
+	
+	public int getSMTPQueueSize() {
+		return getInteger(SMTP_QUEUE_SIZE, 10000);
+	}
+	
+	public int getSMTPQueueThreads() {
+		return getInteger(SMTP_QUEUE_THREADS, 2);
+	}
+	
+	public int getSMTPQueueMaxRetries() {
+		return getInteger(SMTP_QUEUE_MAXRETRIES, 5);
+	}
+	
+	public int getSMTPRateLimit() {
+		return getInteger(SMTP_RATELIMIT, 0);
+	}
+	
 	public String getXMPPHost() {
         return getString(XMPP_HOST, "localhost");
     }
@@ -119,6 +143,30 @@ public class CoreServiceSettings extends BaseServiceSettings {
 		return getBoolean(SYSLOG_ENABLED, false);
 	}
 	
+	public long getRemindersPollTimeout() {
+		return getLong(REMINDERS_POLL_TIMEOUT, (long)20000);
+	}
+	
+	public int getRemindersPollThreads() {
+		return getInteger(REMINDERS_POLL_THREADS, 4);
+	}
+	
+	public int getSysLogBufferSize() {
+		return getInteger(SYSLOG_BUFFER_SIZE, 10000);
+	}
+	
+	public int getSysLogBatchSize() {
+		return getInteger(SYSLOG_BATCH_SIZE, 200);
+	}
+	
+	public long getSysLogFlushInterval() {
+		return getLong(SYSLOG_FLUSH_INTERVAL, (long)2000);
+	}
+	
+	public String getSysLogOverflowPolicy() {
+		return getString(SYSLOG_OVERFLOW_POLICY, "spill");
+	}
+	
 	public Boolean getWhatsnewEnabled() {
 		return getBoolean(WHATSNEW_ENABLED, true);
 	}
@@ -180,6 +228,46 @@ public class CoreServiceSettings extends BaseServiceSettings {
 		}
 	}
 	
+	public long getUploadMaxFileSize() {
+		return getLong(UPLOAD_MAXFILESIZE, (long)-1);
+	}
+	
+	public int getUploadMaxConcurrent() {
+		return getInteger(UPLOAD_MAXCONCURRENT, 50);
+	}
+	
+	public long getTempDomainMaxSize() {
+		return getLong(TMP_DOMAIN_MAXSIZE, (long)-1);
+	}
+	
+	public long getTempSessionMaxSize() {
+		return getLong(TMP_SESSION_MAXSIZE, (long)-1);
+	}
+	
+	public int getTempMaxAge() {
+		return getInteger(TMP_MAXAGE, 0);
+	}
+	
+	public String getReportVirtualizer() {
+		return getString(REPORT_VIRTUALIZER, "none");
+	}
+	
+	public int getReportVirtualizerMaxSize() {
+		return getInteger(REPORT_VIRTUALIZER_MAXSIZE, 100);
+	}
+	
+	public int getReportJobsThreads() {
+		return getInteger(REPORT_JOBS_THREADS, 4);
+	}
+	
+	public int getReportJobsQueueSize() {
+		return getInteger(REPORT_JOBS_QUEUESIZE, 100);
+	}
+	
+	public int getReportJobsDomainMaxConcurrent() {
+		return getInteger(REPORT_JOBS_DOMAIN_MAXCONCURRENT, 2);
+	}
+	
 	public ServicesOrder getServicesOrder() {
 		ServicesOrder value = getObject(SERVICES_ORDER, null, ServicesOrder.class);
 		return (value != null) ? value : getDefaultServicesOrder();
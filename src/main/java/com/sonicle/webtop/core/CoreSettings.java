@@ -107,9 +107,75 @@ public class CoreSettings {
 	/**
 	 * [domain+system]
 	 * [long]
-	 * Maximum file size for uploads
+	 * Maximum file size for uploads (in bytes, -1 means unlimited)
 	 */
-	//public static final String UPLOAD_MAXFILESIZE = "upload.maxfilesize";/////////////////////////////////////////////////+default
+	public static final String UPLOAD_MAXFILESIZE = "upload.maxfilesize";
+	
+	/**
+	 * [domain+system]
+	 * [int]
+	 * Maximum number of uploads running at the same time in a domain (0 means unlimited)
+	 */
+	public static final String UPLOAD_MAXCONCURRENT = "upload.maxconcurrent";
+	
+	/**
+	 * [domain+system]
+	 * [long]
+	 * Maximum space (in bytes) that temp files can take in a domain (-1 means unlimited)
+	 */
+	public static final String TMP_DOMAIN_MAXSIZE = "tmp.domain.maxsize";
+	
+	/**
+	 * [domain+system]
+	 * [long]
+	 * Maximum space (in bytes) that temp files of a single session can take (-1 means unlimited)
+	 */
+	public static final String TMP_SESSION_MAXSIZE = "tmp.session.maxsize";
+	
+	/**
+	 * [system]
+	 * [int]
+	 * Age (in minutes) after which temp files not bound to a session 
+	 * (also the ones left by a previous run) are considered orphans and 
+	 * deleted (0 means never, default)
+	 */
+	public static final String TMP_MAXAGE = "tmp.maxage";
+	
+	/**
+	 * [system]
+	 * [enum {none, swap, gzip}]
+	 * Defines the virtualizer used to fill reports: swap keeps pages in a 
+	 * temp file, gzip keeps them compressed in memory
+	 */
+	public static final String REPORT_VIRTUALIZER = "report.virtualizer";
+	
+	/**
+	 * [system]
+	 * [int]
+	 * Defines the number of report pages kept in memory by the virtualizer
+	 */
+	public static final String REPORT_VIRTUALIZER_MAXSIZE = "report.virtualizer.maxsize";
+	
+	/**
+	 * [system]
+	 * [int]
+	 * Defines the number of threads rendering report jobs
+	 */
+	public static final String REPORT_JOBS_THREADS = "report.jobs.threads";
+	
+	/**
+	 * [system]
+	 * [int]
+	 * Defines the max number of report jobs waiting to be rendered
+	 */
+	public static final String REPORT_JOBS_QUEUESIZE = "report.jobs.queuesize";
+	
+	/**
+	 * [system]
+	 * [int]
+	 * Defines the max number of report jobs rendered concurrently for a domain
+	 */
+	public static final String REPORT_JOBS_DOMAIN_MAXCONCURRENT = "report.jobs.domain.maxconcurrent";
 	
 	/**
 	 * [domain+system]
@@ -125,6 +191,48 @@ public class CoreSettings {
 	 */
 	public static final String SMTP_PORT = "smtp.port";
 	
+	/**
+	 * [system]
+	 * [int]
+	 * Defines the max number of idle SMTP connections kept for each server
+	 */
+	public static final String SMTP_POOL_SIZE = "smtp.pool.size";
+	
+	/**
+	 * [system]
+	 * [long]
+	 * Defines the time (in millis) after which an idle SMTP connection is closed
+	 */
+	public static final String SMTP_POOL_MAXIDLE = "smtp.pool.maxidle";
+	
+	/**
+	 * [system]
+	 * [int]
+	 * Defines the max number of messages waiting in the outbound queue
+	 */
+	public static final String SMTP_QUEUE_SIZE = "smtp.queue.size";
+	
+	/**
+	 * [system]
+	 * [int]
+	 * Defines the number of threads delivering queued messages
+	 */
+	public static final String SMTP_QUEUE_THREADS = "smtp.queue.threads";
+	
+	/**
+	 * [system]
+	 * [int]
+	 * Defines how many times a failed queued message is retried
+	 */
+	public static final String SMTP_QUEUE_MAXRETRIES = "smtp.queue.maxretries";
+	
+	/**
+	 * [domain+system]
+	 * [int]
+	 * Defines the max number of queued messages sent per minute (0 = unlimited)
+	 */
+	public static final String SMTP_RATELIMIT = "smtp.ratelimit";
+	
 	/**
 	 * [domain+system]
 	 * [string]
@@ -153,6 +261,48 @@ public class CoreSettings {
 	 */
 	public static final String SYSLOG_ENABLED = "syslog.enabled";
 	
+	/**
+	 * [system]
+	 * [long]
+	 * Defines the max time (in millis) reminders job waits for a service
+	 */
+	public static final String REMINDERS_POLL_TIMEOUT = "reminders.poll.timeout";
+	
+	/**
+	 * [system]
+	 * [int]
+	 * Defines the number of threads used to collect services reminders
+	 */
+	public static final String REMINDERS_POLL_THREADS = "reminders.poll.threads";
+	
+	/**
+	 * [system]
+	 * [int]
+	 * Defines the max number of syslog records buffered in memory
+	 */
+	public static final String SYSLOG_BUFFER_SIZE = "syslog.buffer.size";
+	
+	/**
+	 * [system]
+	 * [int]
+	 * Defines the number of syslog records written in a single batch
+	 */
+	public static final String SYSLOG_BATCH_SIZE = "syslog.batch.size";
+	
+	/**
+	 * [system]
+	 * [long]
+	 * Defines the max time (in millis) a syslog record waits before being written
+	 */
+	public static final String SYSLOG_FLUSH_INTERVAL = "syslog.flush.interval";
+	
+	/**
+	 * [system]
+	 * [enum {block, drop, spill}]
+	 * Defines what to do when the syslog buffer is full
+	 */
+	public static final String SYSLOG_OVERFLOW_POLICY = "syslog.overflow.policy";
+	
 	/**
 	 * [system]
 	 * [string]
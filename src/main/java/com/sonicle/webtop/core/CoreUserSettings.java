@@ -38,6 +38,7 @@ import com.sonicle.commons.LangUtils;
 import static com.sonicle.webtop.core.CoreSettings.*;
 import com.sonicle.webtop.core.app.CoreManifest;
 import com.sonicle.webtop.core.app.SettingsManager;
+import com.sonicle.webtop.core.app.SettingsSnapshot;
 import com.sonicle.webtop.core.sdk.BaseUserSettings;
 import com.sonicle.webtop.core.sdk.UserProfileId;
 import com.sonicle.webtop.core.xmpp.PresenceStatus;
@@ -59,6 +60,11 @@ public class CoreUserSettings extends BaseUserSettings {
 		ss = new CoreServiceSettings(CoreManifest.ID, profileId.getDomainId());
 	}
 	
+	public CoreUserSettings(SettingsSnapshot snapshot) {
+		super(snapshot);
+		ss = new CoreServiceSettings(CoreManifest.ID, profileId.getDomainId());
+	}
+	
 	public String getTheme() {
 		String value = getString(THEME, null);
 		if(value != null) return value;
@@ -37,6 +37,8 @@ import com.sonicle.webtop.core.app.RunContext;
 import com.sonicle.webtop.core.app.CoreManifest;
 import com.sonicle.webtop.core.app.WT;
 import com.sonicle.webtop.core.app.ServiceManager;
+import com.sonicle.webtop.core.app.SettingsSnapshot;
+import com.sonicle.webtop.core.app.util.NamedThreadFactory;
 import com.sonicle.webtop.core.bol.OSnoozedReminder;
 import com.sonicle.webtop.core.bol.js.JsReminderInApp;
 import com.sonicle.webtop.core.bol.model.ReminderMessage;
@@ -56,10 +58,24 @@ import com.sonicle.webtop.core.util.NotificationHelper;
 import freemarker.template.TemplateException;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.mail.internet.InternetAddress;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.shiro.subject.Subject;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.Hours;
@@ -77,19 +93,73 @@ public class JobService extends BaseJobService {
 	private static final Logger logger = WT.getLogger(JobService.class);
 	CoreManager core = null;
 	List<String> sidHandlingReminders = null;
+	ExecutorService reminderPollers = null;
+	long reminderPollTimeout = 0;
+	final ConcurrentHashMap<String, Future<List<BaseReminder>>> pendingPolls = new ConcurrentHashMap<>();
+	final ConcurrentHashMap<String, PollStats> reminderPollStats = new ConcurrentHashMap<>();
+	final AtomicLong reminderMaxLag = new AtomicLong(0);
+	volatile long reminderLastLag = 0;
 	
 	@Override
 	public void initialize() throws Exception {
 		core = WT.getCoreManager();
 		sidHandlingReminders = core.getServiceManager().listServicesWhichControllerImplements(IControllerHandlesReminders.class);
+		CoreServiceSettings css = new CoreServiceSettings(CoreManifest.ID, "*");
+		reminderPollTimeout = Math.max(1000, css.getRemindersPollTimeout());
+		reminderPollers = Executors.newFixedThreadPool(Math.max(1, css.getRemindersPollThreads()), new NamedThreadFactory("webtop-reminders"));
 	}
 
 	@Override
 	public void cleanup() throws Exception {
+		if (reminderPollers != null) reminderPollers.shutdownNow();
+		reminderPollers = null;
+		pendingPolls.clear();
 		sidHandlingReminders = null;
 		core = null;
 	}
 	
+	/**
+	 * Returns reminders job metrics: lag of executions behind their schedule
+	 * and, for each service, reminders collection times.
+	 * @return Metrics as a readable string
+	 */
+	public String getReminderStats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("lastLagMs=").append(reminderLastLag).append(", maxLagMs=").append(reminderMaxLag.get());
+		for (Map.Entry<String, PollStats> entry : reminderPollStats.entrySet()) {
+			sb.append(", ").append(entry.getKey()).append("{").append(entry.getValue()).append("}");
+		}
+		return sb.toString();
+	}
+	
+	PollStats getPollStats(String serviceId) {
+		PollStats stats = reminderPollStats.get(serviceId);
+		if (stats == null) {
+			stats = new PollStats();
+			PollStats existing = reminderPollStats.putIfAbsent(serviceId, stats);
+			if (existing != null) stats = existing;
+		}
+		return stats;
+	}
+	
+	static class PollStats {
+		private volatile long lastTime = 0;
+		private volatile long maxTime = 0;
+		private final AtomicLong timeouts = new AtomicLong(0);
+		private final AtomicLong errors = new AtomicLong(0);
+		private final AtomicLong skipped = new AtomicLong(0);
+		
+		synchronized void update(long time) {
+			lastTime = time;
+			if (time > maxTime) maxTime = time;
+		}
+		
+		@Override
+		public String toString() {
+			return "lastMs=" + lastTime + ", maxMs=" + maxTime + ", timeouts=" + timeouts.get() + ", errors=" + errors.get() + ", skipped=" + skipped.get();
+		}
+	}
+	
 	@Override
 	public List<TaskDefinition> returnTasks() {
 		ArrayList<TaskDefinition> tasks = new ArrayList<>();
@@ -107,6 +177,12 @@ public class JobService extends BaseJobService {
 				.build();
 		tasks.add(new TaskDefinition(DevicesSyncCheckJob.class, syncTrigger));
 		
+		// Offline messages cleanup task
+		Trigger msgTrigger = TriggerBuilder.newTrigger()
+				.withSchedule(CronScheduleBuilder.cronSchedule("0 15 * * * ?")) // every hour at minute 15
+				.build();
+		tasks.add(new TaskDefinition(OfflineMessagesCleanupJob.class, msgTrigger));
+		
 		return tasks;
 	}
 	
@@ -122,22 +198,17 @@ public class JobService extends BaseJobService {
 		
 		@Override
 		public void executeWork() {
-			HashMap<UserProfileId, ArrayList<ServiceMessage>> byProfile = new HashMap<>();
+			LinkedHashMap<UserProfileId, ArrayList<ServiceMessage>> byProfile = new LinkedHashMap<>();
 			DateTime now = DateTime.now(DateTimeZone.UTC).withMillisOfSecond(0);
 			
-			logger.trace("ReminderJob started [{}]", now);
+			final long lag = Math.max(0, System.currentTimeMillis() - getScheduledFireTime().getTime());
+			jobService.reminderLastLag = lag;
+			if (lag > jobService.reminderMaxLag.get()) jobService.reminderMaxLag.set(lag);
+			logger.trace("ReminderJob started [{}, lag {} ms]", now, lag);
 			
 			try {
-				ArrayList<BaseReminder> alerts = new ArrayList<>();
+				ArrayList<BaseReminder> alerts = collectReminders(now);
 				
-				// Creates a controller instance for each service and calls it for reminders...
-				ServiceManager svcm = jobService.core.getServiceManager();
-				for(String sid : jobService.sidHandlingReminders) {
-					BaseController instance = svcm.getController(sid);
-					IControllerHandlesReminders controller = (IControllerHandlesReminders)instance;
-					alerts.addAll(controller.returnReminders(now));
-				}
-
 				// Process returned reminders...
 				if(alerts.isEmpty()) {
 					logger.trace("No alerts to process");
@@ -177,14 +248,96 @@ public class JobService extends BaseJobService {
 				logger.error("Unable to process snoozed reminders", ex);
 			}
 			
-			// Process messages...
-			for(UserProfileId pid : byProfile.keySet()) {
-				WT.notify(pid, byProfile.get(pid), true);
+			// Process messages: one batch for each profile...
+			for(Map.Entry<UserProfileId, ArrayList<ServiceMessage>> entry : byProfile.entrySet()) {
+				WT.notify(entry.getKey(), entry.getValue(), true);
 			}
 			
 			logger.trace("ReminderJob finished [{}]", now);
 		}
 		
+		/**
+		 * Polls services in parallel, waiting for each of them until the 
+		 * shared deadline. Services that did not answer in time are not 
+		 * polled again until their pending call completes: its result is 
+		 * collected by a following run, since returned reminders are already 
+		 * marked as handled by the service.
+		 */
+		private ArrayList<BaseReminder> collectReminders(final DateTime now) {
+			ArrayList<BaseReminder> alerts = new ArrayList<>();
+			final ServiceManager svcm = jobService.core.getServiceManager();
+			final Subject subject = jobService.getSubject();
+			
+			LinkedHashMap<String, Future<List<BaseReminder>>> futures = new LinkedHashMap<>();
+			for(final String sid : jobService.sidHandlingReminders) {
+				final Future<List<BaseReminder>> pending = jobService.pendingPolls.get(sid);
+				if(pending != null) {
+					if(!pending.isDone()) {
+						// Keeps waiting for the previous call, within this run's deadline
+						jobService.getPollStats(sid).skipped.incrementAndGet();
+						logger.warn("Previous reminders collection still running, waiting for it [{}]", sid);
+						futures.put(sid, pending);
+						continue;
+					}
+					collectResult(sid, pending, 0, alerts);
+				}
+				Callable<List<BaseReminder>> task = new Callable<List<BaseReminder>>() {
+					@Override
+					public List<BaseReminder> call() throws Exception {
+						final long start = System.currentTimeMillis();
+						try {
+							BaseController instance = svcm.getController(sid);
+							IControllerHandlesReminders controller = (IControllerHandlesReminders)instance;
+							return controller.returnReminders(now);
+						} finally {
+							jobService.getPollStats(sid).update(System.currentTimeMillis() - start);
+						}
+					}
+				};
+				FutureTask<List<BaseReminder>> future = new FutureTask<>(subject.associateWith(task));
+				if(jobService.pendingPolls.putIfAbsent(sid, future) != null) continue; // Claimed by a concurrent run
+				try {
+					jobService.reminderPollers.execute(future);
+					futures.put(sid, future);
+				} catch(RejectedExecutionException ex) {
+					jobService.pendingPolls.remove(sid, future);
+					logger.error("Unable to collect reminders [{}]", sid, ex);
+				}
+			}
+			
+			final long deadline = System.currentTimeMillis() + jobService.reminderPollTimeout;
+			for(Map.Entry<String, Future<List<BaseReminder>>> entry : futures.entrySet()) {
+				if(!collectResult(entry.getKey(), entry.getValue(), Math.max(0, deadline - System.currentTimeMillis()), alerts)) break;
+			}
+			return alerts;
+		}
+		
+		/**
+		 * Waits for a service call and adds its reminders to the list.
+		 * On timeout, the call is left pending for the next run. Reminders
+		 * are taken only by who removes the call from pending ones, so that
+		 * they are never processed twice.
+		 * @return False if the wait has been interrupted
+		 */
+		private boolean collectResult(String sid, Future<List<BaseReminder>> future, long timeout, List<BaseReminder> alerts) {
+			try {
+				List<BaseReminder> result = future.get(timeout, TimeUnit.MILLISECONDS);
+				if(jobService.pendingPolls.remove(sid, future) && (result != null)) alerts.addAll(result);
+				
+			} catch(TimeoutException ex) {
+				jobService.getPollStats(sid).timeouts.incrementAndGet();
+				logger.warn("Reminders collection timed-out, result will be collected later [{}]", sid);
+			} catch(ExecutionException | CancellationException ex) {
+				jobService.pendingPolls.remove(sid, future);
+				jobService.getPollStats(sid).errors.incrementAndGet();
+				logger.error("Unable to collect reminders [{}]", sid, (ex instanceof ExecutionException) ? ex.getCause() : ex);
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return true;
+		}
+		
 		private void sendEmail(ReminderEmail reminder) {
 			try {
 				UserProfile.Data ud = WT.getUserData(reminder.getProfileId());
@@ -192,7 +345,7 @@ public class JobService extends BaseJobService {
 				if (from == null) throw new WTException("Error building sender address");
 				InternetAddress to = ud.getEmail();
 				if (to == null) throw new WTException("Error building destination address");
-				WT.sendEmail(WT.getGlobalMailSession(reminder.getProfileId()), reminder.getRich(), from, to, reminder.getSubject(), reminder.getBody());
+				WT.queueEmail(reminder.getProfileId().getDomainId(), reminder.getRich(), from, to, reminder.getSubject(), reminder.getBody());
 				
 			} catch(Exception ex) {
 				logger.error("Unable to send email", ex);
@@ -200,7 +353,26 @@ public class JobService extends BaseJobService {
 		}
 	}
 	
+	public static class OfflineMessagesCleanupJob extends BaseJobServiceTask {
+		private JobService jobService = null;
+		
+		@Override
+		public void setJobService(BaseJobService jobService) {
+			// This method is automatically called by scheduler engine
+			// while instantiating this task.
+			this.jobService = (JobService)jobService;
+		}
+		
+		@Override
+		public void executeWork() {
+			logger.trace("OfflineMessagesCleanupJob started");
+			int deleted = jobService.core.getSessionManager().pruneExpiredMessages();
+			logger.trace("OfflineMessagesCleanupJob finished [{} deleted]", deleted);
+		}
+	}
+	
 	public static class DevicesSyncCheckJob extends BaseJobServiceTask {
+		private static final int SETTINGS_BATCH_SIZE = 200;
 		private JobService jobService = null;
 		
 		@Override
@@ -219,17 +391,27 @@ public class JobService extends BaseJobService {
 			try {
 				List<UserProfileId> pids = jobService.core.listProfilesWithSetting(jobService.SERVICE_ID, CoreSettings.DEVICES_SYNC_ALERT_ENABLED, true);
 				if(!pids.isEmpty()) devices = jobService.core.listZPushDevices();
-				for(UserProfileId pid : pids) {
-					// Skip profiles that don't have permission for syncing devices
-					if(!RunContext.isPermitted(pid, jobService.SERVICE_ID, "DEVICES_SYNC", "ACCESS")) continue;
-					
-					UserProfile.Data ud = WT.getUserData(pid);
-					// Skip profiles that cannot receive email alerts
-					if(ud.getEmail() == null) continue;
+				for(int i = 0; i < pids.size(); i += SETTINGS_BATCH_SIZE) {
+					LinkedHashMap<UserProfileId, UserProfile.Data> candidates = new LinkedHashMap<>();
+					for(UserProfileId pid : pids.subList(i, Math.min(i + SETTINGS_BATCH_SIZE, pids.size()))) {
+						// Skip profiles that don't have permission for syncing devices
+						if(!RunContext.isPermitted(pid, jobService.SERVICE_ID, "DEVICES_SYNC", "ACCESS")) continue;
+
+						UserProfile.Data ud = WT.getUserData(pid);
+						// Skip profiles that cannot receive email alerts
+						if((ud == null) || (ud.getEmail() == null)) continue;
+						candidates.put(pid, ud);
+					}
+					if(candidates.isEmpty()) continue;
 					
-					int daysTolerance = new CoreUserSettings(pid).getDevicesSyncAlertTolerance();
-					if(!checkSyncStatusForUser(devices, ud.getEmail().getAddress(), now, daysTolerance * 24)) {
-						sendEmail(pid, ud);
+					// Settings are read without filling the cache used by logged-in users
+					Map<UserProfileId, SettingsSnapshot> snapshots = jobService.core.getUncachedUserSettingsSnapshots(candidates.keySet(), CoreManifest.ID);
+					for(Map.Entry<UserProfileId, UserProfile.Data> entry : candidates.entrySet()) {
+						final UserProfile.Data ud = entry.getValue();
+						int daysTolerance = new CoreUserSettings(snapshots.get(entry.getKey())).getDevicesSyncAlertTolerance();
+						if(!checkSyncStatusForUser(devices, ud.getEmail().getAddress(), now, daysTolerance * 24)) {
+							sendEmail(entry.getKey(), ud);
+						}
 					}
 				}
 			} catch(WTException ex) {
@@ -190,13 +190,18 @@ public class Service extends BaseService {
 		
 		Principal principal = profile.getPrincipal();
 		if (!principal.isImpersonated()) {
-			ConversationHistory history = new ConversationHistory();
+			// Message IDs of group chats are loaded lazily, on first replayed message
+			ConversationHistory history = new ConversationHistory(new ConversationHistory.StanzaIdsProvider() {
+				@Override
+				public List<String> listStanzaIds(EntityBareJid chatJid) throws Exception {
+					return coreMgr.listIMMessageStanzaIDs(chatJid.toString());
+				}
+			});
 			for(IMChat chat : coreMgr.listIMChats(true)) {
 				if (!chat.getIsGroupChat()) {
 					history.addChat(createDirectChatRoom(chat));
 				} else {
-					final List<String> stanzaIDs = coreMgr.listIMMessageStanzaIDs(chat.getChatJid());
-					history.addChat(createGroupChatRoom(chat), stanzaIDs);
+					history.addChat(createGroupChatRoom(chat));
 				}
 			}
 			
@@ -36,6 +36,8 @@ package com.sonicle.webtop.core.app;
 import com.sonicle.commons.web.ServletUtils;
 import com.sonicle.commons.web.json.JsonResult;
 import com.sonicle.commons.web.json.MapItem;
+import com.sonicle.webtop.core.bol.js.JsReportJob;
+import com.sonicle.webtop.core.io.output.AbstractReport;
 import com.sonicle.webtop.core.sdk.UploadException;
 import com.sonicle.webtop.core.sdk.WTException;
 import com.sonicle.webtop.core.sdk.interfaces.IServiceUploadListener;
@@ -43,22 +45,21 @@ import com.sonicle.webtop.core.sdk.interfaces.IServiceUploadStreamListener;
 import com.sonicle.webtop.core.servlet.ServletHelper;
 import com.sonicle.webtop.core.util.IdentifierUtils;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.security.MessageDigest;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 
 /**
  *
@@ -183,47 +184,68 @@ public abstract class AbstractEnvironmentService<E extends AbstractEnvironment>
 				}
 				
 			} else {
+				UploadStreamer.Permit permit = null;
+				TempFileManager.Reservation reservation = null;
 				try {
 					MapItem data = new MapItem(); // Empty response data
 					IServiceUploadListener iupload = getUploadListener(cntx);
+					String domainId = getEnv().getSession().getProfileDomainId();
+					permit = UploadStreamer.acquire(domainId);
+					long maxSize = UploadStreamer.getMaxFileSize(domainId);
+					TempFileManager tmpMgr = WebTopApp.getInstance().getTempFileManager();
+					if(tmpMgr != null) {
+						// Declared length allows an early refusal, but it may be 
+						// missing or wrong: quotas are enforced while writing.
+						try {
+							tmpMgr.ensureQuota(domainId, getEnv().getSession().getId(), request.getContentLength());
+						} catch(WTException ex2) {
+							throw new UploadException(ex2.getMessage());
+						}
+						reservation = tmpMgr.reserve(domainId, getEnv().getSession().getId());
+					}
 					
-					// Defines the upload object
-					DiskFileItemFactory factory = new DiskFileItemFactory();
-					//TODO: valutare come imporre i limiti
-					//factory.setSizeThreshold(yourMaxMemorySize);
-					//factory.setRepository(yourTempDirectory);
-					upload = new ServletFileUpload(factory);
-					List<FileItem> files = upload.parseRequest(request);
+					// Defines the upload object: items are read while they 
+					// arrive, file content is written once into the temp folder.
+					upload = new ServletFileUpload();
+					FileItemIterator it = upload.getItemIterator(request);
 					
 					// Plupload component (client-side) will upload multiple file 
 					// each in its own request. So we can skip loop on files.
-					Iterator it = files.iterator();
 					while(it.hasNext()) {
-						FileItem fi = (FileItem)it.next();
+						FileItemStream fis = it.next();
 						
-						if(fi.isFormField()) {
+						if(fis.isFormField()) {
 							// Read multipart form params
 							InputStream is = null;
 							try {
-								is = fi.getInputStream();
-								String key = fi.getFieldName();
+								is = fis.openStream();
+								String key = fis.getFieldName();
 								String value = IOUtils.toString(is, "UTF-8");
 								multipartParams.put(key, value);
 							} finally {
 								IOUtils.closeQuietly(is);
 							}
 						} else {
-							// Writes content into a temp file
-							File file = WT.createTempFile();
-							fi.write(file);
-
-							// Creates uploaded object
-							uploadedFile = new WebTopSession.UploadedFile(false, service, file.getName(), tag, fi.getName(), fi.getSize(), findMediaType(fi));
-							getEnv().getSession().addUploadedFile(uploadedFile);
-
+							// Plupload sends chunking params before the file part
+							int chunks = NumberUtils.toInt(multipartParams.get("chunks"), 0);
+							if(chunks > 1) {
+								int chunk = NumberUtils.toInt(multipartParams.get("chunk"), 0);
+								String filename = StringUtils.defaultIfBlank(multipartParams.get("name"), fis.getName());
+								uploadedFile = writeUploadChunk(service, cntx, tag, filename, fis, chunk, chunks, maxSize, reservation);
+								if(!uploadedFile.isComplete()) {
+									// Listener will be notified when the last chunk arrives
+									data.add("uploadId", uploadedFile.getUploadId());
+									data.add("chunk", chunk);
+									continue;
+								}
+							} else {
+								uploadedFile = writeUploadFile(service, tag, fis, maxSize, reservation);
+							}
+							
 							// Fill response data
 							data.add("virtual", uploadedFile.isVirtual());
 							data.add("uploadId", uploadedFile.getUploadId());
+							data.add("checksum", uploadedFile.getChecksum());
 
 							// Handle listener (if present), its implementation can stop
 							// file upload throwing a UploadException.
@@ -241,6 +263,9 @@ public abstract class AbstractEnvironmentService<E extends AbstractEnvironment>
 					
 				} catch(UploadException ex1) {
 					new JsonResult(false, ex1.getMessage()).printTo(out);
+				} finally {
+					if(reservation != null) reservation.release();
+					if(permit != null) permit.release();
 				}
 			}
 			
@@ -250,6 +275,36 @@ public abstract class AbstractEnvironmentService<E extends AbstractEnvironment>
 		}
 	}
 	
+	/**
+	 * Returns the progress of a chunked upload, allowing clients to resume 
+	 * it from the first missing chunk.
+	 */
+	public void processUploadStatus(HttpServletRequest request, HttpServletResponse response, PrintWriter out) {
+		try {
+			String service = ServletUtils.getStringParameter(request, "service", true);
+			String cntx = ServletUtils.getStringParameter(request, "context", true);
+			String tag = ServletUtils.getStringParameter(request, "tag", null);
+			String name = ServletUtils.getStringParameter(request, "name", true);
+			
+			String chunkKey = buildChunkKey(service, cntx, tag, name);
+			WebTopSession.UploadedFile uploadedFile = getEnv().getSession().findChunkedUpload(chunkKey);
+			MapItem data = new MapItem();
+			if(uploadedFile != null) {
+				data.add("uploadId", uploadedFile.getUploadId());
+				data.add("chunk", uploadedFile.getChunking().received);
+				data.add("size", uploadedFile.getSize());
+			} else {
+				data.add("chunk", 0);
+				data.add("size", 0);
+			}
+			new JsonResult(data).printTo(out);
+			
+		} catch(Exception ex) {
+			WebTopApp.logger.error("Error in UploadStatus", ex);
+			new JsonResult(false, ex.getMessage()).printTo(out);
+		}
+	}
+	
 	public void processCleanupUploadedFiles(HttpServletRequest request, HttpServletResponse response, PrintWriter out) {
 		try {
 			String tag = ServletUtils.getStringParameter(request, "tag", true);
@@ -262,6 +317,76 @@ public abstract class AbstractEnvironmentService<E extends AbstractEnvironment>
 		}
 	}
 	
+	/**
+	 * Returns the status of a report job queued by this session.
+	 */
+	public void processGetReportJob(HttpServletRequest request, HttpServletResponse response, PrintWriter out) {
+		try {
+			String jobId = ServletUtils.getStringParameter(request, "jobId", true);
+			
+			ReportJobManager.Job job = WebTopApp.getInstance().getReportJobManager().getJob(jobId, getEnv().getSession().getId());
+			if (job == null) throw new WTException("Report job not found [{0}]", jobId);
+			new JsonResult(new JsReportJob(job)).printTo(out);
+			
+		} catch(Exception ex) {
+			WebTopApp.logger.error("Error in GetReportJob", ex);
+			new JsonResult(false, ex.getMessage()).printTo(out);
+		}
+	}
+	
+	/**
+	 * Streams the result of a completed report job queued by this session.
+	 */
+	public void processDownloadReportJob(HttpServletRequest request, HttpServletResponse response) {
+		FileInputStream fis = null;
+		try {
+			String jobId = ServletUtils.getStringParameter(request, "jobId", true);
+			
+			ReportJobManager rjm = WebTopApp.getInstance().getReportJobManager();
+			ReportJobManager.Job job = rjm.getJob(jobId, getEnv().getSession().getId());
+			File file = rjm.getJobResult(jobId, getEnv().getSession().getId());
+			String filename = job.getReportName() + "." + job.getOutputType().name().toLowerCase();
+			fis = new FileInputStream(file);
+			ServletUtils.setFileStreamHeadersForceDownload(response, filename);
+			IOUtils.copy(fis, response.getOutputStream());
+			
+		} catch(Exception ex) {
+			WebTopApp.logger.error("Error in DownloadReportJob", ex);
+			ServletUtils.writeError(response, HttpServletResponse.SC_NOT_FOUND);
+		} finally {
+			IOUtils.closeQuietly(fis);
+		}
+	}
+	
+	/**
+	 * Removes a report job queued by this session, deleting its result.
+	 */
+	public void processDeleteReportJob(HttpServletRequest request, HttpServletResponse response, PrintWriter out) {
+		try {
+			String jobId = ServletUtils.getStringParameter(request, "jobId", true);
+			
+			WebTopApp.getInstance().getReportJobManager().removeJob(jobId, getEnv().getSession().getId());
+			new JsonResult().printTo(out);
+			
+		} catch(Exception ex) {
+			WebTopApp.logger.error("Error in DeleteReportJob", ex);
+			new JsonResult(false, ex.getMessage()).printTo(out);
+		}
+	}
+	
+	/**
+	 * Queues a report for asynchronous rendering on behalf of this session.
+	 * A {@link com.sonicle.webtop.core.msg.ReportJobMessage} is pushed when
+	 * the result is available through DownloadReportJob action.
+	 * @param report The report to render.
+	 * @param outputType The desired output.
+	 * @return The queued job.
+	 * @throws WTException If the queue is full.
+	 */
+	public ReportJobManager.Job submitReportJob(AbstractReport report, AbstractReport.OutputType outputType) throws WTException {
+		return WT.submitReportJob(getEnv().getSession().getId(), report, outputType);
+	}
+	
 	public WebTopSession.UploadedFile addAsUploadedFile(String tag, String filename, String mediaType, InputStream is) throws IOException, WTException {
 		return addAsUploadedFile(SERVICE_ID, tag, filename, mediaType, is);
 	}
@@ -282,15 +407,76 @@ public abstract class AbstractEnvironmentService<E extends AbstractEnvironment>
 		return uploadedFile;
 	}
 	
-	private String findMediaType(FileItemStream fileItem) {
-		String mtype = ServletHelper.guessMediaType(fileItem.getName());
-		if(!StringUtils.isBlank(mtype)) return mtype;
-		mtype = fileItem.getContentType();
+	private WebTopSession.UploadedFile writeUploadFile(String service, String tag, FileItemStream fis, long maxSize, TempFileManager.Reservation reservation) throws IOException, WTException {
+		File file = WT.createTempFile();
+		MessageDigest digest = UploadStreamer.createDigest();
+		long size = -1;
+		InputStream is = null;
+		try {
+			is = fis.openStream();
+			size = UploadStreamer.write(is, file, 0, maxSize, reservation, digest);
+		} catch(IOException | UploadException ex) {
+			try {
+				WT.deleteTempFile(file);
+			} catch(WTException ex1) { /* Do nothing... */ }
+			throw ex;
+		} finally {
+			IOUtils.closeQuietly(is);
+			// Written bytes are accounted by tracking from now on
+			if(reservation != null) reservation.release();
+		}
+		
+		WebTopSession.UploadedFile uploadedFile = new WebTopSession.UploadedFile(false, service, file.getName(), tag, fis.getName(), size, findMediaType(fis));
+		uploadedFile.setChecksum(UploadStreamer.toHex(digest));
+		getEnv().getSession().addUploadedFile(uploadedFile);
+		return uploadedFile;
+	}
+	
+	private WebTopSession.UploadedFile writeUploadChunk(String service, String cntx, String tag, String filename, FileItemStream fis, int chunk, int chunks, long maxSize, TempFileManager.Reservation reservation) throws IOException, WTException {
+		WebTopSession session = getEnv().getSession();
+		String chunkKey = buildChunkKey(service, cntx, tag, filename);
+		
+		WebTopSession.UploadedFile uploadedFile = session.findChunkedUpload(chunkKey);
+		if((chunk == 0) && (uploadedFile != null) && (uploadedFile.getChunking().received > 1)) {
+			// Upload restarted from the beginning: discards previous data
+			session.removeUploadedFile(uploadedFile, true);
+			uploadedFile = null;
+		}
+		if(uploadedFile == null) {
+			if(chunk != 0) throw new UploadException("Upload not found for chunk [{0}]", chunk);
+			File file = WT.createTempFile();
+			uploadedFile = new WebTopSession.UploadedFile(false, service, file.getName(), tag, filename, 0, findMediaType(filename, fis));
+			uploadedFile.setChunking(new WebTopSession.UploadedFile.Chunking(chunkKey, chunks, UploadStreamer.createDigest()));
+			session.addUploadedFile(uploadedFile);
+		}
+		
+		InputStream is = null;
+		try {
+			is = fis.openStream();
+			UploadStreamer.writeChunk(uploadedFile, is, chunk, maxSize, reservation);
+			if(reservation != null) reservation.release();
+			session.trackUploadedFile(uploadedFile);
+		} catch(UploadException ex) {
+			// On I/O errors, instead, the entry is kept: the chunk can be sent again
+			session.removeUploadedFile(uploadedFile, true);
+			throw ex;
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+		return uploadedFile;
+	}
+	
+	private String buildChunkKey(String service, String context, String tag, String filename) {
+		return service + "|" + context + "|" + StringUtils.defaultString(tag) + "|" + filename;
+	}
+	
+	private String findMediaType(String filename, FileItemStream fileItem) {
+		String mtype = ServletHelper.guessMediaType(filename);
 		if(!StringUtils.isBlank(mtype)) return mtype;
-		return "application/octet-stream";
+		return findMediaType(fileItem);
 	}
 	
-	private String findMediaType(FileItem fileItem) {
+	private String findMediaType(FileItemStream fileItem) {
 		String mtype = ServletHelper.guessMediaType(fileItem.getName());
 		if(!StringUtils.isBlank(mtype)) return mtype;
 		mtype = fileItem.getContentType();
@@ -0,0 +1,394 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+package com.sonicle.webtop.core.app;
+
+import com.google.gson.JsonParseException;
+import com.sonicle.commons.db.DbUtils;
+import com.sonicle.commons.web.json.JsonResult;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+
+/**
+ * Asynchronous writer of audit (syslog) records.
+ * Records are put into a bounded buffer and written by a background thread
+ * using JDBC batches, flushed when the batch is full or when the oldest 
+ * buffered record exceeds the flush interval. When the buffer is full the
+ * configured {@link OverflowPolicy} applies; records spilled to the local
+ * file (also those of failed batches) are written back, a batch at a time,
+ * while the buffer is empty.
+ * 
+ * @author malbinola
+ */
+public class AuditLogWriter {
+	private static final Logger logger = WT.getLogger(AuditLogWriter.class);
+	private static final String SQL_INSERT = "INSERT INTO \"core\".\"syslog\" (\"timestamp\", \"domain_id\", \"user_id\", \"service_id\", \"action\", \"sw_name\", \"ip_address\", \"user_agent\", \"session_id\", \"data\") "
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final long DRAIN_TIMEOUT = 10000;
+	
+	private final ArrayBlockingQueue<Record> buffer;
+	private final int batchSize;
+	private final long flushInterval;
+	private final OverflowPolicy overflowPolicy;
+	private final File spillFile;
+	private final Object spillLock = new Object();
+	private final Thread writer;
+	private volatile boolean running = true;
+	private final AtomicLong written = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private final AtomicLong spilled = new AtomicLong(0);
+	private final AtomicLong flushes = new AtomicLong(0);
+	private final AtomicLong flushTimeTotal = new AtomicLong(0);
+	private volatile long lastFlushTime = 0;
+	private volatile long maxFlushTime = 0;
+	private long replayOffset = -1; // Accessed by writer thread only
+	
+	/**
+	 * @param capacity Maximum number of buffered records.
+	 * @param batchSize Number of records that trigger a flush.
+	 * @param flushInterval Max time (ms) a record can wait in buffer.
+	 * @param overflowPolicy What to do when buffer is full.
+	 * @param spillFile File where records are spilled.
+	 */
+	public AuditLogWriter(int capacity, int batchSize, long flushInterval, OverflowPolicy overflowPolicy, File spillFile) {
+		this.buffer = new ArrayBlockingQueue<>(Math.max(1, capacity));
+		this.batchSize = Math.max(1, batchSize);
+		this.flushInterval = Math.max(1, flushInterval);
+		this.overflowPolicy = overflowPolicy;
+		this.spillFile = spillFile;
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "webtop-auditlog");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+	
+	/**
+	 * Stops the writer, waiting for buffered records to be written.
+	 * Records that cannot be written in time are spilled to file.
+	 */
+	public void shutdown() {
+		running = false;
+		writer.interrupt();
+		try {
+			writer.join(DRAIN_TIMEOUT);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		ArrayList<Record> remaining = new ArrayList<>();
+		buffer.drainTo(remaining);
+		if (!remaining.isEmpty()) spill(remaining);
+	}
+	
+	/**
+	 * Adds a record to the buffer, applying overflow policy if it is full.
+	 * @param record The record to write.
+	 * @return True if the record was accepted (buffered or spilled).
+	 */
+	public boolean write(Record record) {
+		if (buffer.offer(record)) return true;
+		switch(overflowPolicy) {
+			case BLOCK:
+				try {
+					buffer.put(record);
+					return true;
+				} catch(InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					dropped.incrementAndGet();
+					return false;
+				}
+			case SPILL:
+				return spill(Collections.singletonList(record));
+			default:
+				dropped.incrementAndGet();
+				return false;
+		}
+	}
+	
+	public int getBufferDepth() {
+		return buffer.size();
+	}
+	
+	public int getBufferCapacity() {
+		return buffer.size() + buffer.remainingCapacity();
+	}
+	
+	public String getStats() {
+		final long count = flushes.get();
+		return "depth=" + getBufferDepth() + "/" + getBufferCapacity() + ", written=" + written.get() + ", dropped=" + dropped.get() + ", spilled=" + spilled.get()
+				+ ", flushes=" + count + ", lastFlushMs=" + lastFlushTime + ", avgFlushMs=" + ((count > 0) ? flushTimeTotal.get() / count : 0) + ", maxFlushMs=" + maxFlushTime;
+	}
+	
+	private void writeLoop() {
+		final ArrayList<Record> batch = new ArrayList<>(batchSize);
+		boolean replayPending = false;
+		while (running || !buffer.isEmpty()) {
+			try {
+				// While replaying, new records are checked between replayed batches
+				Record first = buffer.poll(replayPending ? 0 : flushInterval, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					final long deadline = System.currentTimeMillis() + flushInterval;
+					while (batch.size() < batchSize) {
+						long wait = deadline - System.currentTimeMillis();
+						if (wait <= 0) break;
+						Record next = buffer.poll(wait, TimeUnit.MILLISECONDS);
+						if (next == null) break;
+						batch.add(next);
+					}
+					flush(batch);
+					batch.clear();
+				} else {
+					replayPending = replaySpilled();
+				}
+			} catch(InterruptedException ex) {
+				// Shutdown requested: flush what we have and drain the buffer
+				buffer.drainTo(batch);
+				if (!batch.isEmpty()) flush(batch);
+				batch.clear();
+			} catch(Throwable t) {
+				logger.error("Unexpected error writing audit records", t);
+			}
+		}
+	}
+	
+	private void flush(List<Record> batch) {
+		final long start = System.currentTimeMillis();
+		try {
+			insert(batch);
+			written.addAndGet(batch.size());
+		} catch(SQLException ex) {
+			logger.error("Unable to write audit records [{}]", batch.size(), ex);
+			if (overflowPolicy == OverflowPolicy.SPILL) {
+				spill(batch);
+			} else {
+				dropped.addAndGet(batch.size());
+			}
+		} finally {
+			final long elapsed = System.currentTimeMillis() - start;
+			lastFlushTime = elapsed;
+			if (elapsed > maxFlushTime) maxFlushTime = elapsed;
+			flushTimeTotal.addAndGet(elapsed);
+			flushes.incrementAndGet();
+		}
+	}
+	
+	private void insert(List<Record> batch) throws SQLException {
+		Connection con = null;
+		PreparedStatement stmt = null;
+		try {
+			con = WT.getCoreConnection(false);
+			stmt = con.prepareStatement(SQL_INSERT);
+			for (Record rec : batch) {
+				stmt.setTimestamp(1, new Timestamp(rec.timestamp));
+				stmt.setString(2, rec.domainId);
+				stmt.setString(3, rec.userId);
+				stmt.setString(4, rec.serviceId);
+				stmt.setString(5, rec.action);
+				stmt.setString(6, rec.swName);
+				stmt.setString(7, rec.ipAddress);
+				stmt.setString(8, rec.userAgent);
+				stmt.setString(9, rec.sessionId);
+				stmt.setString(10, rec.data);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+			DbUtils.commitQuietly(con);
+			
+		} catch(SQLException ex) {
+			DbUtils.rollbackQuietly(con);
+			throw ex;
+		} finally {
+			if (stmt != null) try { stmt.close(); } catch(SQLException ex) { /* Do nothing... */ }
+			DbUtils.closeQuietly(con);
+		}
+	}
+	
+	private boolean spill(List<Record> records) {
+		if (spillFile == null) {
+			dropped.addAndGet(records.size());
+			return false;
+		}
+		synchronized(spillLock) {
+			BufferedWriter bw = null;
+			try {
+				bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spillFile, true), "UTF-8"));
+				for (Record rec : records) {
+					bw.write(JsonResult.gson.toJson(rec));
+					bw.newLine();
+				}
+				spilled.addAndGet(records.size());
+				return true;
+			} catch(IOException ex) {
+				logger.error("Unable to spill audit records [{}]", records.size(), ex);
+				dropped.addAndGet(records.size());
+				return false;
+			} finally {
+				IOUtils.closeQuietly(bw);
+			}
+		}
+	}
+	
+	/**
+	 * Writes back one batch of spilled records.
+	 * Progress is saved after each batch, so a failure (or a restart) 
+	 * never writes again records already committed; lines that cannot 
+	 * be parsed are skipped.
+	 * @return True if there are more spilled records to write back.
+	 */
+	private boolean replaySpilled() {
+		if (spillFile == null) return false;
+		final File replayFile = new File(spillFile.getPath() + ".replay");
+		final File offsetFile = new File(replayFile.getPath() + ".offset");
+		synchronized(spillLock) {
+			if (!replayFile.exists()) {
+				if (!spillFile.exists() || !spillFile.renameTo(replayFile)) return false;
+				offsetFile.delete();
+				replayOffset = 0;
+			}
+		}
+		if (replayOffset < 0) replayOffset = readReplayOffset(offsetFile);
+		
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(replayFile);
+			fis.getChannel().position(replayOffset);
+			final InputStream is = new BufferedInputStream(fis);
+			final ByteArrayOutputStream line = new ByteArrayOutputStream();
+			final ArrayList<Record> batch = new ArrayList<>(batchSize);
+			long offset = replayOffset;
+			boolean eof = false;
+			while (!eof && (batch.size() < batchSize)) {
+				line.reset();
+				int b;
+				while (((b = is.read()) != -1) && (b != '\n')) line.write(b);
+				eof = (b == -1);
+				offset += line.size() + (eof ? 0 : 1);
+				Record rec = parseRecord(line.toString("UTF-8"));
+				if (rec != null) batch.add(rec);
+			}
+			if (!batch.isEmpty()) {
+				insert(batch);
+				written.addAndGet(batch.size());
+			}
+			if (eof) {
+				IOUtils.closeQuietly(fis);
+				replayFile.delete();
+				offsetFile.delete();
+				replayOffset = -1;
+				return false;
+			} else {
+				replayOffset = offset;
+				FileUtils.writeStringToFile(offsetFile, String.valueOf(offset), "UTF-8");
+				return true;
+			}
+			
+		} catch(IOException | SQLException ex) {
+			// Replay will be retried from the last saved offset
+			logger.warn("Unable to replay spilled audit records", ex);
+			return false;
+		} finally {
+			IOUtils.closeQuietly(fis);
+		}
+	}
+	
+	private Record parseRecord(String line) {
+		if (StringUtils.isBlank(line)) return null;
+		try {
+			return JsonResult.gson.fromJson(line, Record.class);
+		} catch(JsonParseException ex) {
+			logger.warn("Skipping malformed spilled audit record [{}]", StringUtils.abbreviate(line, 200), ex);
+			dropped.incrementAndGet();
+			return null;
+		}
+	}
+	
+	private long readReplayOffset(File offsetFile) {
+		if (!offsetFile.exists()) return 0;
+		try {
+			return Math.max(0, NumberUtils.toLong(StringUtils.trim(FileUtils.readFileToString(offsetFile, "UTF-8")), 0));
+		} catch(IOException ex) {
+			logger.warn("Unable to read replay offset, starting from the beginning", ex);
+			return 0;
+		}
+	}
+	
+	public static enum OverflowPolicy {
+		BLOCK, DROP, SPILL;
+		
+		public static OverflowPolicy parse(String value) {
+			for (OverflowPolicy policy : values()) {
+				if (policy.name().equalsIgnoreCase(value)) return policy;
+			}
+			return SPILL;
+		}
+	}
+	
+	public static class Record {
+		public long timestamp;
+		public String domainId;
+		public String userId;
+		public String serviceId;
+		public String action;
+		public String swName;
+		public String ipAddress;
+		public String userAgent;
+		public String sessionId;
+		public String data;
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+package com.sonicle.webtop.core.app;
+
+import com.sonicle.webtop.core.bol.OShare;
+import com.sonicle.webtop.core.model.IncomingShareRoot;
+import com.sonicle.webtop.core.sdk.UserProfileId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-profile index of incoming shares: roots (by service and group), 
+ * readable folders (by root) and the readable folders set itself.
+ * Every entry is tagged with the permission version (see 
+ * {@link RunContext#getPermissionsVersion()}) seen when the entry was built:
+ * any change to grants invalidates the whole index without further bookkeeping.
+ * 
+ * @author malbinola
+ */
+public class IncomingShareIndex {
+	private static final int MAX_PROFILES = 5000;
+	
+	private final ConcurrentHashMap<UserProfileId, ProfileShares> profiles = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	
+	public List<IncomingShareRoot> getRoots(UserProfileId profileId, long version, String serviceId, String groupName) {
+		return copyOf(count(getProfile(profileId, version).roots.get(rootsKey(serviceId, groupName))));
+	}
+	
+	public void putRoots(UserProfileId profileId, long version, String serviceId, String groupName, List<IncomingShareRoot> roots) {
+		if (version != RunContext.getPermissionsVersion()) return;
+		getProfile(profileId, version).roots.put(rootsKey(serviceId, groupName), copyOf(roots));
+	}
+	
+	public List<OShare> getFolders(UserProfileId profileId, long version, String rootShareId, String groupName) {
+		return copyOf(count(getProfile(profileId, version).folders.get(foldersKey(rootShareId, groupName))));
+	}
+	
+	public void putFolders(UserProfileId profileId, long version, String rootShareId, String groupName, List<OShare> folders) {
+		if (version != RunContext.getPermissionsVersion()) return;
+		ProfileShares shares = getProfile(profileId, version);
+		shares.folders.put(foldersKey(rootShareId, groupName), copyOf(folders));
+		for (OShare folder : folders) {
+			shares.readableFolders.put(folder.getShareId(), Boolean.TRUE);
+		}
+	}
+	
+	/**
+	 * Checks if specified folder share is known to be readable by the profile.
+	 * A negative answer means that the information is not in the index.
+	 * @param profileId The profile ID.
+	 * @param version Current permission version.
+	 * @param shareId The folder share ID.
+	 * @return True if readable, false if unknown.
+	 */
+	public boolean isReadableFolder(UserProfileId profileId, long version, int shareId) {
+		return count(getProfile(profileId, version).readableFolders.get(shareId)) != null;
+	}
+	
+	public void putReadableFolder(UserProfileId profileId, long version, int shareId) {
+		if (version != RunContext.getPermissionsVersion()) return;
+		getProfile(profileId, version).readableFolders.put(shareId, Boolean.TRUE);
+	}
+	
+	public void clear() {
+		profiles.clear();
+	}
+	
+	public String getStats() {
+		return "profiles=" + profiles.size() + ", hits=" + hits.get() + ", misses=" + misses.get();
+	}
+	
+	private ProfileShares getProfile(UserProfileId profileId, long version) {
+		ProfileShares shares = profiles.get(profileId);
+		if ((shares == null) || (shares.version != version)) {
+			if (profiles.size() >= MAX_PROFILES) profiles.clear();
+			shares = new ProfileShares(version);
+			profiles.put(profileId, shares);
+		}
+		return shares;
+	}
+	
+	private <T> T count(T value) {
+		if (value != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return value;
+	}
+	
+	private static <T> List<T> copyOf(List<T> list) {
+		return (list == null) ? null : new ArrayList<>(list);
+	}
+	
+	private static String rootsKey(String serviceId, String groupName) {
+		return serviceId + "|" + groupName;
+	}
+	
+	private static String foldersKey(String rootShareId, String groupName) {
+		return rootShareId + "|" + groupName;
+	}
+	
+	private static class ProfileShares {
+		public final long version;
+		public final ConcurrentHashMap<String, List<IncomingShareRoot>> roots = new ConcurrentHashMap<>();
+		public final ConcurrentHashMap<String, List<OShare>> folders = new ConcurrentHashMap<>();
+		public final ConcurrentHashMap<Integer, Boolean> readableFolders = new ConcurrentHashMap<>();
+		
+		public ProfileShares(long version) {
+			this.version = version;
+		}
+	}
+}
@@ -33,18 +33,12 @@
  */
 package com.sonicle.webtop.core.app;
 
-import com.sonicle.commons.db.DbUtils;
 import com.sonicle.commons.web.ServletUtils;
 import com.sonicle.webtop.core.CoreServiceSettings;
-import com.sonicle.webtop.core.bol.OSysLog;
-import com.sonicle.webtop.core.dal.SysLogDAO;
 import com.sonicle.webtop.core.sdk.UserProfileId;
-import java.sql.Connection;
-import java.sql.SQLException;
+import java.io.File;
 import javax.servlet.http.HttpServletRequest;
 import org.apache.commons.lang.StringUtils;
-import org.joda.time.DateTime;
-import org.joda.time.DateTimeZone;
 import org.slf4j.Logger;
 
 /**
@@ -69,6 +63,7 @@ public class LogManager {
 	}
 	
 	private WebTopApp wta = null;
+	private AuditLogWriter writer = null;
 	
 	/**
 	 * Private constructor.
@@ -77,12 +72,23 @@ public class LogManager {
 	 */
 	private LogManager(WebTopApp wta) {
 		this.wta = wta;
+		CoreServiceSettings css = new CoreServiceSettings(CoreManifest.ID, "*");
+		this.writer = new AuditLogWriter(
+			css.getSysLogBufferSize(),
+			css.getSysLogBatchSize(),
+			css.getSysLogFlushInterval(),
+			AuditLogWriter.OverflowPolicy.parse(css.getSysLogOverflowPolicy()),
+			new File(wta.getHomePath(), "syslog.spill")
+		);
 	}
 	
 	/**
 	 * Performs cleanup process.
 	 */
 	public void cleanup() {
+		writer.shutdown();
+		logger.info("Audit writer stopped [{}]", writer.getStats());
+		writer = null;
 		wta = null;
 		logger.info("Cleaned up");
 	}
@@ -100,34 +106,36 @@ public class LogManager {
 		return write(profileId, serviceId, action, softwareName, remoteIp, userAgent, sessionId, data);
 	}
 	
+	/**
+	 * Queues a log record for writing: records are written asynchronously 
+	 * in batches, so this method never waits for the database.
+	 * @return True if the record has been accepted, false otherwise.
+	 */
 	public boolean write(UserProfileId profileId, String serviceId, String action, String softwareName, String remoteIp, String userAgent, String sessionId, String data) {
-		Connection con = null;
-		if (!initialized) return false;
+		if (!initialized || (writer == null)) return false;
 		if (!isEnabled(profileId.getDomain(), serviceId)) return false;
 		
-		try {
-			con = WT.getCoreConnection();
-			SysLogDAO dao = SysLogDAO.getInstance();
-			OSysLog item = new OSysLog();
-			item.setSyslogId(dao.getSequence(con));
-			item.setTimestamp(DateTime.now(DateTimeZone.UTC));
-			item.setDomainId(profileId.getDomain());
-			item.setUserId(profileId.getUserId());
-			item.setServiceId(serviceId);
-			item.setAction(action);
-			item.setSwName(StringUtils.defaultIfBlank(softwareName, wta.getPlatformName()));
-			item.setIpAddress(remoteIp);
-			item.setUserAgent(userAgent);
-			item.setSessionId(sessionId);
-			item.setData(data);
-			dao.insert(con, item);
-			return true;
-			
-		} catch(SQLException ex) {
-			logger.error("DB error", ex);
-			return false;
-		} finally {
-			DbUtils.closeQuietly(con);
-		}
+		// Values are truncated to column sizes: a single too long value
+		// would otherwise make the whole batch fail.
+		AuditLogWriter.Record rec = new AuditLogWriter.Record();
+		rec.timestamp = System.currentTimeMillis();
+		rec.domainId = profileId.getDomain();
+		rec.userId = profileId.getUserId();
+		rec.serviceId = serviceId;
+		rec.action = StringUtils.left(action, 50);
+		rec.swName = StringUtils.left(StringUtils.defaultIfBlank(softwareName, wta.getPlatformName()), 50);
+		rec.ipAddress = StringUtils.left(remoteIp, 39);
+		rec.userAgent = StringUtils.left(userAgent, 512);
+		rec.sessionId = sessionId;
+		rec.data = StringUtils.left(data, 255);
+		return writer.write(rec);
+	}
+	
+	/**
+	 * Returns writer metrics (buffer depth, written, dropped, spilled 
+	 * records and flush latencies) as a readable string.
+	 */
+	public String getStats() {
+		return (writer != null) ? writer.getStats() : null;
 	}
 }
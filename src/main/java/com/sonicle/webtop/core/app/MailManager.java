@@ -0,0 +1,494 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+package com.sonicle.webtop.core.app;
+
+import com.sonicle.webtop.core.CoreServiceSettings;
+import com.sonicle.webtop.core.app.util.NamedThreadFactory;
+import com.sonicle.webtop.core.sdk.ConcurrentCache;
+import com.sonicle.webtop.core.sdk.WTException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+
+/**
+ * Outbound mail subsystem.
+ * SMTP connections of global mail sessions are pooled and reused for each
+ * server and user, instead of opening (and authenticating) a new one for 
+ * every message. Other sessions (eg. built for a single user) are not pooled.
+ * Messages can also be queued: sender threads deliver them in batches 
+ * over a single connection, honouring per-domain rate limits and retrying
+ * failed deliveries with exponential backoff. Queue is kept in memory.
+ * 
+ * @author malbinola
+ */
+public class MailManager {
+	private static final Logger logger = WT.getLogger(MailManager.class);
+	private static boolean initialized = false;
+	private static final long RETRY_DELAY = 30000;
+	private static final int BATCH_SIZE = 20;
+	private static final int MAX_MESSAGES_PER_CONNECTION = 100;
+	private static final RateLimiter UNLIMITED = new RateLimiter(0);
+	private static final long RATE_LIMITERS_TTL = 5 * 60 * 1000L; // As mail sessions
+	private static final long PRUNE_INTERVAL = 30000;
+	
+	/**
+	 * Initialization method. This method should be called once.
+	 * @param wta WebTopApp instance.
+	 * @return The instance.
+	 */
+	public static synchronized MailManager initialize(WebTopApp wta) {
+		if (initialized) throw new RuntimeException("Initialization already done");
+		MailManager mailm = new MailManager(wta);
+		initialized = true;
+		logger.info("Initialized");
+		return mailm;
+	}
+	
+	private WebTopApp wta = null;
+	private final int poolSize;
+	private final long poolMaxIdle;
+	private final int queueSize;
+	private final int maxRetries;
+	private final ConcurrentHashMap<String, LinkedBlockingDeque<PooledTransport>> pools = new ConcurrentHashMap<>();
+	private final ConcurrentCache<String, RateLimiter> rateLimiters = ConcurrentCache.builder()
+			.name("smtpRateLimiters")
+			.expireAfterWrite(RATE_LIMITERS_TTL)
+			.build();
+	private final AtomicLong lastPrune = new AtomicLong(System.currentTimeMillis());
+	private final DelayQueue<OutboundMail> queue = new DelayQueue<>();
+	private final AtomicInteger queued = new AtomicInteger(0);
+	private final ExecutorService senders;
+	private volatile boolean running = true;
+	private final AtomicLong sent = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+	private final AtomicLong retried = new AtomicLong(0);
+	private final AtomicLong rejected = new AtomicLong(0);
+	private final AtomicLong connectionsOpened = new AtomicLong(0);
+	private final AtomicLong connectionsReused = new AtomicLong(0);
+	private final AtomicLong sendTimeTotal = new AtomicLong(0);
+	private volatile long sendTimeMax = 0;
+	
+	/**
+	 * Private constructor.
+	 * Instances of this class must be created using static initialize method.
+	 * @param wta WebTopApp instance.
+	 */
+	private MailManager(WebTopApp wta) {
+		this.wta = wta;
+		CoreServiceSettings css = new CoreServiceSettings(CoreManifest.ID, "*");
+		this.poolSize = Math.max(0, css.getSMTPPoolSize());
+		this.poolMaxIdle = Math.max(0, css.getSMTPPoolMaxIdle());
+		this.queueSize = Math.max(1, css.getSMTPQueueSize());
+		this.maxRetries = Math.max(0, css.getSMTPQueueMaxRetries());
+		final int threads = Math.max(1, css.getSMTPQueueThreads());
+		this.senders = Executors.newFixedThreadPool(threads, new NamedThreadFactory("webtop-mailqueue"));
+		for (int i=0; i<threads; i++) {
+			senders.execute(new Runnable() {
+				@Override
+				public void run() {
+					senderLoop();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Performs cleanup process.
+	 */
+	void cleanup() {
+		running = false;
+		senders.shutdownNow();
+		try {
+			senders.awaitTermination(10, TimeUnit.SECONDS);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if (!queue.isEmpty()) logger.warn("Discarding {} undelivered queued messages", queue.size());
+		queue.clear();
+		for (LinkedBlockingDeque<PooledTransport> pool : pools.values()) {
+			PooledTransport pt;
+			while ((pt = pool.pollFirst()) != null) pt.close();
+		}
+		pools.clear();
+		logger.info("Mail stats [{}]", getStats());
+		wta = null;
+		logger.info("Cleaned up");
+	}
+	
+	/**
+	 * Sends a message now, using a pooled connection.
+	 * @param session The mail session.
+	 * @param message The message to send.
+	 * @throws MessagingException 
+	 */
+	public void send(Session session, MimeMessage message) throws MessagingException {
+		Address[] recipients = prepare(message);
+		PooledTransport pt = borrow(session);
+		boolean healthy = false;
+		try {
+			deliver(pt, message, recipients);
+			healthy = true;
+		} catch(SendFailedException ex) {
+			// Rejected recipients do not affect the connection
+			healthy = true;
+			failed.incrementAndGet();
+			throw ex;
+		} catch(MessagingException ex) {
+			failed.incrementAndGet();
+			throw ex;
+		} finally {
+			release(pt, healthy);
+		}
+	}
+	
+	/**
+	 * Queues a message for asynchronous delivery.
+	 * @param domainId The domain on behalf of which message is sent.
+	 * @param session The mail session.
+	 * @param message The message to send.
+	 * @throws WTException If the queue is full.
+	 */
+	public void enqueue(String domainId, Session session, MimeMessage message) throws WTException {
+		if (queued.incrementAndGet() > queueSize) {
+			queued.decrementAndGet();
+			rejected.incrementAndGet();
+			throw new WTException("Mail queue is full");
+		}
+		queue.add(new OutboundMail(domainId, session, message));
+	}
+	
+	public String getStats() {
+		final long count = sent.get();
+		return "queued=" + queued.get() + "/" + queueSize + ", sent=" + count + ", failed=" + failed.get() + ", retried=" + retried.get() + ", rejected=" + rejected.get()
+				+ ", connOpened=" + connectionsOpened.get() + ", connReused=" + connectionsReused.get()
+				+ ", avgSendMs=" + ((count > 0) ? sendTimeTotal.get() / count : 0) + ", maxSendMs=" + sendTimeMax;
+	}
+	
+	private void senderLoop() {
+		final ArrayList<OutboundMail> batch = new ArrayList<>(BATCH_SIZE);
+		final ArrayList<OutboundMail> others = new ArrayList<>();
+		while (running) {
+			try {
+				OutboundMail first = queue.poll(1, TimeUnit.SECONDS);
+				if (first == null) {
+					pruneIdleTransports();
+					continue;
+				}
+				if (!acquireRate(first)) continue;
+				
+				// Collects ready messages that can share the same connection
+				batch.add(first);
+				OutboundMail next;
+				while ((batch.size() < BATCH_SIZE) && ((next = queue.poll()) != null)) {
+					if (next.session != first.session) {
+						others.add(next);
+					} else if (acquireRate(next)) {
+						batch.add(next);
+					}
+				}
+				queue.addAll(others);
+				others.clear();
+				deliverBatch(first.session, batch);
+				
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch(Throwable t) {
+				logger.error("Unexpected error delivering queued messages", t);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+	
+	private void deliverBatch(Session session, ArrayList<OutboundMail> batch) {
+		PooledTransport pt = null;
+		try {
+			pt = borrow(session);
+		} catch(MessagingException ex) {
+			for (OutboundMail mail : batch) retry(mail, ex);
+			return;
+		}
+		
+		boolean healthy = true;
+		for (int i=0; i<batch.size(); i++) {
+			final OutboundMail mail = batch.get(i);
+			if (!healthy) {
+				retry(mail, null);
+				continue;
+			}
+			try {
+				// Message is prepared once: retries keep the same Message-ID
+				if (mail.recipients == null) mail.recipients = prepare(mail.message);
+				deliver(pt, mail.message, mail.recipients);
+				queued.decrementAndGet();
+				
+			} catch(SendFailedException ex) {
+				final Address[] validUnsent = ex.getValidUnsentAddresses();
+				if ((validUnsent != null) && (validUnsent.length > 0)) {
+					// Recipients that already got the message are not sent it again
+					mail.recipients = validUnsent;
+					retry(mail, ex);
+				} else {
+					discard(mail, ex);
+				}
+			} catch(MessagingException ex) {
+				// Connection is no more usable: following messages will be retried
+				healthy = false;
+				retry(mail, ex);
+			}
+		}
+		release(pt, healthy);
+	}
+	
+	private void deliver(PooledTransport pt, MimeMessage message, Address[] recipients) throws MessagingException {
+		final long start = System.currentTimeMillis();
+		pt.transport.sendMessage(message, recipients);
+		pt.messages++;
+		final long elapsed = System.currentTimeMillis() - start;
+		sendTimeTotal.addAndGet(elapsed);
+		if (elapsed > sendTimeMax) sendTimeMax = elapsed;
+		sent.incrementAndGet();
+	}
+	
+	private Address[] prepare(MimeMessage message) throws MessagingException {
+		// As Transport.send does...
+		message.saveChanges();
+		Address[] recipients = message.getAllRecipients();
+		if ((recipients == null) || (recipients.length == 0)) throw new SendFailedException("No recipient addresses");
+		return recipients;
+	}
+	
+	private void retry(OutboundMail mail, MessagingException cause) {
+		if (mail.attempts >= maxRetries) {
+			discard(mail, cause);
+		} else {
+			mail.attempts++;
+			mail.nextAttempt = System.currentTimeMillis() + (RETRY_DELAY << (mail.attempts - 1));
+			retried.incrementAndGet();
+			logger.debug("Delivery failed, retrying in {} ms [{}]", mail.nextAttempt - System.currentTimeMillis(), mail.attempts);
+			queue.add(mail);
+		}
+	}
+	
+	private void discard(OutboundMail mail, MessagingException cause) {
+		queued.decrementAndGet();
+		failed.incrementAndGet();
+		logger.error("Unable to deliver message, discarded [{}, {} attempts]", mail.domainId, mail.attempts + 1, cause);
+	}
+	
+	private boolean acquireRate(OutboundMail mail) {
+		RateLimiter limiter = getRateLimiter(mail.domainId);
+		final long wait = limiter.tryAcquire();
+		if (wait <= 0) return true;
+		mail.nextAttempt = System.currentTimeMillis() + wait;
+		queue.add(mail);
+		return false;
+	}
+	
+	private RateLimiter getRateLimiter(String domainId) {
+		// Domain settings are read again only when the cached entry expires
+		return rateLimiters.get(domainId, new ConcurrentCache.Loader<String, RateLimiter>() {
+			@Override
+			public RateLimiter load(String domainId) throws Exception {
+				CoreServiceSettings css = new CoreServiceSettings(CoreManifest.ID, domainId);
+				final int rate = css.getSMTPRateLimit();
+				return (rate > 0) ? new RateLimiter(rate) : UNLIMITED;
+			}
+		});
+	}
+	
+	private String poolKey(Session session) {
+		final WebTopApp wta = this.wta;
+		if ((poolSize <= 0) || (wta == null) || !wta.isGlobalMailSession(session)) return null;
+		return session.getProperty("mail.smtp.host") + ":" + session.getProperty("mail.smtp.port") + ":" + StringUtils.defaultString(session.getProperty("mail.smtp.user"));
+	}
+	
+	private PooledTransport borrow(Session session) throws MessagingException {
+		final String poolKey = poolKey(session);
+		LinkedBlockingDeque<PooledTransport> pool = (poolKey != null) ? pools.get(poolKey) : null;
+		if (pool != null) {
+			PooledTransport pt;
+			while ((pt = pool.pollFirst()) != null) {
+				if (pt.isUsable(poolMaxIdle)) {
+					connectionsReused.incrementAndGet();
+					return pt;
+				}
+				pt.close();
+			}
+		}
+		Transport transport = session.getTransport("smtp");
+		transport.connect();
+		connectionsOpened.incrementAndGet();
+		return new PooledTransport(poolKey, transport);
+	}
+	
+	private void release(PooledTransport pt, boolean healthy) {
+		if (healthy && (pt.messages < MAX_MESSAGES_PER_CONNECTION) && (pt.poolKey != null)) {
+			LinkedBlockingDeque<PooledTransport> pool = pools.get(pt.poolKey);
+			if (pool == null) {
+				pool = new LinkedBlockingDeque<>(poolSize);
+				LinkedBlockingDeque<PooledTransport> existing = pools.putIfAbsent(pt.poolKey, pool);
+				if (existing != null) pool = existing;
+			}
+			pt.lastUsed = System.currentTimeMillis();
+			if (pool.offerFirst(pt)) {
+				pruneIdleTransportsIfDue();
+				return;
+			}
+		}
+		pt.close();
+	}
+	
+	private void pruneIdleTransportsIfDue() {
+		// Senders may never be idle under steady traffic: prune here too
+		final long now = System.currentTimeMillis();
+		final long last = lastPrune.get();
+		if ((now - last >= PRUNE_INTERVAL) && lastPrune.compareAndSet(last, now)) {
+			pruneIdleTransports();
+		}
+	}
+	
+	private void pruneIdleTransports() {
+		final long limit = System.currentTimeMillis() - poolMaxIdle;
+		for (Map.Entry<String, LinkedBlockingDeque<PooledTransport>> entry : pools.entrySet()) {
+			// Least recently used connections are at the tail
+			PooledTransport pt;
+			while (((pt = entry.getValue().peekLast()) != null) && (pt.lastUsed < limit)) {
+				if (entry.getValue().removeLastOccurrence(pt)) pt.close();
+			}
+			if (entry.getValue().isEmpty()) pools.remove(entry.getKey(), entry.getValue());
+		}
+	}
+	
+	private static class PooledTransport {
+		public final String poolKey;
+		public final Transport transport;
+		public volatile long lastUsed;
+		public int messages = 0;
+		
+		public PooledTransport(String poolKey, Transport transport) {
+			this.poolKey = poolKey;
+			this.transport = transport;
+			this.lastUsed = System.currentTimeMillis();
+		}
+		
+		public boolean isUsable(long maxIdle) {
+			// Servers drop idle connections: do not even try with old ones
+			if (System.currentTimeMillis() - lastUsed > maxIdle) return false;
+			return transport.isConnected();
+		}
+		
+		public void close() {
+			try {
+				transport.close();
+			} catch(MessagingException ex) { /* Do nothing... */ }
+		}
+	}
+	
+	private static class OutboundMail implements Delayed {
+		public final String domainId;
+		public final Session session;
+		public final MimeMessage message;
+		public volatile long nextAttempt;
+		public int attempts = 0;
+		public Address[] recipients = null;
+		
+		public OutboundMail(String domainId, Session session, MimeMessage message) {
+			this.domainId = domainId;
+			this.session = session;
+			this.message = message;
+			this.nextAttempt = System.currentTimeMillis();
+		}
+		
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(nextAttempt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+		
+		@Override
+		public int compareTo(Delayed o) {
+			final long diff = nextAttempt - ((OutboundMail)o).nextAttempt;
+			return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+		}
+	}
+	
+	/**
+	 * Token bucket allowing a number of messages per minute.
+	 */
+	private static class RateLimiter {
+		private final double permitsPerMilli;
+		private final double maxPermits;
+		private double permits;
+		private long lastRefill;
+		
+		public RateLimiter(int permitsPerMinute) {
+			this.permitsPerMilli = permitsPerMinute / 60000.0;
+			this.maxPermits = Math.max(1, permitsPerMinute);
+			this.permits = maxPermits;
+			this.lastRefill = System.currentTimeMillis();
+		}
+		
+		/**
+		 * @return 0 if a permit has been acquired, otherwise millis to wait.
+		 */
+		public synchronized long tryAcquire() {
+			if (permitsPerMilli <= 0) return 0;
+			final long now = System.currentTimeMillis();
+			permits = Math.min(maxPermits, permits + (now - lastRefill) * permitsPerMilli);
+			lastRefill = now;
+			if (permits >= 1) {
+				permits -= 1;
+				return 0;
+			}
+			return (long)Math.ceil((1 - permits) / permitsPerMilli);
+		}
+	}
+}
@@ -287,8 +287,17 @@ public class OTPManager {
 			}
 		}
 		
-		// Checks if device is registered
-		JsTrustedDevice td = getTrustedDevice(pid, tdc.deviceId);
+		// Checks if device is registered (loading all core settings at once, 
+		// they will be needed later during session initialization)
+		SettingsSnapshot snapshot = null;
+		try {
+			snapshot = wta.getSettingsManager().getUserSettingsSnapshot(pid, CoreManifest.ID);
+		} catch(WTException ex) {
+			logger.error("Unable to check trusted device [{}]", tdc.deviceId, ex);
+			return false;
+		}
+		String key = CoreSettings.OTP_TRUSTED_DEVICE + "@" + tdc.deviceId;
+		JsTrustedDevice td = LangUtils.value(snapshot.get(key), null, JsTrustedDevice.class);
 		if(td == null) {
 			logger.trace("Device ID not registered before [{}]", tdc.deviceId);
 			return false;
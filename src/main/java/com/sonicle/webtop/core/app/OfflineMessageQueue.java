@@ -0,0 +1,380 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+
+package com.sonicle.webtop.core.app;
+
+import com.sonicle.commons.db.DbUtils;
+import com.sonicle.commons.web.json.JsonResult;
+import com.sonicle.webtop.core.app.util.NamedThreadFactory;
+import com.sonicle.webtop.core.sdk.ServiceMessage;
+import com.sonicle.webtop.core.sdk.UserProfileId;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+
+/**
+ * Persistent queue of messages addressed to offline users.
+ * Enqueued messages are buffered and written to the database using a single 
+ * JDBC batch per flush (triggered by size or periodically); they are then 
+ * claimed and fetched with a single statement when the user comes back online.
+ * Batches that cannot be written are kept and retried by following flushes,
+ * up to a maximum number of attempts.
+ * Queue is kept bounded by age (TTL) and by max depth per profile.
+ * 
+ * @author malbinola
+ */
+public class OfflineMessageQueue {
+	private static final Logger logger = WT.getLogger(OfflineMessageQueue.class);
+	private static final String SQL_INSERT = "INSERT INTO \"core\".\"messages_queue\" (\"domain_id\", \"user_id\", \"message_type\", \"message_raw\", \"queued_on\") VALUES (?, ?, ?, ?, ?)";
+	private static final String SQL_CLAIM = "DELETE FROM \"core\".\"messages_queue\" WHERE \"domain_id\" = ? AND \"user_id\" = ? RETURNING \"queue_id\", \"message_type\", \"message_raw\"";
+	private static final String SQL_PRUNE_BY_AGE = "DELETE FROM \"core\".\"messages_queue\" WHERE \"queued_on\" < ?";
+	private static final String SQL_PRUNE_BY_DEPTH = "DELETE FROM \"core\".\"messages_queue\" WHERE \"domain_id\" = ? AND \"user_id\" = ? AND \"queue_id\" NOT IN ("
+			+ "SELECT \"queue_id\" FROM \"core\".\"messages_queue\" WHERE \"domain_id\" = ? AND \"user_id\" = ? ORDER BY \"queue_id\" DESC LIMIT ?)";
+	private static final int MAX_FLUSH_ATTEMPTS = 5;
+	
+	private final int batchSize;
+	private final int maxDepth;
+	private final long ttl;
+	private final ConcurrentLinkedQueue<Pending> buffer = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger bufferSize = new AtomicInteger(0);
+	private final LinkedList<Pending> retries = new LinkedList<>();
+	private final ConcurrentHashMap<String, Class<?>> typeRegistry = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService scheduler;
+	private final Object flushLock = new Object();
+	
+	/**
+	 * @param batchSize Buffered messages that trigger an immediate flush.
+	 * @param flushInterval Max time (ms) a message can wait in buffer.
+	 * @param maxDepth Max number of messages kept for each profile.
+	 * @param ttl Max age (ms) of a queued message.
+	 */
+	public OfflineMessageQueue(int batchSize, long flushInterval, int maxDepth, long ttl) {
+		this.batchSize = batchSize;
+		this.maxDepth = maxDepth;
+		this.ttl = ttl;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("webtop-msgqueue"));
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stops background flushing, writing out any buffered message.
+	 */
+	public void shutdown() {
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(5, TimeUnit.SECONDS);
+		} catch(InterruptedException ex) {}
+		flush();
+	}
+	
+	/**
+	 * Queues messages for the specified profile. 
+	 * Messages are serialized immediately, DB write is deferred.
+	 * @param profileId The target profile.
+	 * @param messages Messages to queue.
+	 */
+	public void enqueue(UserProfileId profileId, Collection<ServiceMessage> messages) {
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		for(ServiceMessage message : messages) {
+			buffer.add(new Pending(profileId, message.getClass().getName(), JsonResult.gson.toJson(message), now));
+		}
+		if (bufferSize.addAndGet(messages.size()) >= batchSize) {
+			scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Removes and returns all queued messages of the specified profile.
+	 * Messages of the profile still waiting to be written are taken directly 
+	 * from the buffer, without waiting for a flush. Those being written by 
+	 * a flush in progress stay in the table until the next drain.
+	 * @param profileId The target profile.
+	 * @return Messages in queuing order.
+	 */
+	public List<ServiceMessage> drain(UserProfileId profileId) {
+		ArrayList<ServiceMessage> messages = new ArrayList<>();
+		ArrayList<Queued> claimed = new ArrayList<>();
+		Connection con = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		
+		final ArrayList<Pending> buffered = takeBuffered(profileId);
+		try {
+			con = WT.getCoreConnection();
+			stmt = con.prepareStatement(SQL_CLAIM);
+			stmt.setString(1, profileId.getDomainId());
+			stmt.setString(2, profileId.getUserId());
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				claimed.add(new Queued(rs.getInt(1), rs.getString(2), rs.getString(3)));
+			}
+			
+		} catch(SQLException ex) {
+			logger.error("Error claiming offline messages [{}]", profileId, ex);
+		} finally {
+			closeQuietly(rs);
+			closeQuietly(stmt);
+			DbUtils.closeQuietly(con);
+		}
+		
+		// RETURNING clause does not guarantee any order
+		Collections.sort(claimed, new Comparator<Queued>() {
+			@Override
+			public int compare(Queued o1, Queued o2) {
+				return Integer.compare(o1.queueId, o2.queueId);
+			}
+		});
+		for(Queued queued : claimed) {
+			addMessage(messages, profileId, queued.type, queued.raw);
+		}
+		// Buffered messages are newer than those in the table
+		for(Pending pending : buffered) {
+			addMessage(messages, profileId, pending.type, pending.raw);
+		}
+		return messages;
+	}
+	
+	private void addMessage(List<ServiceMessage> messages, UserProfileId profileId, String type, String raw) {
+		try {
+			messages.add((ServiceMessage)JsonResult.gson.fromJson(raw, lookupType(type)));
+		} catch(Exception ex) {
+			logger.warn("Unable to unserialize message [{}] for [{}]", type, profileId.toString(), ex);
+		}
+	}
+	
+	private ArrayList<Pending> takeBuffered(UserProfileId profileId) {
+		final ArrayList<Pending> taken = new ArrayList<>();
+		synchronized(retries) {
+			Iterator<Pending> it = retries.iterator();
+			while (it.hasNext()) {
+				final Pending pending = it.next();
+				if (profileId.equals(pending.profileId)) {
+					taken.add(pending);
+					it.remove();
+				}
+			}
+		}
+		int count = 0;
+		for (Pending pending : buffer) {
+			// A concurrent flush may have taken it in the meantime
+			if (profileId.equals(pending.profileId) && buffer.remove(pending)) {
+				taken.add(pending);
+				count++;
+			}
+		}
+		bufferSize.addAndGet(-count);
+		return taken;
+	}
+	
+	/**
+	 * Writes buffered messages to the database using a JDBC batch.
+	 * Profiles involved are then pruned to the max allowed depth.
+	 * If writing fails, messages are kept for the next flush.
+	 */
+	public void flush() {
+		synchronized(flushLock) {
+			ArrayList<Pending> pendings = new ArrayList<>();
+			synchronized(retries) {
+				pendings.addAll(retries);
+				retries.clear();
+			}
+			int count = 0;
+			Pending pending = null;
+			while ((pending = buffer.poll()) != null) {
+				pendings.add(pending);
+				count++;
+			}
+			bufferSize.addAndGet(-count);
+			if (pendings.isEmpty()) return;
+			
+			LinkedHashSet<UserProfileId> profileIds = new LinkedHashSet<>();
+			Connection con = null;
+			PreparedStatement stmt = null;
+			try {
+				con = WT.getCoreConnection(false);
+				stmt = con.prepareStatement(SQL_INSERT);
+				for(Pending item : pendings) {
+					stmt.setString(1, item.profileId.getDomainId());
+					stmt.setString(2, item.profileId.getUserId());
+					stmt.setString(3, item.type);
+					stmt.setString(4, item.raw);
+					stmt.setTimestamp(5, item.queuedOn);
+					stmt.addBatch();
+					profileIds.add(item.profileId);
+				}
+				stmt.executeBatch();
+				closeQuietly(stmt);
+				
+				if (maxDepth > 0) {
+					stmt = con.prepareStatement(SQL_PRUNE_BY_DEPTH);
+					for(UserProfileId profileId : profileIds) {
+						stmt.setString(1, profileId.getDomainId());
+						stmt.setString(2, profileId.getUserId());
+						stmt.setString(3, profileId.getDomainId());
+						stmt.setString(4, profileId.getUserId());
+						stmt.setInt(5, maxDepth);
+						stmt.addBatch();
+					}
+					stmt.executeBatch();
+				}
+				con.commit();
+				logger.trace("Flushed {} offline messages", pendings.size());
+				
+			} catch(Throwable t) {
+				DbUtils.rollbackQuietly(con);
+				retryLater(pendings, t);
+			} finally {
+				closeQuietly(stmt);
+				DbUtils.closeQuietly(con);
+			}
+		}
+	}
+	
+	private void retryLater(List<Pending> pendings, Throwable cause) {
+		final ArrayList<Pending> kept = new ArrayList<>(pendings.size());
+		for (Pending pending : pendings) {
+			if (++pending.attempts < MAX_FLUSH_ATTEMPTS) kept.add(pending);
+		}
+		synchronized(retries) {
+			// Retried messages go before newer ones, keeping queuing order
+			retries.addAll(0, kept);
+		}
+		final int discarded = pendings.size() - kept.size();
+		if (discarded > 0) {
+			logger.error("Error enqueuing messages, {} discarded after {} attempts", discarded, MAX_FLUSH_ATTEMPTS, cause);
+		} else {
+			logger.warn("Error enqueuing messages, {} will be retried", kept.size(), cause);
+		}
+	}
+	
+	/**
+	 * Deletes queued messages older than configured TTL.
+	 * @return Number of deleted messages.
+	 */
+	public int pruneExpired() {
+		if (ttl <= 0) return 0;
+		Connection con = null;
+		PreparedStatement stmt = null;
+		
+		try {
+			con = WT.getCoreConnection();
+			stmt = con.prepareStatement(SQL_PRUNE_BY_AGE);
+			stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis() - ttl));
+			return stmt.executeUpdate();
+			
+		} catch(SQLException ex) {
+			logger.error("Error pruning offline messages", ex);
+			return 0;
+		} finally {
+			closeQuietly(stmt);
+			DbUtils.closeQuietly(con);
+		}
+	}
+	
+	private static void closeQuietly(Statement stmt) {
+		try {
+			if (stmt != null) stmt.close();
+		} catch(SQLException ex) { /* Do nothing... */ }
+	}
+	
+	private static void closeQuietly(ResultSet rs) {
+		try {
+			if (rs != null) rs.close();
+		} catch(SQLException ex) { /* Do nothing... */ }
+	}
+	
+	private Class<?> lookupType(String className) throws ClassNotFoundException {
+		Class<?> clazz = typeRegistry.get(className);
+		if (clazz == null) {
+			clazz = Class.forName(className);
+			typeRegistry.put(className, clazz);
+		}
+		return clazz;
+	}
+	
+	private static class Pending {
+		public final UserProfileId profileId;
+		public final String type;
+		public final String raw;
+		public final Timestamp queuedOn;
+		public int attempts = 0;
+		
+		public Pending(UserProfileId profileId, String type, String raw, Timestamp queuedOn) {
+			this.profileId = profileId;
+			this.type = type;
+			this.raw = raw;
+			this.queuedOn = queuedOn;
+		}
+	}
+	
+	private static class Queued {
+		public final int queueId;
+		public final String type;
+		public final String raw;
+		
+		public Queued(int queueId, String type, String raw) {
+			this.queueId = queueId;
+			this.type = type;
+			this.raw = raw;
+		}
+	}
+}
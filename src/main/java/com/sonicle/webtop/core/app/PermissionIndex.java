@@ -0,0 +1,164 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+package com.sonicle.webtop.core.app;
+
+import com.sonicle.security.Principal;
+import com.sonicle.webtop.core.shiro.WTRealm;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.shiro.mgt.RealmSecurityManager;
+import org.apache.shiro.mgt.SecurityManager;
+import org.apache.shiro.realm.Realm;
+import org.apache.shiro.subject.PrincipalCollection;
+
+/**
+ * Per-profile index of authorization decisions taken by Shiro.
+ * Each profile has its own table of evaluated permission strings (plus the
+ * WebTop admin flag) so that repeated checks do not walk the realm's 
+ * authorization info again. The whole index must be invalidated, using 
+ * {@link #invalidate(SecurityManager)}, whenever roles or permissions change.
+ * 
+ * @author malbinola
+ */
+public class PermissionIndex {
+	private static final int MAX_PROFILES = 5000;
+	private static final int MAX_DECISIONS_PER_PROFILE = 5000;
+	
+	private final ConcurrentHashMap<String, ProfileDecisions> profiles = new ConcurrentHashMap<>();
+	private final AtomicLong version = new AtomicLong(0);
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	
+	public boolean isPermitted(SecurityManager manager, PrincipalCollection principals, String permission) {
+		return isPermitted(manager, principals, new String[]{permission})[0];
+	}
+	
+	/**
+	 * Evaluates a set of permission strings for the same principals.
+	 * Decisions not already in the index are asked to the security manager 
+	 * all together in a single call.
+	 * @param manager The security manager.
+	 * @param principals Principals to evaluate.
+	 * @param permissions Permission strings.
+	 * @return Decisions, in the same order of passed permissions.
+	 */
+	public boolean[] isPermitted(SecurityManager manager, PrincipalCollection principals, String[] permissions) {
+		boolean[] result = new boolean[permissions.length];
+		ProfileDecisions decisions = getDecisions(principals);
+		if (decisions == null) {
+			return manager.isPermitted(principals, permissions);
+		}
+		
+		int missCount = 0;
+		int[] missIndexes = null;
+		for (int i = 0; i < permissions.length; i++) {
+			Boolean value = decisions.map.get(permissions[i]);
+			if (value != null) {
+				result[i] = value;
+			} else {
+				if (missIndexes == null) missIndexes = new int[permissions.length];
+				missIndexes[missCount++] = i;
+			}
+		}
+		hits.addAndGet(permissions.length - missCount);
+		if (missCount == 0) return result;
+		
+		misses.addAndGet(missCount);
+		String[] missPermissions = new String[missCount];
+		for (int i = 0; i < missCount; i++) {
+			missPermissions[i] = permissions[missIndexes[i]];
+		}
+		boolean[] evaluated = manager.isPermitted(principals, missPermissions);
+		boolean store = (decisions.version == version.get()) && (decisions.map.size() < MAX_DECISIONS_PER_PROFILE);
+		for (int i = 0; i < missCount; i++) {
+			result[missIndexes[i]] = evaluated[i];
+			if (store) decisions.map.put(missPermissions[i], evaluated[i]);
+		}
+		return result;
+	}
+	
+	/**
+	 * Drops all computed decisions, together with authorization info 
+	 * cached by WebTop realm.
+	 * @param manager The security manager.
+	 */
+	public void invalidate(SecurityManager manager) {
+		// Realm's cache must be cleared first: decisions evaluated meanwhile
+		// will be discarded anyway due to version change.
+		if (manager instanceof RealmSecurityManager) {
+			for (Realm realm : ((RealmSecurityManager)manager).getRealms()) {
+				if (realm instanceof WTRealm) ((WTRealm)realm).clearAuthorizationCache();
+			}
+		}
+		version.incrementAndGet();
+		profiles.clear();
+	}
+	
+	/**
+	 * Returns the current version of the index, incremented at each invalidation.
+	 * @return Version number.
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+	
+	public String getStats() {
+		return "profiles=" + profiles.size() + ", hits=" + hits.get() + ", misses=" + misses.get();
+	}
+	
+	private ProfileDecisions getDecisions(PrincipalCollection principals) {
+		Object primary = principals.getPrimaryPrincipal();
+		if (!(primary instanceof Principal)) return null;
+		Principal principal = (Principal)primary;
+		
+		// Impersonated sessions have different rights from the original user
+		String key = principal.isImpersonated() ? "!" + principal.getName() : principal.getName();
+		ProfileDecisions decisions = profiles.get(key);
+		if ((decisions == null) || (decisions.version != version.get())) {
+			if (profiles.size() >= MAX_PROFILES) profiles.clear();
+			decisions = new ProfileDecisions(version.get());
+			profiles.put(key, decisions);
+		}
+		return decisions;
+	}
+	
+	private static class ProfileDecisions {
+		public final long version;
+		public final ConcurrentHashMap<String, Boolean> map = new ConcurrentHashMap<>();
+		
+		public ProfileDecisions(long version) {
+			this.version = version;
+		}
+	}
+}
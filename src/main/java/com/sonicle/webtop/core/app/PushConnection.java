@@ -38,25 +38,71 @@ import com.sonicle.webtop.core.sdk.ServiceMessage;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.atmosphere.cpr.AtmosphereResource;
 import org.atmosphere.cpr.AtmosphereSession;
 import org.slf4j.Logger;
 
 /**
- *
+ * Push channel bound to an Atmosphere resource.
+ * Messages are not written by the calling thread: they are put in a bounded 
+ * outbound queue that is drained by the {@link PushDeliveryService} executor. 
+ * Frames found in queue at drain time are coalesced into a single write.
+ * Delivery threads never wait for the underlying resource: while it is not 
+ * available (eg. client reconnecting) frames are held and the drain is 
+ * retried later, until the resource wait timeout elapses.
+ * 
  * @author malbinola
  */
 public class PushConnection {
 	private final static Logger logger = WT.getLogger(PushConnection.class);
+	private static final int MAX_FRAMES_PER_WRITE = 100;
+	private static final long RESOURCE_RETRY_DELAY = 250;
+	private static final long RESOURCE_WAIT_TIMEOUT = 5000;
 	private final AtmosphereSession session;
-	private final ArrayList<ServiceMessage> initialMessages;
+	private final PushDeliveryService delivery;
+	private final LinkedBlockingQueue<Frame> queue;
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private volatile boolean closed = false;
+	// Only accessed by the drain task, that never runs concurrently
+	private ArrayList<Frame> pending = null;
+	private long waitingSince = 0;
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+	private final Runnable retryRejectedTask = new Runnable() {
+		@Override
+		public void run() {
+			scheduled.set(false);
+			logger.warn("Push delivery retry rejected");
+		}
+	};
 	
-	public PushConnection(AtmosphereResource resource, Collection<ServiceMessage> initialMessages) {
+	public PushConnection(AtmosphereResource resource, Collection<ServiceMessage> initialMessages, PushDeliveryService delivery) {
 		this.session = new AtmosphereSession(resource);
-		this.initialMessages = new ArrayList<>(initialMessages);
+		this.delivery = delivery;
+		this.queue = new LinkedBlockingQueue<>(delivery.getQueueCapacity());
+		if (!initialMessages.isEmpty()) enqueue(toJson(initialMessages));
+	}
+	
+	/**
+	 * Serializes messages into a push frame.
+	 * Use this to serialize once a payload that will be sent to many connections.
+	 * @param messages Messages to serialize.
+	 * @return JSON array
+	 */
+	public static String toJson(Collection<ServiceMessage> messages) {
+		return JsonResult.gson.toJson(messages);
 	}
 	
 	public void close() {
+		closed = true;
+		delivery.onDequeued(discardQueue());
+		
 		AtmosphereResource resource = null;
 		try {
 			resource = session.tryAcquire(1);
@@ -72,26 +118,155 @@ public class PushConnection {
 	}
 	
 	public void flush() {
-		send(new ArrayList<ServiceMessage>(0));
+		schedule();
 	}
 	
 	public void send(Collection<ServiceMessage> messages) {
-		writeOnResource(messages);
+		if (!messages.isEmpty()) send(toJson(messages));
 	}
 	
-	private void writeOnResource(Collection<ServiceMessage> messages) {
-		AtmosphereResource resource = null;
+	/**
+	 * Sends an already serialized frame (see {@link #toJson(Collection)}).
+	 * @param jsonMessages JSON array of messages.
+	 */
+	public void send(String jsonMessages) {
+		if (closed) return;
+		enqueue(jsonMessages);
+		schedule();
+	}
+	
+	/**
+	 * @return Number of frames waiting to be written.
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+	
+	private void enqueue(String json) {
+		Frame frame = new Frame(json);
+		boolean queued = queue.offer(frame);
+		if (!queued) {
+			PushDeliveryService.OverflowPolicy policy = delivery.getOverflowPolicy();
+			if (PushDeliveryService.OverflowPolicy.DROP_OLDEST.equals(policy)) {
+				while (!queued) {
+					if (queue.poll() != null) {
+						delivery.onDequeued(1);
+						delivery.onDropped(1);
+					}
+					queued = queue.offer(frame);
+				}
+			}
+		}
+		if (queued) {
+			delivery.onQueued();
+		} else {
+			delivery.onDropped(1);
+			logger.debug("Outbound queue full, frame dropped");
+		}
+	}
+	
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				delivery.execute(drainTask);
+			} catch(RuntimeException ex) {
+				scheduled.set(false);
+				logger.warn("Unable to schedule push delivery", ex);
+			}
+		}
+	}
+	
+	private void drain() {
+		boolean retry = false;
 		try {
-			resource = session.tryAcquire(5);
-		} catch(InterruptedException ex) {}
-		if (resource == null) return;
-		
-		if (!initialMessages.isEmpty()) {
-			resource.write(JsonResult.gson.toJson(initialMessages));
-			initialMessages.clear();
+			ArrayList<Frame> frames = (pending != null) ? pending : new ArrayList<Frame>();
+			pending = null;
+			int dequeued = queue.drainTo(frames, MAX_FRAMES_PER_WRITE - frames.size());
+			delivery.onDequeued(dequeued);
+			if (frames.isEmpty() || closed) return;
+			
+			AtmosphereResource resource = null;
+			try {
+				resource = session.tryAcquire(0);
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			if (resource == null) {
+				long now = System.currentTimeMillis();
+				if (waitingSince == 0) waitingSince = now;
+				if ((now - waitingSince) > RESOURCE_WAIT_TIMEOUT) {
+					waitingSince = 0;
+					delivery.onDropped(frames.size());
+				} else {
+					pending = frames;
+					retry = true;
+				}
+				return;
+			}
+			waitingSince = 0;
+			
+			resource.write(coalesce(frames));
+			
+			long now = System.nanoTime(), latencySum = 0, latencyMax = 0;
+			for (Frame frame : frames) {
+				long latency = now - frame.queuedOn;
+				latencySum += latency;
+				if (latency > latencyMax) latencyMax = latency;
+			}
+			delivery.onSent(frames.size(), latencySum, latencyMax);
+			
+		} catch(Throwable t) {
+			logger.error("Error writing on push connection", t);
+		} finally {
+			if (retry && !closed) {
+				retryLater();
+			} else {
+				scheduled.set(false);
+				if (!closed && !queue.isEmpty()) schedule();
+			}
+		}
+	}
+	
+	private void retryLater() {
+		// Keeps the scheduled flag set: new frames will be picked-up by the retry
+		try {
+			delivery.executeLater(drainTask, RESOURCE_RETRY_DELAY, retryRejectedTask);
+		} catch(RuntimeException ex) {
+			scheduled.set(false);
+			logger.warn("Unable to schedule push delivery retry", ex);
 		}
-		if (!messages.isEmpty()) {
-			resource.write(JsonResult.gson.toJson(messages));
+	}
+	
+	private int discardQueue() {
+		ArrayList<Frame> frames = new ArrayList<>();
+		queue.drainTo(frames);
+		return frames.size();
+	}
+	
+	/**
+	 * Merges many JSON arrays into a single one.
+	 */
+	private String coalesce(ArrayList<Frame> frames) {
+		if (frames.size() == 1) return frames.get(0).json;
+		StringBuilder sb = new StringBuilder();
+		sb.append('[');
+		for (Frame frame : frames) {
+			String json = frame.json;
+			if (json.length() <= 2) continue; // Empty array
+			if (sb.length() > 1) sb.append(',');
+			sb.append(json, 1, json.length()-1);
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+	
+	private static class Frame {
+		public final String json;
+		public final long queuedOn;
+		
+		public Frame(String json) {
+			this.json = json;
+			this.queuedOn = System.nanoTime();
 		}
 	}
 }
@@ -0,0 +1,196 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+
+package com.sonicle.webtop.core.app;
+
+import com.sonicle.webtop.core.app.util.NamedThreadFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+
+/**
+ * Holds the shared executor that drains {@link PushConnection} outbound 
+ * queues, together with the delivery policy and the delivery metrics.
+ * 
+ * @author malbinola
+ */
+public class PushDeliveryService {
+	private static final Logger logger = WT.getLogger(PushDeliveryService.class);
+	
+	public static enum OverflowPolicy {
+		/**
+		 * Discards the oldest queued frame to make room for the new one.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Discards the new frame.
+		 */
+		DROP_NEWEST
+	}
+	
+	private final ExecutorService executor;
+	private final ScheduledExecutorService retryScheduler;
+	private final int queueCapacity;
+	private final OverflowPolicy overflowPolicy;
+	private final AtomicLong queuedFrames = new AtomicLong(0);
+	private final AtomicLong droppedFrames = new AtomicLong(0);
+	private final AtomicLong sentFrames = new AtomicLong(0);
+	private final AtomicLong sentWrites = new AtomicLong(0);
+	private final AtomicLong totalLatency = new AtomicLong(0);
+	private final AtomicLong maxLatency = new AtomicLong(0);
+	
+	/**
+	 * @param threads Number of delivery threads.
+	 * @param queueCapacity Max number of frames waiting on each connection.
+	 * @param overflowPolicy What to do when a connection queue is full.
+	 */
+	public PushDeliveryService(int threads, int queueCapacity, OverflowPolicy overflowPolicy) {
+		this.executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("webtop-push"));
+		this.retryScheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("webtop-push-retry"));
+		this.queueCapacity = queueCapacity;
+		this.overflowPolicy = overflowPolicy;
+	}
+	
+	public void shutdown() {
+		retryScheduler.shutdownNow();
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(5, TimeUnit.SECONDS)) executor.shutdownNow();
+		} catch(InterruptedException ex) {
+			executor.shutdownNow();
+		}
+		logger.debug("Push delivery stats: {}", toString());
+	}
+	
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+	
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+	
+	/**
+	 * @return Frames currently waiting in all connection queues.
+	 */
+	public long getQueuedFrames() {
+		return queuedFrames.get();
+	}
+	
+	public long getDroppedFrames() {
+		return droppedFrames.get();
+	}
+	
+	public long getSentFrames() {
+		return sentFrames.get();
+	}
+	
+	/**
+	 * @return Number of writes done on resources (each one may carry many coalesced frames).
+	 */
+	public long getSentWrites() {
+		return sentWrites.get();
+	}
+	
+	/**
+	 * @return Average time (ms) elapsed between frame enqueuing and its write.
+	 */
+	public double getAvgSendLatency() {
+		long frames = sentFrames.get();
+		return (frames == 0) ? 0 : (double)TimeUnit.NANOSECONDS.toMillis(totalLatency.get()) / frames;
+	}
+	
+	/**
+	 * @return Max time (ms) elapsed between frame enqueuing and its write.
+	 */
+	public long getMaxSendLatency() {
+		return TimeUnit.NANOSECONDS.toMillis(maxLatency.get());
+	}
+	
+	void execute(Runnable task) {
+		executor.execute(task);
+	}
+	
+	/**
+	 * Runs the task on the delivery executor after the specified delay.
+	 * No delivery thread is kept busy while waiting.
+	 * @param task The task to run.
+	 * @param delay Delay (ms) before running.
+	 * @param onRejected Called if the task cannot be handed to the executor (eg. shutting down).
+	 */
+	void executeLater(final Runnable task, long delay, final Runnable onRejected) {
+		retryScheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					executor.execute(task);
+				} catch(RejectedExecutionException ex) {
+					onRejected.run();
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	void onQueued() {
+		queuedFrames.incrementAndGet();
+	}
+	
+	void onDropped(int count) {
+		droppedFrames.addAndGet(count);
+	}
+	
+	void onDequeued(int count) {
+		queuedFrames.addAndGet(-count);
+	}
+	
+	void onSent(int frames, long latencySum, long latencyMax) {
+		sentWrites.incrementAndGet();
+		sentFrames.addAndGet(frames);
+		totalLatency.addAndGet(latencySum);
+		long max = maxLatency.get();
+		while ((latencyMax > max) && !maxLatency.compareAndSet(max, latencyMax)) {
+			max = maxLatency.get();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "queued=" + getQueuedFrames() + ", dropped=" + getDroppedFrames() + ", sentFrames=" + getSentFrames() 
+				+ ", sentWrites=" + getSentWrites() + ", avgLatency=" + getAvgSendLatency() + "ms, maxLatency=" + getMaxSendLatency() + "ms";
+	}
+}
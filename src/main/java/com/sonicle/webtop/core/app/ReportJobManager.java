@@ -0,0 +1,407 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+package com.sonicle.webtop.core.app;
+
+import com.sonicle.webtop.core.CoreServiceSettings;
+import com.sonicle.webtop.core.app.util.NamedThreadFactory;
+import com.sonicle.webtop.core.io.output.AbstractReport;
+import com.sonicle.webtop.core.msg.ReportJobMessage;
+import com.sonicle.webtop.core.sdk.UserProfileId;
+import com.sonicle.webtop.core.sdk.WTException;
+import com.sonicle.webtop.core.util.IdentifierUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sf.jasperreports.engine.JRException;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+
+/**
+ * Renders reports asynchronously, out of servlet threads.
+ * Jobs are rendered by a dedicated bounded pool honouring a max number of
+ * concurrent jobs per domain; results are written into session-bound temp
+ * files and the owning session is notified on completion.
+ * 
+ * @author malbinola
+ */
+public class ReportJobManager {
+	private static final Logger logger = WT.getLogger(ReportJobManager.class);
+	private static boolean initialized = false;
+	private static final long JOB_RETENTION = 60 * 60 * 1000; // 1 hour
+	private static final long PRUNE_INTERVAL = 10; // minutes
+	
+	/**
+	 * Initialization method. This method should be called once.
+	 * @param wta WebTopApp instance.
+	 * @return The instance.
+	 */
+	public static synchronized ReportJobManager initialize(WebTopApp wta) {
+		if (initialized) throw new RuntimeException("Initialization already done");
+		ReportJobManager rjm = new ReportJobManager(wta);
+		initialized = true;
+		logger.info("Initialized");
+		return rjm;
+	}
+	
+	private WebTopApp wta = null;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService pruner;
+	private final int maxQueued;
+	private final int maxPerDomain;
+	private final Object lock = new Object();
+	private final HashMap<String, DomainSlot> slots = new HashMap<>();
+	private int queued = 0;
+	private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, ReportMetrics> metrics = new ConcurrentHashMap<>();
+	
+	/**
+	 * Private constructor.
+	 * Instances of this class must be created using static initialize method.
+	 * @param wta WebTopApp instance.
+	 */
+	private ReportJobManager(WebTopApp wta) {
+		this.wta = wta;
+		CoreServiceSettings css = new CoreServiceSettings(CoreManifest.ID, "*");
+		this.maxQueued = Math.max(1, css.getReportJobsQueueSize());
+		this.maxPerDomain = Math.max(1, css.getReportJobsDomainMaxConcurrent());
+		this.executor = Executors.newFixedThreadPool(Math.max(1, css.getReportJobsThreads()), new NamedThreadFactory("webtop-report", true, Thread.NORM_PRIORITY - 1));
+		this.pruner = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("webtop-reportpruner", true, Thread.MIN_PRIORITY));
+		this.pruner.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					pruneJobs();
+				} catch(Throwable t) {
+					logger.error("Error pruning report jobs", t);
+				}
+			}
+		}, PRUNE_INTERVAL, PRUNE_INTERVAL, TimeUnit.MINUTES);
+	}
+	
+	/**
+	 * Performs cleanup process.
+	 */
+	void cleanup() {
+		pruner.shutdownNow();
+		executor.shutdownNow();
+		synchronized(lock) {
+			slots.clear();
+			queued = 0;
+		}
+		jobs.clear();
+		wta = null;
+		logger.info("Cleaned up");
+	}
+	
+	/**
+	 * Queues a report for rendering.
+	 * @param profileId The profile requesting the report.
+	 * @param sessionId The session that will own the result.
+	 * @param report The report to render.
+	 * @param outputType The desired output.
+	 * @return The queued job.
+	 * @throws WTException If the queue is full.
+	 */
+	public Job submit(UserProfileId profileId, String sessionId, AbstractReport report, AbstractReport.OutputType outputType) throws WTException {
+		Job job = new Job(IdentifierUtils.getUUIDTimeBased(true), profileId, sessionId, report, outputType);
+		synchronized(lock) {
+			if (queued >= maxQueued) throw new WTException("Too many queued reports, please try again later");
+			DomainSlot slot = slots.get(job.domainId);
+			if (slot == null) {
+				slot = new DomainSlot();
+				slots.put(job.domainId, slot);
+			}
+			jobs.put(job.id, job);
+			slot.pending.add(job);
+			queued++;
+			dispatch(slot);
+		}
+		return job;
+	}
+	
+	/**
+	 * Returns the job with the specified ID, if still available.
+	 * @param jobId The job ID.
+	 * @param sessionId The session ID.
+	 * @return The job or null if not found or not owned by the session.
+	 */
+	public Job getJob(String jobId, String sessionId) {
+		Job job = jobs.get(jobId);
+		return ((job != null) && job.sessionId.equals(sessionId)) ? job : null;
+	}
+	
+	/**
+	 * Returns the job result, checking that it is owned by the session.
+	 * @param jobId The job ID.
+	 * @param sessionId The session ID.
+	 * @return The file containing the rendered report.
+	 * @throws WTException If job is not found or not completed.
+	 */
+	public File getJobResult(String jobId, String sessionId) throws WTException {
+		Job job = jobs.get(jobId);
+		if ((job == null) || !job.sessionId.equals(sessionId)) throw new WTException("Report job not found [{0}]", jobId);
+		if (job.status != JobStatus.COMPLETED) throw new WTException("Report job not completed [{0}, {1}]", jobId, job.status);
+		return new File(wta.getTempPath(job.domainId), job.resultFilename);
+	}
+	
+	/**
+	 * Removes a job, deleting its result. Queued jobs are not rendered.
+	 * @param jobId The job ID.
+	 * @param sessionId The session ID.
+	 */
+	public void removeJob(String jobId, String sessionId) {
+		Job job = jobs.get(jobId);
+		if ((job == null) || !job.sessionId.equals(sessionId)) return;
+		synchronized(lock) {
+			DomainSlot slot = slots.get(job.domainId);
+			if ((slot != null) && slot.pending.remove(job)) {
+				queued--;
+				job.status = JobStatus.CANCELED;
+			}
+		}
+		jobs.remove(jobId);
+		deleteResult(job);
+	}
+	
+	public String getStats() {
+		StringBuilder sb = new StringBuilder();
+		synchronized(lock) {
+			sb.append("queued=").append(queued).append("/").append(maxQueued);
+		}
+		sb.append(", jobs=").append(jobs.size());
+		for (Map.Entry<String, ReportMetrics> entry : metrics.entrySet()) {
+			sb.append(", ").append(entry.getKey()).append("{").append(entry.getValue()).append("}");
+		}
+		return sb.toString();
+	}
+	
+	private void dispatch(DomainSlot slot) {
+		while ((slot.running < maxPerDomain) && !slot.pending.isEmpty()) {
+			final Job job = slot.pending.poll();
+			slot.running++;
+			queued--;
+			executor.execute(new JobTask(job, slot));
+		}
+	}
+	
+	private void render(Job job) {
+		job.startedOn = System.currentTimeMillis();
+		job.status = JobStatus.RUNNING;
+		
+		FileOutputStream fos = null;
+		File file = null;
+		try {
+			file = wta.createTempFile(job.domainId, "report-", "." + job.outputType.name().toLowerCase());
+			job.resultFilename = file.getName();
+			fos = new FileOutputStream(file);
+			wta.getReportManager().generateToStream(job.domainId, job.report, job.outputType, fos);
+			fos.close();
+			wta.getTempFileManager().track(job.domainId, file.getName(), job.sessionId);
+			job.status = JobStatus.COMPLETED;
+			
+		} catch(IOException | JRException | WTException ex) {
+			logger.error("Unable to render report [{}, {}]", job.reportName, job.id, ex);
+			job.error = ex.getMessage();
+			job.status = JobStatus.FAILED;
+		} finally {
+			IOUtils.closeQuietly(fos);
+			job.finishedOn = System.currentTimeMillis();
+			job.report = null;
+			if ((job.status != JobStatus.COMPLETED) || !jobs.containsKey(job.id)) deleteResult(job);
+		}
+		
+		getMetrics(job.reportName).update(job.startedOn - job.submittedOn, job.finishedOn - job.startedOn, job.status == JobStatus.COMPLETED);
+		wta.getSessionManager().push(job.sessionId, new ReportJobMessage(job));
+	}
+	
+	private void deleteResult(Job job) {
+		if (job.resultFilename == null) return;
+		try {
+			wta.deleteTempFile(job.domainId, job.resultFilename);
+		} catch(WTException ex) {
+			logger.warn("Unable to delete report result [{}]", job.resultFilename, ex);
+		}
+	}
+	
+	private void pruneJobs() {
+		final long limit = System.currentTimeMillis() - JOB_RETENTION;
+		Iterator<Job> it = jobs.values().iterator();
+		while (it.hasNext()) {
+			Job job = it.next();
+			if ((job.finishedOn > 0) && (job.finishedOn < limit)) {
+				it.remove();
+				deleteResult(job);
+			}
+		}
+	}
+	
+	private ReportMetrics getMetrics(String reportName) {
+		ReportMetrics rm = metrics.get(reportName);
+		if (rm == null) {
+			rm = new ReportMetrics();
+			ReportMetrics existing = metrics.putIfAbsent(reportName, rm);
+			if (existing != null) rm = existing;
+		}
+		return rm;
+	}
+	
+	private class JobTask implements Runnable {
+		private final Job job;
+		private final DomainSlot slot;
+		
+		public JobTask(Job job, DomainSlot slot) {
+			this.job = job;
+			this.slot = slot;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				render(job);
+			} catch(Throwable t) {
+				logger.error("Unexpected error rendering report [{}]", job.id, t);
+			} finally {
+				synchronized(lock) {
+					slot.running--;
+					dispatch(slot);
+				}
+			}
+		}
+	}
+	
+	private static class DomainSlot {
+		public final ArrayDeque<Job> pending = new ArrayDeque<>();
+		public int running = 0;
+	}
+	
+	private static class ReportMetrics {
+		private final AtomicLong completed = new AtomicLong(0);
+		private final AtomicLong failed = new AtomicLong(0);
+		private final AtomicLong queueTimeTotal = new AtomicLong(0);
+		private final AtomicLong renderTimeTotal = new AtomicLong(0);
+		private volatile long queueTimeMax = 0;
+		private volatile long renderTimeMax = 0;
+		
+		public synchronized void update(long queueTime, long renderTime, boolean success) {
+			if (success) {
+				completed.incrementAndGet();
+			} else {
+				failed.incrementAndGet();
+			}
+			queueTimeTotal.addAndGet(queueTime);
+			renderTimeTotal.addAndGet(renderTime);
+			if (queueTime > queueTimeMax) queueTimeMax = queueTime;
+			if (renderTime > renderTimeMax) renderTimeMax = renderTime;
+		}
+		
+		@Override
+		public String toString() {
+			final long count = completed.get() + failed.get();
+			return "completed=" + completed.get() + ", failed=" + failed.get()
+					+ ", avgQueueMs=" + ((count > 0) ? queueTimeTotal.get() / count : 0) + ", maxQueueMs=" + queueTimeMax
+					+ ", avgRenderMs=" + ((count > 0) ? renderTimeTotal.get() / count : 0) + ", maxRenderMs=" + renderTimeMax;
+		}
+	}
+	
+	public static enum JobStatus {
+		QUEUED, RUNNING, COMPLETED, FAILED, CANCELED
+	}
+	
+	public static class Job {
+		private final String id;
+		private final String domainId;
+		private final String sessionId;
+		private final String reportName;
+		private final AbstractReport.OutputType outputType;
+		private final long submittedOn;
+		private AbstractReport report;
+		private volatile JobStatus status = JobStatus.QUEUED;
+		private volatile long startedOn = 0;
+		private volatile long finishedOn = 0;
+		private volatile String resultFilename = null;
+		private volatile String error = null;
+		
+		private Job(String id, UserProfileId profileId, String sessionId, AbstractReport report, AbstractReport.OutputType outputType) {
+			this.id = id;
+			this.domainId = profileId.getDomainId();
+			this.sessionId = sessionId;
+			this.reportName = report.getName();
+			this.outputType = outputType;
+			this.report = report;
+			this.submittedOn = System.currentTimeMillis();
+		}
+		
+		public String getId() {
+			return id;
+		}
+		
+		public String getReportName() {
+			return reportName;
+		}
+		
+		public AbstractReport.OutputType getOutputType() {
+			return outputType;
+		}
+		
+		public JobStatus getStatus() {
+			return status;
+		}
+		
+		public String getError() {
+			return error;
+		}
+		
+		public long getSubmittedOn() {
+			return submittedOn;
+		}
+		
+		public long getStartedOn() {
+			return startedOn;
+		}
+		
+		public long getFinishedOn() {
+			return finishedOn;
+		}
+	}
+}
@@ -34,19 +34,34 @@
 package com.sonicle.webtop.core.app;
 
 import com.sonicle.commons.LangUtils;
+import com.sonicle.webtop.core.CoreServiceSettings;
 import com.sonicle.webtop.core.io.output.AbstractReport;
+import com.sonicle.webtop.core.sdk.ConcurrentCache;
 import com.sonicle.webtop.core.sdk.WTException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Locale;
 import java.util.ResourceBundle;
+import java.util.jar.JarEntry;
 import net.sf.jasperreports.engine.JRException;
 import net.sf.jasperreports.engine.JRParameter;
+import net.sf.jasperreports.engine.JRVirtualizer;
 import net.sf.jasperreports.engine.JasperExportManager;
 import net.sf.jasperreports.engine.JasperFillManager;
 import net.sf.jasperreports.engine.JasperPrint;
+import net.sf.jasperreports.engine.JasperReport;
+import net.sf.jasperreports.engine.export.HtmlExporter;
+import net.sf.jasperreports.engine.fill.JRGzipVirtualizer;
+import net.sf.jasperreports.engine.fill.JRSwapFileVirtualizer;
+import net.sf.jasperreports.engine.util.JRLoader;
+import net.sf.jasperreports.engine.util.JRSwapFile;
+import net.sf.jasperreports.export.SimpleExporterInput;
+import net.sf.jasperreports.export.SimpleHtmlExporterOutput;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
@@ -73,6 +88,14 @@ public class ReportManager {
 	}
 	
 	private WebTopApp wta = null;
+	private final ConcurrentCache<String, CompiledReport> cacheReports = ConcurrentCache.builder()
+			.name("reports")
+			.maximumSize(200)
+			.build();
+	private final ConcurrentCache<String, ResourceBundle> cacheBundles = ConcurrentCache.builder()
+			.name("reportBundles")
+			.maximumSize(500)
+			.build();
 	
 	/**
 	 * Private constructor.
@@ -87,31 +110,33 @@ public class ReportManager {
 	 * Performs cleanup process.
 	 */
 	void cleanup() {
+		cacheReports.clear();
+		cacheBundles.clear();
 		wta = null;
 		logger.info("Cleaned up");
 	}
 	
+	/**
+	 * Clears compiled reports and resource bundles caches.
+	 */
+	public void clearCaches() {
+		cacheReports.clear();
+		cacheBundles.clear();
+	}
+	
 	private void exportReportToPdfStream(JasperPrint jasperPrint, OutputStream outputStream) throws JRException {
 		JasperExportManager.exportReportToPdfStream(jasperPrint, outputStream);
 	}
 	
-	private void exportReportToHtmlStream(String domainId, JasperPrint jasperPrint, OutputStream outputStream) throws JRException, WTException {
-		File temp = wta.createTempFile(domainId);
-		FileInputStream fis = null;
-		try {
-			JasperExportManager.exportReportToHtmlFile(jasperPrint, temp.getAbsolutePath());
-			fis = new FileInputStream(temp);
-			IOUtils.copy(fis, outputStream);
-		} catch (IOException ex) {
-			throw new WTException(ex);
-		} finally {
-			IOUtils.closeQuietly(fis);
-			wta.deleteTempFile(domainId, temp.getName());
-		}
+	private void exportReportToHtmlStream(JasperPrint jasperPrint, OutputStream outputStream) throws JRException {
+		HtmlExporter exporter = new HtmlExporter();
+		exporter.setExporterInput(new SimpleExporterInput(jasperPrint));
+		exporter.setExporterOutput(new SimpleHtmlExporterOutput(outputStream, "UTF-8"));
+		exporter.exportReport();
 	}
 	
 	public void generateToStream(String domainId, AbstractReport report, AbstractReport.OutputType outputType, OutputStream outputStream) throws JRException, WTException {
-		InputStream rptIs = null;
+		JRVirtualizer virtualizer = null;
 		
 		try {
 			if(!StringUtils.isBlank(report.getResourceBundleName())) {
@@ -119,33 +144,102 @@ public class ReportManager {
 				report.getParameters().put(JRParameter.REPORT_RESOURCE_BUNDLE, bundle);
 			}
 			
-			rptIs = loadReport(report);
-			JasperPrint jp = JasperFillManager.fillReport(rptIs, report.getParameters(), report.getDataSource());
+			virtualizer = createVirtualizer(domainId);
+			if (virtualizer != null) report.getParameters().put(JRParameter.REPORT_VIRTUALIZER, virtualizer);
+			
+			JasperReport jr = loadReport(report);
+			JasperPrint jp = JasperFillManager.fillReport(jr, report.getParameters(), report.getDataSource());
+			if (virtualizer != null) virtualizer.setReadOnly(true);
 			switch(outputType) {
 				case HTML:
-					exportReportToHtmlStream(domainId, jp, outputStream);
+					exportReportToHtmlStream(jp, outputStream);
 					break;
 				case PDF:
 					exportReportToPdfStream(jp, outputStream);
 					break;
 			}
 		} finally {
-			IOUtils.closeQuietly(rptIs);
+			if (virtualizer != null) {
+				report.getParameters().remove(JRParameter.REPORT_VIRTUALIZER);
+				virtualizer.cleanup();
+			}
+		}
+	}
+	
+	private JRVirtualizer createVirtualizer(String domainId) {
+		CoreServiceSettings css = new CoreServiceSettings(CoreManifest.ID, "*");
+		String type = css.getReportVirtualizer();
+		int maxSize = css.getReportVirtualizerMaxSize();
+		if ("swap".equalsIgnoreCase(type)) {
+			JRSwapFile swapFile = new JRSwapFile(wta.getTempPath(domainId), 4096, 128);
+			return new JRSwapFileVirtualizer(maxSize, swapFile, true);
+		} else if ("gzip".equalsIgnoreCase(type)) {
+			return new JRGzipVirtualizer(maxSize);
+		} else {
+			return null;
 		}
 	}
 	
 	private ResourceBundle loadResourceBundle(AbstractReport report) throws WTException {
-		if(report.getConfig().getLocale() == null) throw new WTException("Locale is required if /'HasResourceBundle/' is set to true");
+		final Locale locale = report.getConfig().getLocale();
+		if(locale == null) throw new WTException("Locale is required if /'HasResourceBundle/' is set to true");
 		String path = report.getPath() + report.getResourceBundleName();
-		return ResourceBundle.getBundle(path, report.getConfig().getLocale());
+		String key = path + "@" + locale.toString();
+		ResourceBundle bundle = cacheBundles.getIfPresent(key);
+		if (bundle == null) {
+			bundle = cacheBundles.put(key, ResourceBundle.getBundle(path, locale));
+		}
+		return bundle;
 	}
 	
-	private InputStream loadReport(AbstractReport report) throws WTException {
+	private JasperReport loadReport(AbstractReport report) throws WTException {
 		String rptName = report.getName() + ".jasper";
 		String path = report.getPath() + rptName;
 		ClassLoader cl = LangUtils.findClassLoader(report.getClass());
-		InputStream is = cl.getResourceAsStream(path);
-		if(is == null) throw new WTException("Unable to load resource [{0}]", path);
-		return is;
+		URL url = cl.getResource(path);
+		if(url == null) throw new WTException("Unable to load resource [{0}]", path);
+		
+		// Compiled report is reused until its resource changes
+		long timestamp = getResourceTimestamp(url);
+		String key = url.toExternalForm();
+		CompiledReport cached = cacheReports.getIfPresent(key);
+		if ((cached != null) && (cached.timestamp == timestamp)) return cached.report;
+		
+		InputStream is = null;
+		try {
+			is = url.openStream();
+			JasperReport jr = (JasperReport)JRLoader.loadObject(is);
+			cacheReports.put(key, new CompiledReport(jr, timestamp));
+			return jr;
+			
+		} catch(IOException | JRException ex) {
+			throw new WTException(ex, "Unable to load resource [{0}]", path);
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+	
+	private long getResourceTimestamp(URL url) {
+		try {
+			if ("file".equals(url.getProtocol())) {
+				return new File(url.toURI()).lastModified();
+			} else if ("jar".equals(url.getProtocol())) {
+				JarEntry entry = ((JarURLConnection)url.openConnection()).getJarEntry();
+				return (entry != null) ? entry.getTime() : 0;
+			}
+		} catch(IOException | URISyntaxException ex) {
+			logger.trace("Unable to get resource timestamp [{}]", url, ex);
+		}
+		return 0;
+	}
+	
+	private static class CompiledReport {
+		public final JasperReport report;
+		public final long timestamp;
+		
+		public CompiledReport(JasperReport report, long timestamp) {
+			this.report = report;
+			this.timestamp = timestamp;
+		}
 	}
 }
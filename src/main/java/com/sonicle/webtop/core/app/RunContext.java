@@ -37,9 +37,11 @@ import com.sonicle.security.Principal;
 import com.sonicle.webtop.core.model.ServicePermission;
 import com.sonicle.webtop.core.sdk.AuthException;
 import com.sonicle.webtop.core.sdk.UserProfileId;
+import java.util.List;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.UnavailableSecurityManagerException;
 import org.apache.shiro.subject.PrincipalCollection;
 import org.apache.shiro.subject.SimplePrincipalCollection;
 import org.apache.shiro.subject.Subject;
@@ -51,6 +53,7 @@ import org.apache.shiro.web.subject.WebSubject;
  * @author malbinola
  */
 public class RunContext {
+	private static final PermissionIndex permissionIndex = new PermissionIndex();
 	
 	public static Subject buildSubject(SecurityManager securityManager, UserProfileId profileId) {
 		Principal principal = new Principal(profileId.getDomainId(), profileId.getUserId());
@@ -134,6 +137,45 @@ public class RunContext {
 		return isPermitted(buildPrincipalCollection(profileId), serviceId, key, action, instance);
 	}
 	
+	/**
+	 * Evaluates many permissions at once for the running subject.
+	 * @param checks Permissions to check.
+	 * @return Decisions, in the same order of passed checks.
+	 */
+	public static boolean[] arePermitted(List<PermissionCheck> checks) {
+		return arePermitted(getSubject(), checks);
+	}
+	
+	public static boolean[] arePermitted(Subject subject, List<PermissionCheck> checks) {
+		PrincipalCollection principals = subject.getPrincipals();
+		if (principals.isEmpty()) return new boolean[checks.size()];
+		return arePermitted(principals, checks);
+	}
+	
+	public static boolean[] arePermitted(UserProfileId profileId, List<PermissionCheck> checks) {
+		return arePermitted(buildPrincipalCollection(profileId), checks);
+	}
+	
+	/**
+	 * Discards any computed authorization decision. This must be called 
+	 * after changes on roles, their associations or their permissions.
+	 */
+	public static void invalidatePermissions() {
+		SecurityManager manager = null;
+		try {
+			manager = SecurityUtils.getSecurityManager();
+		} catch(UnavailableSecurityManagerException ex) { /* Clears local index only */ }
+		permissionIndex.invalidate(manager);
+	}
+	
+	public static long getPermissionsVersion() {
+		return permissionIndex.getVersion();
+	}
+	
+	public static String getPermissionIndexStats() {
+		return permissionIndex.getStats();
+	}
+	
 	public static boolean isSysAdmin() {
 		return isSysAdmin(getSubject());
 	}
@@ -240,18 +282,36 @@ public class RunContext {
 	
 	private static boolean isPermitted(PrincipalCollection principals, String serviceId, String key, String action, String instance) {
 		SecurityManager manager = SecurityUtils.getSecurityManager();
-		if(manager.isPermitted(principals, WebTopManager.WTADMIN_PSTRING)) return true;
-		return manager.isPermitted(principals, ServicePermission.permissionString(ServicePermission.namespacedName(serviceId, key), action, instance));
+		boolean[] bools = permissionIndex.isPermitted(manager, principals, new String[]{
+			WebTopManager.WTADMIN_PSTRING,
+			ServicePermission.permissionString(ServicePermission.namespacedName(serviceId, key), action, instance)
+		});
+		return bools[0] || bools[1];
+	}
+	
+	private static boolean[] arePermitted(PrincipalCollection principals, List<PermissionCheck> checks) {
+		SecurityManager manager = SecurityUtils.getSecurityManager();
+		String[] permissions = new String[checks.size() + 1];
+		permissions[0] = WebTopManager.WTADMIN_PSTRING;
+		for (int i = 0; i < checks.size(); i++) {
+			permissions[i + 1] = checks.get(i).toPermissionString();
+		}
+		boolean[] bools = permissionIndex.isPermitted(manager, principals, permissions);
+		boolean[] result = new boolean[checks.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = bools[0] || bools[i + 1];
+		}
+		return result;
 	}
 	
 	private static boolean isSysAdmin(PrincipalCollection principals) {
 		SecurityManager manager = SecurityUtils.getSecurityManager();
-		return manager.isPermitted(principals, WebTopManager.SYSADMIN_PSTRING);
+		return permissionIndex.isPermitted(manager, principals, WebTopManager.SYSADMIN_PSTRING);
 	}
 	
 	private static boolean isWebTopAdmin(PrincipalCollection principals) {
 		SecurityManager manager = SecurityUtils.getSecurityManager();
-		return manager.isPermitted(principals, WebTopManager.WTADMIN_PSTRING);
+		return permissionIndex.isPermitted(manager, principals, WebTopManager.WTADMIN_PSTRING);
 	}
 	
 	private static void ensureIsPermitted(PrincipalCollection principals, String serviceId, String key) throws AuthException {
@@ -273,4 +333,29 @@ public class RunContext {
 	private static void ensureIsWebTopAdmin(PrincipalCollection principals) throws AuthException {
 		if(!isWebTopAdmin(principals)) throw new AuthException("WebTopAdmin is required");
 	}
+	
+	/**
+	 * A (serviceId, key, action, instance) tuple to be evaluated in bulk.
+	 */
+	public static class PermissionCheck {
+		public final String serviceId;
+		public final String key;
+		public final String action;
+		public final String instance;
+		
+		public PermissionCheck(String serviceId, String key, String action) {
+			this(serviceId, key, action, "*");
+		}
+		
+		public PermissionCheck(String serviceId, String key, String action, String instance) {
+			this.serviceId = serviceId;
+			this.key = key;
+			this.action = action;
+			this.instance = instance;
+		}
+		
+		public String toPermissionString() {
+			return ServicePermission.permissionString(ServicePermission.namespacedName(serviceId, key), action, instance);
+		}
+	}
 }
@@ -274,6 +274,9 @@ public class ServiceManager {
 			requireAdmin = requireAdmin | postUpgradeServiceDb(desc, upgradeTag, dbAutoUpgrade);
 		}
 		
+		// Upgrade scripts may have changed settings tables...
+		wta.getSettingsManager().clearCache();
+		
 		boolean newMaintenance = true;
 		if (requireAdmin) {
 			logger.info("SysAdmin intervention is needed!");
@@ -1223,6 +1226,8 @@ public class ServiceManager {
 		try {
 			targetCon = getUpgradeStatementConnection(conMgr, statement);
 			boolean ret = executeUpgradeStatement(targetCon, statement, ignoreErrors);
+			// Statements may have changed settings tables...
+			wta.getSettingsManager().clearCache();
 			try {
 				con = conMgr.getConnection();
 				upgdao.update(con, statement);
@@ -33,29 +33,22 @@
  */
 package com.sonicle.webtop.core.app;
 
-import com.sonicle.commons.db.DbUtils;
 import com.sonicle.commons.web.ServletUtils;
-import com.sonicle.commons.web.json.JsonResult;
-import com.sonicle.webtop.core.bol.OMessageQueue;
-import com.sonicle.webtop.core.dal.MessageQueueDAO;
 import com.sonicle.webtop.core.sdk.ServiceMessage;
 import com.sonicle.webtop.core.sdk.UserProfileId;
 import com.sonicle.webtop.core.sdk.WTException;
-import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import javax.servlet.http.HttpSession;
 import org.apache.shiro.subject.Subject;
 import org.atmosphere.cpr.AtmosphereResource;
 import org.atmosphere.cpr.FrameworkConfig;
-import org.joda.time.DateTime;
-import org.joda.time.DateTimeZone;
 import org.slf4j.Logger;
 
 /**
@@ -93,14 +86,23 @@ public class SessionManager {
 	public static final String ATTRIBUTE_GUESSING_LOCALE = "Locale";
 	public static final String ATTRIBUTE_GUESSING_USERNAME = "UserName";
 	
+	private static final int PROFILE_LOCK_STRIPES = 64;
+	private static final int PUSH_QUEUE_CAPACITY = 500;
+	private static final int OFFLINE_QUEUE_BATCH_SIZE = 200;
+	private static final long OFFLINE_QUEUE_FLUSH_INTERVAL = 1000;
+	private static final int OFFLINE_QUEUE_MAX_DEPTH = 500;
+	private static final long OFFLINE_QUEUE_TTL = 30L * 24 * 60 * 60 * 1000;
+	
 	private WebTopApp wta = null;
-	private final Object lock = new Object();
-	private final LinkedHashMap<String, WebTopSession> onlineSessions = new LinkedHashMap<>();
-	private final HashSet<String> onlineClienTrackingIds = new HashSet<>();
-	private final HashMap<UserProfileId, ProfileSids> profileSidsCache = new HashMap<>();
-	private final HashMap<String, String> uuidToSessionId = new HashMap<>();
-	private final HashMap<String, PushConnectionList> pushConnections = new HashMap<>();
-	private static class PushConnectionList extends LinkedHashMap<String, PushConnection> {}
+	private final PushDeliveryService pushDelivery;
+	private final OfflineMessageQueue offlineQueue;
+	private final Object[] profileLocks = createLockStripes(PROFILE_LOCK_STRIPES);
+	private final ConcurrentHashMap<String, WebTopSession> onlineSessions = new ConcurrentHashMap<>();
+	private final Set<String> onlineClienTrackingIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final ConcurrentHashMap<UserProfileId, ProfileSids> profileSidsCache = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, String> uuidToSessionId = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, PushConnectionList> pushConnections = new ConcurrentHashMap<>();
+	private static class PushConnectionList extends ConcurrentHashMap<String, PushConnection> {}
 	
 	/**
 	 * Private constructor.
@@ -109,12 +111,17 @@ public class SessionManager {
 	 */
 	private SessionManager(WebTopApp wta) {
 		this.wta = wta;
+		int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+		this.pushDelivery = new PushDeliveryService(threads, PUSH_QUEUE_CAPACITY, PushDeliveryService.OverflowPolicy.DROP_OLDEST);
+		this.offlineQueue = new OfflineMessageQueue(OFFLINE_QUEUE_BATCH_SIZE, OFFLINE_QUEUE_FLUSH_INTERVAL, OFFLINE_QUEUE_MAX_DEPTH, OFFLINE_QUEUE_TTL);
 	}
 	
 	/**
 	 * Performs cleanup process.
 	 */
 	void cleanup() {
+		pushDelivery.shutdown();
+		offlineQueue.shutdown();
 		onlineSessions.clear();
 		onlineClienTrackingIds.clear();
 		profileSidsCache.clear();
@@ -129,20 +136,22 @@ public class SessionManager {
 	}
 	
 	public boolean push(String sessionId, Collection<ServiceMessage> messages) {
-		synchronized(lock) {
-			if (onlineSessions.containsKey(sessionId)) {
-				PushConnectionList pushCons = pushConnections.get(sessionId);
-				if (pushCons != null) {
-					for(PushConnection pushCon : pushCons.values()) {
-						pushCon.send(messages);
-					}
-					return true;
-				} else {
-					logger.error("PushConnection not available [{}]", sessionId);
+		return push(sessionId, PushConnection.toJson(messages));
+	}
+	
+	private boolean push(String sessionId, String jsonMessages) {
+		if (onlineSessions.containsKey(sessionId)) {
+			PushConnectionList pushCons = pushConnections.get(sessionId);
+			if (pushCons != null) {
+				for(PushConnection pushCon : pushCons.values()) {
+					pushCon.send(jsonMessages);
 				}
+				return true;
+			} else {
+				logger.error("PushConnection not available [{}]", sessionId);
 			}
-			return false;
 		}
+		return false;
 	}
 	
 	public void push(UserProfileId profileId, ServiceMessage message, boolean enqueueIfOffline) {
@@ -150,36 +159,38 @@ public class SessionManager {
 	}
 	
 	public void push(UserProfileId profileId, Collection<ServiceMessage> messages, boolean enqueueIfOffline) {
-		synchronized(lock) {
-			ProfileSids sessionIds = profileSidsCache.get(profileId);
-			if ((sessionIds != null) && !sessionIds.isEmpty()) {
-				for(String sessionId : profileSidsCache.get(profileId)) {
-					push(sessionId, messages);
-				}
-			} else {
-				if (enqueueIfOffline) {
-					enqueueMessages(profileId, messages);
-				}
+		ProfileSids sessionIds = profileSidsCache.get(profileId);
+		if ((sessionIds != null) && !sessionIds.isEmpty()) {
+			// Serialize payload once for all sessions
+			String jsonMessages = PushConnection.toJson(messages);
+			for(String sessionId : sessionIds) {
+				push(sessionId, jsonMessages);
+			}
+		} else {
+			if (enqueueIfOffline) {
+				enqueueMessages(profileId, messages);
 			}
 		}
 	}
 	
 	void registerWebTopSession(WebTopSession webtopSession) throws WTException {
 		String sessionId = webtopSession.getId();
-		synchronized(lock) {
-			if (onlineSessions.containsKey(sessionId)) throw new WTException("Session [{0}] is already registered", sessionId);
+		UserProfileId profileId = webtopSession.getProfileId();
+		if (profileId == null) throw new WTException("Session [{0}] is not bound to a user", sessionId);
+		
+		synchronized(getProfileLock(profileId)) {
+			if (onlineSessions.putIfAbsent(sessionId, webtopSession) != null) throw new WTException("Session [{0}] is already registered", sessionId);
 			
-			UserProfileId profileId = webtopSession.getProfileId();
-			if (profileId == null) throw new WTException("Session [{0}] is not bound to a user", sessionId);
-
-			onlineSessions.put(sessionId, webtopSession);
 			pushConnections.put(sessionId, new PushConnectionList());
-			if (profileSidsCache.get(profileId) == null) profileSidsCache.put(profileId, new ProfileSids());
-			profileSidsCache.get(profileId).add(sessionId);
+			ProfileSids sessionIds = profileSidsCache.get(profileId);
+			if (sessionIds == null) {
+				sessionIds = new ProfileSids();
+				profileSidsCache.put(profileId, sessionIds);
+			}
+			sessionIds.add(sessionId);
 			onlineClienTrackingIds.add(profileId.toString() + "|" + webtopSession.getClientTrackingID());
-			
-			logger.trace("Session registered [{}, {}]", sessionId, webtopSession.getProfileId());
 		}
+		logger.trace("Session registered [{}, {}]", sessionId, profileId);
 	}
 	
 	public void onContainerSessionCreated(HttpSession session) {
@@ -189,53 +200,78 @@ public class SessionManager {
 	public void onContainerSessionDestroyed(HttpSession session) {
 		WebTopSession webtopSession = SessionContext.getWebTopSession(session);
 		if (webtopSession != null) {
-			synchronized(lock) {
-				try {
-					String sessionId = webtopSession.getId();
-					String clientTrackingId = webtopSession.getClientTrackingID();
-					UserProfileId profileId = webtopSession.getProfileId(); // Extract userProfile info before cleaning session!
-					
-					onlineSessions.remove(sessionId);
-					pushConnections.remove(sessionId);
-					if (profileId != null) {
-						if (profileSidsCache.containsKey(profileId)) {
-							// List at key may have not been prepared. Incase of 
-							// active OPT configuration session is effectively 
-							// only after code validation.
-							profileSidsCache.get(profileId).remove(sessionId);
+			try {
+				String sessionId = webtopSession.getId();
+				String clientTrackingId = webtopSession.getClientTrackingID();
+				UserProfileId profileId = webtopSession.getProfileId(); // Extract userProfile info before cleaning session!
+				
+				if (profileId != null) {
+					synchronized(getProfileLock(profileId)) {
+						unregisterSession(sessionId);
+						// List at key may have not been prepared. Incase of 
+						// active OPT configuration session is effectively 
+						// only after code validation.
+						ProfileSids sessionIds = profileSidsCache.get(profileId);
+						if (sessionIds != null) {
+							sessionIds.remove(sessionId);
+							if (sessionIds.isEmpty()) profileSidsCache.remove(profileId);
 						}
 						onlineClienTrackingIds.remove(profileId.toString() + "|" + clientTrackingId);
 					}
-					
-					webtopSession.cleanup();
-					if (profileId != null) {
-						wta.getLogManager().write(profileId, CoreManifest.ID, "LOGOUT", null, SessionContext.getClientRemoteIP(session), SessionContext.getClientPlainUserAgent(session), sessionId, null);
-					}
-					
-					logger.trace("Session unregistered [{}, {}]", sessionId, profileId);
-					
-				} catch(Throwable t) {
-					logger.error("Error destroying session", t);
+				} else {
+					unregisterSession(sessionId);
+				}
+				
+				// Session cleanup and logging do not need registry consistency: keep them outside locks
+				webtopSession.cleanup();
+				if (profileId != null) {
+					wta.getLogManager().write(profileId, CoreManifest.ID, "LOGOUT", null, SessionContext.getClientRemoteIP(session), SessionContext.getClientPlainUserAgent(session), sessionId, null);
 				}
+				
+				logger.trace("Session unregistered [{}, {}]", sessionId, profileId);
+				
+			} catch(Throwable t) {
+				logger.error("Error destroying session", t);
 			}
 		}
 	}
 	
+	private void unregisterSession(String sessionId) {
+		onlineSessions.remove(sessionId);
+		pushConnections.remove(sessionId);
+	}
+	
 	public void onPushResourceConnect(AtmosphereResource resource) {
 		HttpSession session = resource.session(false);
 		if (session != null) {
 			String sessionId = session.getId();
 			String uuid = resource.uuid();
 			
-			synchronized(lock) {
-				WebTopSession webtopSession = onlineSessions.get(sessionId);
-				String oldSessionId = uuidToSessionId.put(uuid, sessionId);
-				if (oldSessionId != null) logger.warn("uuid mapped with multiple sessions [{} -> {}, {}]", uuid, oldSessionId, sessionId);
-				PushConnection pushCon = new PushConnection(resource, listEnqueuedMessages(webtopSession.getProfileId()));
-				pushConnections.get(sessionId).put(uuid, pushCon);
-				pushCon.flush();
-				logger.trace("Push connection added [{}@{}]", uuid, sessionId);
+			WebTopSession webtopSession = onlineSessions.get(sessionId);
+			PushConnectionList pushCons = pushConnections.get(sessionId);
+			if ((webtopSession == null) || (pushCons == null)) {
+				logger.debug("WebTopSession not registered [{}@{}]", uuid, sessionId);
+				return;
+			}
+			String oldSessionId = uuidToSessionId.put(uuid, sessionId);
+			if (oldSessionId != null) logger.warn("uuid mapped with multiple sessions [{} -> {}, {}]", uuid, oldSessionId, sessionId);
+			
+			// Offline messages are read before publishing the connection: no locks held during DB access
+			final UserProfileId profileId = webtopSession.getProfileId();
+			final List<ServiceMessage> messages = listEnqueuedMessages(profileId);
+			PushConnection pushCon = new PushConnection(resource, messages, pushDelivery);
+			pushCons.put(uuid, pushCon);
+			if (pushConnections.get(sessionId) != pushCons) {
+				// Session has been unregistered in the meantime: claimed messages go back to the queue
+				pushCons.remove(uuid, pushCon);
+				uuidToSessionId.remove(uuid, sessionId);
+				pushCon.close();
+				if (!messages.isEmpty()) enqueueMessages(profileId, messages);
+				logger.debug("WebTopSession unregistered while connecting [{}@{}]", uuid, sessionId);
+				return;
 			}
+			pushCon.flush();
+			logger.trace("Push connection added [{}@{}]", uuid, sessionId);
 		}
 		///Subject subject = (Subject)resource.getRequest().getAttribute(FrameworkConfig.SECURITY_SUBJECT);
 	}
@@ -246,19 +282,18 @@ public class SessionManager {
 			String sessionId = session.getId();
 			String uuid = resource.uuid();
 			
-			synchronized(lock) {
-				WebTopSession webtopSession = onlineSessions.get(sessionId);
-				if (webtopSession == null) {
-					logger.debug("WebTopSession is null [{}@{}]", uuid, sessionId);
-				}
-				uuidToSessionId.remove(uuid);
-				PushConnection pushCon = pushConnections.get(sessionId).remove(uuid);
-				if (pushCon != null) {
-					pushCon.close();
-					logger.trace("Push link closed [{}]", uuid);
-				}
-				logger.trace("Push connection removed [{}@{}]", uuid, sessionId);
+			WebTopSession webtopSession = onlineSessions.get(sessionId);
+			if (webtopSession == null) {
+				logger.debug("WebTopSession is null [{}@{}]", uuid, sessionId);
+			}
+			uuidToSessionId.remove(uuid);
+			PushConnectionList pushCons = pushConnections.get(sessionId);
+			PushConnection pushCon = (pushCons != null) ? pushCons.remove(uuid) : null;
+			if (pushCon != null) {
+				pushCon.close();
+				logger.trace("Push link closed [{}]", uuid);
 			}
+			logger.trace("Push connection removed [{}@{}]", uuid, sessionId);
 		}
 	}
 	
@@ -273,63 +308,46 @@ public class SessionManager {
 		} 	
 	}
 	
-	private ArrayList<ServiceMessage> listEnqueuedMessages(UserProfileId profileId) {
-		ArrayList<ServiceMessage> messages = new ArrayList<>();
-		MessageQueueDAO mqDao = MessageQueueDAO.getInstance();
-		Connection con = null;
-		
-		try {
-			con = WT.getCoreConnection();
-			// Mark user's messages as "under process" and gets them
-			String pid = UUID.randomUUID().toString();
-			mqDao.updatePidIfNullByDomainUser(con, profileId.getDomainId(), profileId.getUserId(), pid);
-			List<OMessageQueue> queued = mqDao.selectByPid(con, pid);
-			
-			if (!queued.isEmpty()) {
-				Class clazz = null;
-				for(OMessageQueue message : queued) {
-					try {
-						clazz = Class.forName(message.getMessageType());
-						messages.add((ServiceMessage)JsonResult.gson.fromJson(message.getMessageRaw(), clazz));
-					} catch(Exception ex1) {
-						logger.warn("Unable to unserialize message [{}] for [{}]", message.getMessageType(), profileId.toString(), ex1);
-					}
-				}
-				mqDao.deleteByPid(con, pid);
-			}
-		} catch(Exception ex) {
-			logger.error("Error adding offline messages", ex);
-		} finally {
-			DbUtils.closeQuietly(con);
-		}
-		return messages;
+	private List<ServiceMessage> listEnqueuedMessages(UserProfileId profileId) {
+		return offlineQueue.drain(profileId);
 	}
 	
 	private void enqueueMessages(UserProfileId profileId, Collection<ServiceMessage> messages) {
-		MessageQueueDAO mqDao = MessageQueueDAO.getInstance();
-		Connection con = null;
-		
-		try {
-			con = WT.getCoreConnection(false);
-			OMessageQueue queued = null;
-			for(ServiceMessage message : messages) {
-				queued = new OMessageQueue();
-				queued.setQueueId(mqDao.getSequence(con).intValue());
-				queued.setDomainId(profileId.getDomainId());
-				queued.setUserId(profileId.getUserId());
-				queued.setMessageType(message.getClass().getName());
-				queued.setMessageRaw(JsonResult.gson.toJson(message));
-				queued.setQueuedOn(DateTime.now(DateTimeZone.UTC));
-				mqDao.insert(con, queued);
+		offlineQueue.enqueue(profileId, messages);
+	}
+	
+	/**
+	 * Deletes offline messages that are waiting since too long.
+	 * @return Number of deleted messages.
+	 */
+	public int pruneExpiredMessages() {
+		return offlineQueue.pruneExpired();
+	}
+	
+	/**
+	 * Returns the service that delivers push messages, useful to 
+	 * monitor queue depth and send latency.
+	 * @return The delivery service.
+	 */
+	public PushDeliveryService getPushDeliveryService() {
+		return pushDelivery;
+	}
+	
+	/**
+	 * Returns the number of push frames waiting to be delivered to the 
+	 * specified session.
+	 * @param sessionId The session ID.
+	 * @return Queued frames.
+	 */
+	public int getPushQueueDepth(String sessionId) {
+		int depth = 0;
+		PushConnectionList pushCons = pushConnections.get(sessionId);
+		if (pushCons != null) {
+			for(PushConnection pushCon : pushCons.values()) {
+				depth += pushCon.getQueueDepth();
 			}
-			DbUtils.commitQuietly(con);
-			
-		} catch(Throwable t) {
-			DbUtils.rollbackQuietly(con);
-			logger.error("Error enqueuing messages", t);
-		} finally {
-			DbUtils.closeQuietly(con);
 		}
+		return depth;
 	}
 	
 	public WebTopSession getWebTopSession(String sessionId) {
@@ -338,11 +356,11 @@ public class SessionManager {
 	
 	public List<WebTopSession> getWebTopSessions(UserProfileId profileId) {
 		List<WebTopSession> list = new ArrayList<>();
-		synchronized(lock) {
-			if(profileSidsCache.get(profileId) != null) {
-				for(String sid : profileSidsCache.get(profileId)) {
-					list.add(onlineSessions.get(sid));
-				}
+		ProfileSids sessionIds = profileSidsCache.get(profileId);
+		if (sessionIds != null) {
+			for(String sid : sessionIds) {
+				WebTopSession webtopSession = onlineSessions.get(sid);
+				if (webtopSession != null) list.add(webtopSession);
 			}
 		}
 		return list;
@@ -356,7 +374,19 @@ public class SessionManager {
 		return onlineClienTrackingIds.contains(profileId.toString() + "|" + webtopClientId);
 	}
 	
-	private static class ProfileSids extends HashSet<String> {
+	private Object getProfileLock(UserProfileId profileId) {
+		return profileLocks[(profileId.hashCode() & 0x7fffffff) % profileLocks.length];
+	}
+	
+	private static Object[] createLockStripes(int size) {
+		Object[] locks = new Object[size];
+		for (int i = 0; i < size; i++) {
+			locks[i] = new Object();
+		}
+		return locks;
+	}
+	
+	private static class ProfileSids extends CopyOnWriteArraySet<String> {
 		public ProfileSids() {
 			super();
 		}
@@ -0,0 +1,439 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+
+package com.sonicle.webtop.core.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+
+/**
+ * Tiered (system/domain/user) in-memory cache used by {@link SettingsManager}.
+ * Values are grouped into buckets: one bucket per service (system tier), 
+ * per domain/service (domain tier) and per domain/user/service (user tier).
+ * Each tier is bounded in number of buckets (approximate LRU) and buckets 
+ * expire after a fixed time-to-live, so changes made directly on the 
+ * database are eventually picked-up anyway.
+ * Look-ups take no locks. Values read from the database are published 
+ * only if their bucket has not been written or invalidated in the meantime:
+ * callers take a {@link #stamp} before reading and pass it when loading.
+ * 
+ * @author malbinola
+ */
+public class SettingsCache {
+	private static final Logger logger = WT.getLogger(SettingsCache.class);
+	private static final String SEPARATOR = "|";
+	
+	/**
+	 * Marker object used to remember that a key is not defined.
+	 */
+	static final Object MISSING = new Object();
+	
+	public static enum Scope {
+		SYSTEM, DOMAIN, USER
+	}
+	
+	private final Tier systemTier;
+	private final Tier domainTier;
+	private final Tier userTier;
+	private final CopyOnWriteArrayList<InvalidationListener> listeners = new CopyOnWriteArrayList<>();
+	
+	public SettingsCache(int maxSystemBuckets, int maxDomainBuckets, int maxUserBuckets, long ttl) {
+		this.systemTier = new Tier(Scope.SYSTEM, maxSystemBuckets, ttl);
+		this.domainTier = new Tier(Scope.DOMAIN, maxDomainBuckets, ttl);
+		this.userTier = new Tier(Scope.USER, maxUserBuckets, ttl);
+	}
+	
+	public void addInvalidationListener(InvalidationListener listener) {
+		listeners.addIfAbsent(listener);
+	}
+	
+	public void removeInvalidationListener(InvalidationListener listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Looks-up a cached value.
+	 * @return The value, {@link #MISSING} if the key is known to be undefined 
+	 *         or null if the cache does not know anything about the key.
+	 */
+	Object lookup(Scope scope, String domainId, String userId, String serviceId, String key) {
+		Tier tier = getTier(scope);
+		Bucket bucket = tier.get(scopeKey(scope, domainId, userId, serviceId), false);
+		if (bucket == null) {
+			tier.misses.incrementAndGet();
+			return null;
+		}
+		Object value = bucket.values.get(key);
+		if ((value == null) && bucket.complete) value = MISSING;
+		if (value == null) {
+			tier.misses.incrementAndGet();
+		} else {
+			tier.hits.incrementAndGet();
+		}
+		return value;
+	}
+	
+	/**
+	 * Returns the current version of a scope bucket. It must be taken 
+	 * before reading values from the database and then passed to 
+	 * {@link #load} or {@link #loadAll}.
+	 */
+	long stamp(Scope scope, String domainId, String userId, String serviceId) {
+		return getTier(scope).version(scopeKey(scope, domainId, userId, serviceId));
+	}
+	
+	/**
+	 * Stores a value just read from the database. Values written in the 
+	 * meantime by {@link #write} are never replaced by this method, and 
+	 * nothing is stored if the bucket changed since the stamp was taken.
+	 */
+	void load(Scope scope, String domainId, String userId, String serviceId, String key, String value, long stamp) {
+		Tier tier = getTier(scope);
+		String skey = scopeKey(scope, domainId, userId, serviceId);
+		if (tier.version(skey) != stamp) return;
+		Bucket bucket = tier.get(skey, true);
+		Object cvalue = (value == null) ? MISSING : value;
+		if ((bucket.values.putIfAbsent(key, cvalue) == null) && (tier.version(skey) != stamp)) {
+			// Raced with a write or an invalidation: value may be stale
+			bucket.values.remove(key, cvalue);
+		}
+	}
+	
+	/**
+	 * Stores all values of a scope bucket just read from the database.
+	 * After this call, keys not in the map are considered as undefined.
+	 * Nothing is stored if the bucket changed since the stamp was taken.
+	 */
+	void loadAll(Scope scope, String domainId, String userId, String serviceId, Map<String, String> values, long stamp) {
+		Tier tier = getTier(scope);
+		String skey = scopeKey(scope, domainId, userId, serviceId);
+		if (tier.version(skey) != stamp) return;
+		Bucket bucket = tier.get(skey, true);
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			bucket.values.putIfAbsent(entry.getKey(), entry.getValue());
+		}
+		bucket.complete = true;
+		if (tier.version(skey) != stamp) {
+			// Raced with a write or an invalidation: drop the whole bucket
+			tier.remove(skey, bucket);
+		}
+	}
+	
+	/**
+	 * Returns a copy of a fully loaded bucket.
+	 * @return Defined values or null if bucket is not (fully) loaded.
+	 */
+	Map<String, String> copyLoaded(Scope scope, String domainId, String userId, String serviceId) {
+		Bucket bucket = getTier(scope).get(scopeKey(scope, domainId, userId, serviceId), false);
+		if ((bucket == null) || !bucket.complete) return null;
+		HashMap<String, String> values = new HashMap<>(bucket.values.size());
+		for (Map.Entry<String, Object> entry : bucket.values.entrySet()) {
+			if (entry.getValue() != MISSING) values.put(entry.getKey(), (String)entry.getValue());
+		}
+		return values;
+	}
+	
+	boolean isLoaded(Scope scope, String domainId, String userId, String serviceId) {
+		Bucket bucket = getTier(scope).get(scopeKey(scope, domainId, userId, serviceId), false);
+		return (bucket != null) && bucket.complete;
+	}
+	
+	/**
+	 * Reflects a successful write (value != null) or delete (value == null) 
+	 * into the cache and notifies listeners.
+	 */
+	void write(Scope scope, String domainId, String userId, String serviceId, String key, String value) {
+		Tier tier = getTier(scope);
+		String skey = scopeKey(scope, domainId, userId, serviceId);
+		tier.bump(skey);
+		Bucket bucket = tier.get(skey, true);
+		bucket.values.put(key, (value == null) ? MISSING : value);
+		fireInvalidated(scope, domainId, userId, serviceId, key);
+	}
+	
+	/**
+	 * Evicts cached data without notifying listeners.
+	 * Null arguments act as wildcards: eg. invalidate(USER, "domain", null, null, null)
+	 * evicts user settings of all users belonging to the specified domain.
+	 * This is the method to call when an invalidation comes from another node.
+	 */
+	public void invalidate(Scope scope, String domainId, String userId, String serviceId, String key) {
+		Tier tier = getTier(scope);
+		if (isFullScopeKey(scope, domainId, userId, serviceId)) {
+			String skey = scopeKey(scope, domainId, userId, serviceId);
+			if (key == null) {
+				tier.remove(skey);
+			} else {
+				tier.bump(skey);
+				Bucket bucket = tier.get(skey, false);
+				if (bucket != null) {
+					bucket.complete = false;
+					bucket.values.remove(key);
+				}
+			}
+		} else {
+			tier.removeByPrefix(scopePrefix(scope, domainId, userId));
+		}
+	}
+	
+	/**
+	 * Evicts cached data and notifies listeners.
+	 * Use this after changing settings tables outside {@link SettingsManager}.
+	 */
+	void invalidateAndNotify(Scope scope, String domainId, String userId, String serviceId) {
+		invalidate(scope, domainId, userId, serviceId, null);
+		fireInvalidated(scope, domainId, userId, serviceId, null);
+	}
+	
+	/**
+	 * Empties all tiers without notifying listeners.
+	 */
+	public void clear() {
+		systemTier.clear();
+		domainTier.clear();
+		userTier.clear();
+	}
+	
+	public String getStats() {
+		return systemTier.toString() + ", " + domainTier.toString() + ", " + userTier.toString();
+	}
+	
+	private void fireInvalidated(Scope scope, String domainId, String userId, String serviceId, String key) {
+		for (InvalidationListener listener : listeners) {
+			try {
+				listener.onInvalidated(scope, domainId, userId, serviceId, key);
+			} catch(Throwable t) {
+				logger.error("Invalidation listener error [{}]", listener.getClass().getName(), t);
+			}
+		}
+	}
+	
+	private Tier getTier(Scope scope) {
+		if (Scope.SYSTEM.equals(scope)) {
+			return systemTier;
+		} else if (Scope.DOMAIN.equals(scope)) {
+			return domainTier;
+		} else {
+			return userTier;
+		}
+	}
+	
+	private boolean isFullScopeKey(Scope scope, String domainId, String userId, String serviceId) {
+		if (serviceId == null) return false;
+		if (Scope.SYSTEM.equals(scope)) return true;
+		if (domainId == null) return false;
+		if (Scope.DOMAIN.equals(scope)) return true;
+		return (userId != null);
+	}
+	
+	private String scopeKey(Scope scope, String domainId, String userId, String serviceId) {
+		if (Scope.SYSTEM.equals(scope)) {
+			return serviceId;
+		} else if (Scope.DOMAIN.equals(scope)) {
+			return domainId + SEPARATOR + serviceId;
+		} else {
+			return domainId + SEPARATOR + userId + SEPARATOR + serviceId;
+		}
+	}
+	
+	private String scopePrefix(Scope scope, String domainId, String userId) {
+		if (Scope.SYSTEM.equals(scope) || (domainId == null)) return "";
+		if (Scope.DOMAIN.equals(scope) || (userId == null)) return domainId + SEPARATOR;
+		return domainId + SEPARATOR + userId + SEPARATOR;
+	}
+	
+	/**
+	 * Hook notified every time settings are changed through this node.
+	 * Implementations can forward these events to other nodes sharing the 
+	 * same database, which in turn should call {@link #invalidate} 
+	 * (or {@link SettingsManager#invalidateCache}) on their own cache.
+	 * Null arguments means "any value".
+	 */
+	public static interface InvalidationListener {
+		public void onInvalidated(Scope scope, String domainId, String userId, String serviceId, String key);
+	}
+	
+	private static class Bucket {
+		public final long createdOn = System.currentTimeMillis();
+		public final ConcurrentHashMap<String, Object> values = new ConcurrentHashMap<>();
+		public volatile boolean complete = false;
+		public volatile long accessedOn = createdOn;
+	}
+	
+	private static class Tier {
+		private static final int VERSION_STRIPES = 256;
+		private static final long ACCESS_RESOLUTION = 1000;
+		private final Scope scope;
+		private final int maxBuckets;
+		private final long ttl;
+		private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+		private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+		private final ReentrantLock evictionLock = new ReentrantLock();
+		public final AtomicLong hits = new AtomicLong(0);
+		public final AtomicLong misses = new AtomicLong(0);
+		
+		public Tier(Scope scope, int maxBuckets, long ttl) {
+			this.scope = scope;
+			this.maxBuckets = maxBuckets;
+			this.ttl = ttl;
+		}
+		
+		public Bucket get(String scopeKey, boolean create) {
+			final long now = System.currentTimeMillis();
+			Bucket bucket = buckets.get(scopeKey);
+			if ((bucket != null) && isExpired(bucket, now)) {
+				buckets.remove(scopeKey, bucket);
+				bucket = null;
+			}
+			if (bucket == null) {
+				if (!create) return null;
+				final Bucket newBucket = new Bucket();
+				bucket = buckets.putIfAbsent(scopeKey, newBucket);
+				if (bucket == null) {
+					bucket = newBucket;
+					if (buckets.size() > maxBuckets) evict(now);
+				}
+			}
+			// Access time is approximate: avoids writing a shared field on every read
+			if ((now - bucket.accessedOn) > ACCESS_RESOLUTION) bucket.accessedOn = now;
+			return bucket;
+		}
+		
+		public long version(String scopeKey) {
+			return versions.get(stripe(scopeKey));
+		}
+		
+		public void bump(String scopeKey) {
+			versions.incrementAndGet(stripe(scopeKey));
+		}
+		
+		public void remove(String scopeKey) {
+			bump(scopeKey);
+			buckets.remove(scopeKey);
+		}
+		
+		public void remove(String scopeKey, Bucket bucket) {
+			buckets.remove(scopeKey, bucket);
+		}
+		
+		public void removeByPrefix(String prefix) {
+			bumpAll();
+			if (StringUtils.isEmpty(prefix)) {
+				buckets.clear();
+			} else {
+				Iterator<String> it = buckets.keySet().iterator();
+				while (it.hasNext()) {
+					if (it.next().startsWith(prefix)) it.remove();
+				}
+			}
+		}
+		
+		public void clear() {
+			bumpAll();
+			buckets.clear();
+		}
+		
+		private void bumpAll() {
+			for (int i = 0; i < VERSION_STRIPES; i++) {
+				versions.incrementAndGet(i);
+			}
+		}
+		
+		private void evict(long now) {
+			// A single thread evicts at a time, others go on without waiting
+			if (!evictionLock.tryLock()) return;
+			try {
+				// Access times are copied: they may change while sorting
+				ArrayList<Candidate> candidates = new ArrayList<>(buckets.size());
+				for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+					candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+				}
+				int excess = candidates.size() - maxBuckets;
+				if (excess <= 0) return;
+				Collections.sort(candidates, new Comparator<Candidate>() {
+					@Override
+					public int compare(Candidate o1, Candidate o2) {
+						return Long.compare(o1.accessedOn, o2.accessedOn);
+					}
+				});
+				// Evicts some more entries than needed in order to amortize sorting
+				excess += maxBuckets / 10;
+				for (Candidate candidate : candidates) {
+					if ((excess-- <= 0) && !isExpired(candidate.bucket, now)) break;
+					buckets.remove(candidate.scopeKey, candidate.bucket);
+				}
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+		
+		private int stripe(String scopeKey) {
+			int h = scopeKey.hashCode();
+			h ^= (h >>> 16);
+			return h & (VERSION_STRIPES - 1);
+		}
+		
+		private boolean isExpired(Bucket bucket, long now) {
+			return (ttl > 0) && ((now - bucket.createdOn) > ttl);
+		}
+		
+		@Override
+		public String toString() {
+			return scope.name() + "[size=" + buckets.size() + ", hits=" + hits.get() + ", misses=" + misses.get() + "]";
+		}
+		
+		private static class Candidate {
+			public final String scopeKey;
+			public final Bucket bucket;
+			public final long accessedOn;
+			
+			public Candidate(String scopeKey, Bucket bucket) {
+				this.scopeKey = scopeKey;
+				this.bucket = bucket;
+				this.accessedOn = bucket.accessedOn;
+			}
+		}
+	}
+}
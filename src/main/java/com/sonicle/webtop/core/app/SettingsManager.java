@@ -50,12 +50,17 @@ import com.sonicle.webtop.core.dal.SettingDAO;
 import com.sonicle.webtop.core.dal.SettingDbDAO;
 import com.sonicle.webtop.core.dal.UserSettingDAO;
 import com.sonicle.webtop.core.sdk.UserProfileId;
+import com.sonicle.webtop.core.sdk.WTException;
 import com.sonicle.webtop.core.sdk.interfaces.IServiceSettingManager;
 import com.sonicle.webtop.core.sdk.interfaces.ISettingManager;
 import com.sonicle.webtop.core.sdk.interfaces.IUserSettingManager;
 import java.sql.Connection;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 
@@ -81,7 +86,13 @@ public final class SettingsManager implements IServiceSettingReader, IServiceSet
 		return setm;
 	}
 	
+	private static final int CACHE_MAX_SYSTEM_BUCKETS = 500;
+	private static final int CACHE_MAX_DOMAIN_BUCKETS = 5000;
+	private static final int CACHE_MAX_USER_BUCKETS = 50000;
+	private static final long CACHE_TTL = 10 * 60 * 1000;
+	
 	private WebTopApp wta = null;
+	private final SettingsCache cache;
 	
 	/**
 	 * Private constructor.
@@ -90,16 +101,172 @@ public final class SettingsManager implements IServiceSettingReader, IServiceSet
 	 */
 	private SettingsManager(WebTopApp wta) {
 		this.wta = wta;
+		this.cache = new SettingsCache(CACHE_MAX_SYSTEM_BUCKETS, CACHE_MAX_DOMAIN_BUCKETS, CACHE_MAX_USER_BUCKETS, CACHE_TTL);
 	}
 	
 	/**
 	 * Performs cleanup process.
 	 */
 	void cleanup() {
+		logger.debug("Settings cache stats: {}", cache.getStats());
+		cache.clear();
 		wta = null;
 		logger.info("Cleaned up");
 	}
 	
+	/**
+	 * Registers a listener that will be notified on every settings change 
+	 * made through this manager. It can be used to propagate invalidations 
+	 * to other nodes that share the same database.
+	 * @param listener The listener to add.
+	 */
+	public void addInvalidationListener(SettingsCache.InvalidationListener listener) {
+		cache.addInvalidationListener(listener);
+	}
+	
+	/**
+	 * Unregisters a previously added invalidation listener.
+	 * @param listener The listener to remove.
+	 */
+	public void removeInvalidationListener(SettingsCache.InvalidationListener listener) {
+		cache.removeInvalidationListener(listener);
+	}
+	
+	/**
+	 * Evicts cached settings. Listeners are NOT notified, so this is 
+	 * the entry-point for invalidations coming from other nodes.
+	 * Null arguments act as wildcards.
+	 * @param scope The settings tier.
+	 * @param domainId The domain ID.
+	 * @param userId The user ID.
+	 * @param serviceId The service ID.
+	 * @param key The name of the setting.
+	 */
+	public void invalidateCache(SettingsCache.Scope scope, String domainId, String userId, String serviceId, String key) {
+		cache.invalidate(scope, domainId, userId, serviceId, key);
+	}
+	
+	/**
+	 * Evicts all cached settings of the specified domain (domain and user tiers).
+	 * Call this after changing settings tables directly, bypassing this manager.
+	 * @param domainId The domain ID.
+	 */
+	public void invalidateDomainCache(String domainId) {
+		cache.invalidateAndNotify(SettingsCache.Scope.DOMAIN, domainId, null, null);
+		cache.invalidateAndNotify(SettingsCache.Scope.USER, domainId, null, null);
+	}
+	
+	/**
+	 * Empties the settings cache.
+	 */
+	public void clearCache() {
+		cache.clear();
+	}
+	
+	/**
+	 * Loads into cache all user settings of the specified services using 
+	 * a single query for each service. Subsequent reads of user settings 
+	 * for these services will not hit the database.
+	 * @param profileId The profile ID.
+	 * @param serviceIds The service IDs.
+	 */
+	public void preloadUserSettings(UserProfileId profileId, Collection<String> serviceIds) {
+		Connection con = null;
+		
+		try {
+			con = wta.getConnectionManager().getConnection(CoreManifest.ID);
+			for (String serviceId : serviceIds) {
+				if (cache.isLoaded(SettingsCache.Scope.USER, profileId.getDomainId(), profileId.getUserId(), serviceId)) continue;
+				loadUserSettings(con, profileId, serviceId, true);
+			}
+			
+		} catch (Exception ex) {
+			WebTopApp.logger.error("Unable to preload settings (user) [{}]", profileId, ex);
+		} finally {
+			DbUtils.closeQuietly(con);
+		}
+	}
+	
+	/**
+	 * Returns an immutable snapshot of all user settings of the specified 
+	 * service. At most one query is needed to build it.
+	 * @param profileId The profile ID.
+	 * @param serviceId The service ID.
+	 * @return The snapshot.
+	 * @throws WTException If settings cannot be read.
+	 */
+	public SettingsSnapshot getUserSettingsSnapshot(UserProfileId profileId, String serviceId) throws WTException {
+		Map<String, String> values = cache.copyLoaded(SettingsCache.Scope.USER, profileId.getDomainId(), profileId.getUserId(), serviceId);
+		if (values != null) return new SettingsSnapshot(this, profileId, serviceId, values);
+		
+		Connection con = null;
+		try {
+			con = wta.getConnectionManager().getConnection(CoreManifest.ID);
+			return new SettingsSnapshot(this, profileId, serviceId, loadUserSettings(con, profileId, serviceId, true));
+			
+		} catch (Exception ex) {
+			throw new WTException(ex, "Unable to read settings (user) [{0}, {1}]", profileId, serviceId);
+		} finally {
+			DbUtils.closeQuietly(con);
+		}
+	}
+	
+	/**
+	 * Returns snapshots of user settings for many profiles at once.
+	 * Profiles not already in cache are loaded using a single connection.
+	 * Callers that handle lots of profiles should pass them in batches.
+	 * @param profileIds The profile IDs.
+	 * @param serviceId The service ID.
+	 * @return Snapshots mapped by profile, in iteration order of passed IDs.
+	 * @throws WTException If settings cannot be read.
+	 */
+	public Map<UserProfileId, SettingsSnapshot> getUserSettingsSnapshots(Collection<UserProfileId> profileIds, String serviceId) throws WTException {
+		return getUserSettingsSnapshots(profileIds, serviceId, true);
+	}
+	
+	/**
+	 * Returns snapshots of user settings for many profiles at once.
+	 * Background tasks scanning lots of profiles should not populate the 
+	 * cache: they would evict settings of users actually logged-in.
+	 * @param profileIds The profile IDs.
+	 * @param serviceId The service ID.
+	 * @param populateCache False to leave the cache untouched for profiles not already loaded.
+	 * @return Snapshots mapped by profile, in iteration order of passed IDs.
+	 * @throws WTException If settings cannot be read.
+	 */
+	public Map<UserProfileId, SettingsSnapshot> getUserSettingsSnapshots(Collection<UserProfileId> profileIds, String serviceId, boolean populateCache) throws WTException {
+		LinkedHashMap<UserProfileId, SettingsSnapshot> snapshots = new LinkedHashMap<>(profileIds.size());
+		Connection con = null;
+		
+		try {
+			for (UserProfileId profileId : profileIds) {
+				Map<String, String> values = cache.copyLoaded(SettingsCache.Scope.USER, profileId.getDomainId(), profileId.getUserId(), serviceId);
+				if (values == null) {
+					if (con == null) con = wta.getConnectionManager().getConnection(CoreManifest.ID);
+					values = loadUserSettings(con, profileId, serviceId, populateCache);
+				}
+				snapshots.put(profileId, new SettingsSnapshot(this, profileId, serviceId, values));
+			}
+			return snapshots;
+			
+		} catch (Exception ex) {
+			throw new WTException(ex, "Unable to read settings (user) [{0}]", serviceId);
+		} finally {
+			DbUtils.closeQuietly(con);
+		}
+	}
+	
+	private Map<String, String> loadUserSettings(Connection con, UserProfileId profileId, String serviceId, boolean populateCache) throws Exception {
+		UserSettingDAO dao = UserSettingDAO.getInstance();
+		long stamp = cache.stamp(SettingsCache.Scope.USER, profileId.getDomainId(), profileId.getUserId(), serviceId);
+		HashMap<String, String> values = new HashMap<>();
+		for (OUserSetting item : dao.selectByDomainServiceUserKeyLike(con, profileId.getDomainId(), profileId.getUserId(), serviceId, "%")) {
+			values.put(item.getKey(), StringUtils.defaultString(item.getValue()));
+		}
+		if (populateCache) cache.loadAll(SettingsCache.Scope.USER, profileId.getDomainId(), profileId.getUserId(), serviceId, values, stamp);
+		return values;
+	}
+	
 	/**
 	 * Gets the setting (system) value indicated by the specified key.
 	 * Returns a null value if the key is not found.
@@ -108,14 +275,20 @@ public final class SettingsManager implements IServiceSettingReader, IServiceSet
 	 * @return The string value of the setting.
 	 */
 	private String getSetting(String serviceId, String key) {
+		Object cached = cache.lookup(SettingsCache.Scope.SYSTEM, null, null, serviceId, key);
+		if (cached != null) return (cached == SettingsCache.MISSING) ? null : (String)cached;
+		
 		SettingDAO dao = SettingDAO.getInstance();
 		Connection con = null;
 		OSetting item = null;
 		
 		try {
+			long stamp = cache.stamp(SettingsCache.Scope.SYSTEM, null, null, serviceId);
 			con = wta.getConnectionManager().getConnection(CoreManifest.ID);
 			item = dao.selectByServiceKey(con, serviceId, key);
-			return (item != null) ? StringUtils.defaultString(item.getValue()) : null;
+			String value = (item != null) ? StringUtils.defaultString(item.getValue()) : null;
+			cache.load(SettingsCache.Scope.SYSTEM, null, null, serviceId, key, value, stamp);
+			return value;
 
 		} catch (Exception ex) {
 			WebTopApp.logger.error("Unable to read setting [{}, {}]", serviceId, key, ex);
@@ -134,14 +307,20 @@ public final class SettingsManager implements IServiceSettingReader, IServiceSet
 	 * @return The string value of the setting.
 	 */
 	private String getSetting(String domainId, String serviceId, String key) {
+		Object cached = cache.lookup(SettingsCache.Scope.DOMAIN, domainId, null, serviceId, key);
+		if (cached != null) return (cached == SettingsCache.MISSING) ? null : (String)cached;
+		
 		DomainSettingDAO dao = DomainSettingDAO.getInstance();
 		Connection con = null;
 		ODomainSetting item = null;
 		
 		try {
+			long stamp = cache.stamp(SettingsCache.Scope.DOMAIN, domainId, null, serviceId);
 			con = wta.getConnectionManager().getConnection(CoreManifest.ID);
 			item = dao.selectByDomainServiceKey(con, domainId, serviceId, key);
-			return (item != null) ? StringUtils.defaultString(item.getValue()) : null;
+			String value = (item != null) ? StringUtils.defaultString(item.getValue()) : null;
+			cache.load(SettingsCache.Scope.DOMAIN, domainId, null, serviceId, key, value, stamp);
+			return value;
 
 		} catch (Exception ex) {
 			WebTopApp.logger.error("Unable to read setting (domain) [{}, {}, {}]", domainId, serviceId, key, ex);
@@ -161,14 +340,20 @@ public final class SettingsManager implements IServiceSettingReader, IServiceSet
 	 * @return The string value of the setting.
 	 */
 	private String getSetting(String domainId, String userId, String serviceId, String key) {
+		Object cached = cache.lookup(SettingsCache.Scope.USER, domainId, userId, serviceId, key);
+		if (cached != null) return (cached == SettingsCache.MISSING) ? null : (String)cached;
+		
 		UserSettingDAO dao = UserSettingDAO.getInstance();
 		Connection con = null;
 		OUserSetting item = null;
 		
 		try {
+			long stamp = cache.stamp(SettingsCache.Scope.USER, domainId, userId, serviceId);
 			con = wta.getConnectionManager().getConnection(CoreManifest.ID);
 			item = dao.selectByDomainUserServiceKey(con, domainId, userId, serviceId, key);
-			return (item != null) ? StringUtils.defaultString(item.getValue()) : null;
+			String value = (item != null) ? StringUtils.defaultString(item.getValue()) : null;
+			cache.load(SettingsCache.Scope.USER, domainId, userId, serviceId, key, value, stamp);
+			return value;
 
 		} catch (Exception ex) {
 			WebTopApp.logger.error("Unable to read user setting [{}, {}, {}, {}]", domainId, userId, serviceId, key, ex);
@@ -192,6 +377,7 @@ public final class SettingsManager implements IServiceSettingReader, IServiceSet
 		try {
 			con = wta.getConnectionManager().getConnection(CoreManifest.ID);
 			int ret = dao.deleteByServiceKey(con, serviceId, key);
+			cache.write(SettingsCache.Scope.SYSTEM, null, null, serviceId, key, null);
 			return (ret > 0);
 
 		} catch (Exception ex) {
@@ -216,6 +402,7 @@ public final class SettingsManager implements IServiceSettingReader, IServiceSet
 		try {
 			con = wta.getConnectionManager().getConnection(CoreManifest.ID);
 			int ret = dao.deleteByDomainServiceKey(con, domainId, serviceId, key);
+			cache.write(SettingsCache.Scope.DOMAIN, domainId, null, serviceId, key, null);
 			return (ret > 0);
 
 		} catch (Exception ex) {
@@ -298,6 +485,7 @@ public final class SettingsManager implements IServiceSettingReader, IServiceSet
 			
 			int ret = dao.update(con, item);
 			if(ret == 0) ret = dao.insert(con, item);
+			cache.write(SettingsCache.Scope.SYSTEM, null, null, serviceId, key, item.getValue());
 			return true;
 
 		} catch (Exception ex) {
@@ -332,6 +520,7 @@ public final class SettingsManager implements IServiceSettingReader, IServiceSet
 			
 			int ret = dao.update(con, item);
 			if(ret == 0) ret = dao.insert(con, item);
+			cache.write(SettingsCache.Scope.DOMAIN, domainId, null, serviceId, key, item.getValue());
 			return true;
 
 		} catch (Exception ex) {
@@ -487,6 +676,7 @@ public final class SettingsManager implements IServiceSettingReader, IServiceSet
 
 				int ret = dao.update(con, item);
 				if(ret == 0) ret = dao.insert(con, item);
+				cache.write(SettingsCache.Scope.USER, domainId, userId, serviceId, key, item.getValue());
 				return true;
 
 			} catch (Exception ex) {
@@ -529,6 +719,7 @@ public final class SettingsManager implements IServiceSettingReader, IServiceSet
 		try {
 			con = wta.getConnectionManager().getConnection(CoreManifest.ID);
 			int ret = dao.deleteByDomainServiceUserKey(con, domainId, userId, serviceId, key);
+			cache.write(SettingsCache.Scope.USER, domainId, userId, serviceId, key, null);
 			return (ret > 0);
 
 		} catch (Exception ex) {
@@ -546,6 +737,7 @@ public final class SettingsManager implements IServiceSettingReader, IServiceSet
 		try {
 			con = wta.getConnectionManager().getConnection(CoreManifest.ID);
 			int ret = dao.deleteByDomainUser(con, domainId, userId);
+			cache.invalidateAndNotify(SettingsCache.Scope.USER, domainId, userId, null);
 			return (ret > 0);
 
 		} catch (Exception ex) {
@@ -0,0 +1,89 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+
+package com.sonicle.webtop.core.app;
+
+import com.sonicle.webtop.core.sdk.UserProfileId;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Immutable view of all user settings of a (domain, user, service) tuple, 
+ * loaded at once by {@link SettingsManager#getUserSettingsSnapshot}.
+ * Keys not defined at user level are resolved (as usual) looking at 
+ * domain and system settings.
+ * 
+ * @author malbinola
+ */
+public final class SettingsSnapshot {
+	private final SettingsManager setMgr;
+	private final UserProfileId profileId;
+	private final String serviceId;
+	private final Map<String, String> userValues;
+	
+	SettingsSnapshot(SettingsManager setMgr, UserProfileId profileId, String serviceId, Map<String, String> userValues) {
+		this.setMgr = setMgr;
+		this.profileId = profileId;
+		this.serviceId = serviceId;
+		this.userValues = Collections.unmodifiableMap(userValues);
+	}
+	
+	public UserProfileId getProfileId() {
+		return profileId;
+	}
+	
+	public String getServiceId() {
+		return serviceId;
+	}
+	
+	/**
+	 * Returns settings defined at user level.
+	 * @return Read-only map of values.
+	 */
+	public Map<String, String> getUserValues() {
+		return userValues;
+	}
+	
+	/**
+	 * Gets the setting value using the same priority path of
+	 * {@link SettingsManager#getUserSetting(String, String, String, String)}.
+	 * @param key The name of the setting.
+	 * @return The string value of the setting.
+	 */
+	public String get(String key) {
+		String value = userValues.get(key);
+		if (value != null) return value;
+		return setMgr.getServiceSetting(profileId.getDomainId(), serviceId, key);
+	}
+}
@@ -0,0 +1,402 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+package com.sonicle.webtop.core.app;
+
+import com.sonicle.webtop.core.CoreServiceSettings;
+import com.sonicle.webtop.core.app.util.NamedThreadFactory;
+import com.sonicle.webtop.core.bol.ODomain;
+import com.sonicle.webtop.core.sdk.UploadException;
+import com.sonicle.webtop.core.sdk.WTException;
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+
+/**
+ * Keeps track of files living into domains' temp folders.
+ * Every file created through {@link WebTopApp#createTempFile(String)} is 
+ * indexed here, optionally bound to an owner (the WebTop session that 
+ * uploaded it) and accounted against domain and session quotas.
+ * A low-priority janitor periodically reclaims files left behind: files 
+ * whose owner session is gone and, only if a maximum age is configured, 
+ * files not bound to any session older than that age (also not indexed 
+ * ones, eg. left by a previous run).
+ * 
+ * @author malbinola
+ */
+public class TempFileManager {
+	private static final Logger logger = WT.getLogger(TempFileManager.class);
+	private static boolean initialized = false;
+	private static final long JANITOR_INTERVAL = 10; // minutes
+	
+	/**
+	 * Initialization method. This method should be called once.
+	 * @param wta WebTopApp instance.
+	 * @return The instance.
+	 */
+	public static synchronized TempFileManager initialize(WebTopApp wta) {
+		if (initialized) throw new RuntimeException("Initialization already done");
+		TempFileManager tmpm = new TempFileManager(wta);
+		initialized = true;
+		logger.info("Initialized");
+		return tmpm;
+	}
+	
+	private WebTopApp wta = null;
+	private final ConcurrentHashMap<String, TempFile> index = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, AtomicLong> domainBytes = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, AtomicLong> ownerBytes = new ConcurrentHashMap<>();
+	private final AtomicLong reclaimedFiles = new AtomicLong(0);
+	private final AtomicLong reclaimedBytes = new AtomicLong(0);
+	private final ScheduledExecutorService janitor;
+	
+	/**
+	 * Private constructor.
+	 * Instances of this class must be created using static initialize method.
+	 * @param wta WebTopApp instance.
+	 */
+	private TempFileManager(WebTopApp wta) {
+		this.wta = wta;
+		this.janitor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("webtop-tmpjanitor", true, Thread.MIN_PRIORITY));
+		this.janitor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reclaim();
+				} catch(Throwable t) {
+					logger.error("Error reclaiming temp files", t);
+				}
+			}
+		}, JANITOR_INTERVAL, JANITOR_INTERVAL, TimeUnit.MINUTES);
+	}
+	
+	/**
+	 * Performs cleanup process.
+	 */
+	void cleanup() {
+		janitor.shutdownNow();
+		index.clear();
+		domainBytes.clear();
+		ownerBytes.clear();
+		wta = null;
+		logger.info("Cleaned up");
+	}
+	
+	/**
+	 * Indexes a new temp file.
+	 * @param domainId The domain ID.
+	 * @param file The temp file.
+	 */
+	public void register(String domainId, File file) {
+		index.putIfAbsent(key(domainId, file.getName()), new TempFile(domainId, file));
+	}
+	
+	/**
+	 * Binds a temp file to an owner and refreshes its accounted size.
+	 * Call it again, after writing, to update the size.
+	 * @param domainId The domain ID.
+	 * @param filename The temp file name.
+	 * @param ownerId The owner (session) ID, null to leave unchanged.
+	 */
+	public void track(String domainId, String filename, String ownerId) {
+		TempFile tf = index.get(key(domainId, filename));
+		if (tf == null) {
+			File file = new File(wta.getTempPath(domainId), filename);
+			tf = new TempFile(domainId, file);
+			TempFile existing = index.putIfAbsent(key(domainId, filename), tf);
+			if (existing != null) tf = existing;
+		}
+		synchronized(tf) {
+			if ((ownerId != null) && !StringUtils.equals(ownerId, tf.ownerId)) {
+				account(tf, -tf.size);
+				tf.ownerId = ownerId;
+				account(tf, tf.size);
+			}
+			final long size = tf.file.length();
+			account(tf, size - tf.size);
+			tf.size = size;
+		}
+	}
+	
+	/**
+	 * Deletes a temp file, removing it from the index.
+	 * @param domainId The domain ID.
+	 * @param filename The temp file name.
+	 * @return True if the file was deleted
+	 */
+	public boolean delete(String domainId, String filename) {
+		TempFile tf = index.remove(key(domainId, filename));
+		if (tf != null) {
+			synchronized(tf) {
+				account(tf, -tf.size);
+				tf.size = 0;
+			}
+		}
+		return new File(wta.getTempPath(domainId), filename).delete();
+	}
+	
+	/**
+	 * Deletes all temp files bound to the specified owner.
+	 * @param ownerId The owner (session) ID.
+	 * @return Number of deleted files
+	 */
+	public int deleteByOwner(String ownerId) {
+		int count = 0;
+		for (TempFile tf : index.values()) {
+			if (StringUtils.equals(ownerId, tf.ownerId)) {
+				if (delete(tf.domainId, tf.file.getName())) count++;
+			}
+		}
+		ownerBytes.remove(ownerId);
+		return count;
+	}
+	
+	/**
+	 * Checks that adding the specified amount of bytes does not exceed 
+	 * quotas of the domain and of the owner.
+	 * This is only an early check on the declared size: use a 
+	 * {@link Reservation} to enforce quotas while data is being written.
+	 * @param domainId The domain ID.
+	 * @param ownerId The owner (session) ID, may be null.
+	 * @param bytes Bytes about to be written (0 if unknown).
+	 * @throws WTException If a quota would be exceeded.
+	 */
+	public void ensureQuota(String domainId, String ownerId, long bytes) throws WTException {
+		CoreServiceSettings css = new CoreServiceSettings(CoreManifest.ID, domainId);
+		final long domainMax = css.getTempDomainMaxSize();
+		if ((domainMax > 0) && (getBytes(domainBytes, domainId) + Math.max(0, bytes) > domainMax)) {
+			throw new WTException("Temp space quota exceeded for domain [{0}]", domainId);
+		}
+		final long sessionMax = css.getTempSessionMaxSize();
+		if ((ownerId != null) && (sessionMax > 0) && (getBytes(ownerBytes, ownerId) + Math.max(0, bytes) > sessionMax)) {
+			throw new WTException("Temp space quota exceeded for session");
+		}
+	}
+	
+	/**
+	 * Starts accounting bytes written into a temp file while they arrive, 
+	 * so that quotas are enforced regardless of the declared size.
+	 * The reservation must be released once writing ends, before the file 
+	 * is accounted through {@link #track(String, String, String)}.
+	 * @param domainId The domain ID.
+	 * @param ownerId The owner (session) ID, may be null.
+	 * @return The reservation
+	 */
+	public Reservation reserve(String domainId, String ownerId) {
+		CoreServiceSettings css = new CoreServiceSettings(CoreManifest.ID, domainId);
+		return new Reservation(domainId, ownerId, css.getTempDomainMaxSize(), css.getTempSessionMaxSize());
+	}
+	
+	/**
+	 * Returns the amount of bytes in use by indexed files of a domain.
+	 * @param domainId The domain ID.
+	 * @return Bytes in use
+	 */
+	public long getBytesInUse(String domainId) {
+		return getBytes(domainBytes, domainId);
+	}
+	
+	public String getStats() {
+		long total = 0;
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, AtomicLong> entry : domainBytes.entrySet()) {
+			total += entry.getValue().get();
+			sb.append(", ").append(entry.getKey()).append("=").append(entry.getValue().get());
+		}
+		return "files=" + index.size() + ", bytes=" + total + sb.toString() 
+				+ ", reclaimedFiles=" + reclaimedFiles.get() + ", reclaimedBytes=" + reclaimedBytes.get();
+	}
+	
+	/**
+	 * Reclaims files whose owner is gone and, if a maximum age is set, 
+	 * unowned files older than that age.
+	 */
+	void reclaim() {
+		if (wta == null) return;
+		final long now = System.currentTimeMillis();
+		final long maxAge = TimeUnit.MINUTES.toMillis(new CoreServiceSettings(CoreManifest.ID, "*").getTempMaxAge());
+		final SessionManager sesMgr = wta.getSessionManager();
+		
+		// Indexed files
+		Iterator<TempFile> it = index.values().iterator();
+		while (it.hasNext()) {
+			final TempFile tf = it.next();
+			if (!tf.file.exists()) {
+				// Deleted elsewhere or not yet written: drops the entry, if 
+				// the file shows up later it will be indexed again by tracking
+				forget(tf);
+				continue;
+			}
+			
+			// Owned files live as long as their session, others until max age
+			boolean orphan;
+			if ((tf.ownerId != null) && (sesMgr != null)) {
+				orphan = sesMgr.getWebTopSession(tf.ownerId) == null;
+			} else {
+				orphan = (maxAge > 0) && (now - tf.file.lastModified() > maxAge);
+			}
+			if (orphan) reclaim(tf.domainId, tf.file, tf.size);
+		}
+		if (maxAge <= 0) return;
+		
+		// Files not in index (eg. left by a crash): only age is considered
+		try {
+			for (ODomain domain : wta.getWebTopManager().listDomains(false)) {
+				final File[] files = new File(wta.getTempPath(domain.getDomainId())).listFiles();
+				if (files == null) continue;
+				for (File file : files) {
+					if (!file.isFile() || index.containsKey(key(domain.getDomainId(), file.getName()))) continue;
+					if (now - file.lastModified() > maxAge) reclaim(domain.getDomainId(), file, file.length());
+				}
+			}
+		} catch(WTException ex) {
+			logger.error("Unable to list domains", ex);
+		}
+	}
+	
+	private void reclaim(String domainId, File file, long size) {
+		final boolean deleted = delete(domainId, file.getName()) || !file.exists();
+		if (deleted) {
+			reclaimedFiles.incrementAndGet();
+			reclaimedBytes.addAndGet(size);
+			logger.debug("Temp file reclaimed [{}, {}]", domainId, file.getName());
+		}
+	}
+	
+	private void forget(TempFile tf) {
+		if (index.remove(key(tf.domainId, tf.file.getName()), tf)) {
+			synchronized(tf) {
+				account(tf, -tf.size);
+				tf.size = 0;
+			}
+		}
+	}
+	
+	private void account(TempFile tf, long delta) {
+		if (delta == 0) return;
+		addBytes(domainBytes, tf.domainId, delta);
+		if (tf.ownerId != null) addBytes(ownerBytes, tf.ownerId, delta);
+	}
+	
+	private static long addBytes(ConcurrentHashMap<String, AtomicLong> map, String key, long delta) {
+		AtomicLong value = map.get(key);
+		if (value == null) {
+			final AtomicLong newValue = new AtomicLong(0);
+			value = map.putIfAbsent(key, newValue);
+			if (value == null) value = newValue;
+		}
+		return value.addAndGet(delta);
+	}
+	
+	private static boolean tryAddBytes(ConcurrentHashMap<String, AtomicLong> map, String key, long delta, long max) {
+		final long total = addBytes(map, key, delta);
+		if ((max > 0) && (total > max)) {
+			addBytes(map, key, -delta);
+			return false;
+		}
+		return true;
+	}
+	
+	private static long getBytes(ConcurrentHashMap<String, AtomicLong> map, String key) {
+		final AtomicLong value = map.get(key);
+		return (value != null) ? value.get() : 0;
+	}
+	
+	private static String key(String domainId, String filename) {
+		return domainId + "/" + filename;
+	}
+	
+	/**
+	 * Bytes being written into a temp file, accounted against quotas 
+	 * as they arrive. It can be reused after being released.
+	 */
+	public class Reservation {
+		private final String domainId;
+		private final String ownerId;
+		private final long domainMax;
+		private final long sessionMax;
+		private long bytes = 0;
+		
+		private Reservation(String domainId, String ownerId, long domainMax, long sessionMax) {
+			this.domainId = domainId;
+			this.ownerId = ownerId;
+			this.domainMax = domainMax;
+			this.sessionMax = sessionMax;
+		}
+		
+		/**
+		 * Accounts further written bytes.
+		 * @param delta Number of bytes.
+		 * @throws UploadException If a quota gets exceeded.
+		 */
+		public synchronized void consume(long delta) throws UploadException {
+			if (!tryAddBytes(domainBytes, domainId, delta, domainMax)) {
+				throw new UploadException("Temp space quota exceeded for domain [{0}]", domainId);
+			}
+			if ((ownerId != null) && !tryAddBytes(ownerBytes, ownerId, delta, sessionMax)) {
+				addBytes(domainBytes, domainId, -delta);
+				throw new UploadException("Temp space quota exceeded for session");
+			}
+			bytes += delta;
+		}
+		
+		/**
+		 * Gives back accounted bytes.
+		 */
+		public synchronized void release() {
+			if (bytes == 0) return;
+			addBytes(domainBytes, domainId, -bytes);
+			if (ownerId != null) addBytes(ownerBytes, ownerId, -bytes);
+			bytes = 0;
+		}
+	}
+	
+	private static class TempFile {
+		public final String domainId;
+		public final File file;
+		public volatile String ownerId = null;
+		public volatile long size = 0;
+		
+		public TempFile(String domainId, File file) {
+			this.domainId = domainId;
+			this.file = file;
+		}
+	}
+}
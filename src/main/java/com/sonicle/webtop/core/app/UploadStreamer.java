@@ -0,0 +1,230 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+package com.sonicle.webtop.core.app;
+
+import com.sonicle.webtop.core.CoreServiceSettings;
+import com.sonicle.webtop.core.sdk.UploadException;
+import com.sonicle.webtop.core.sdk.WTException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Helper for writing uploaded content directly into the temp folder.
+ * Content is written once, while being read from the request, checking the
+ * domain size limit and temp space quotas and computing the checksum on the fly. It also keeps
+ * the per-domain count of uploads in progress.
+ * 
+ * @author malbinola
+ */
+class UploadStreamer {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final String DIGEST_ALGORITHM = "MD5";
+	private static final ConcurrentHashMap<String, DomainQuota> quotas = new ConcurrentHashMap<>();
+	
+	/**
+	 * Reserves a slot for a new upload in the specified domain.
+	 * @param domainId The domain ID.
+	 * @return The permit to release when the upload ends.
+	 * @throws UploadException If too many uploads are running.
+	 */
+	public static Permit acquire(String domainId) throws UploadException {
+		final int limit = new CoreServiceSettings(CoreManifest.ID, domainId).getUploadMaxConcurrent();
+		if (limit <= 0) return new Permit(null);
+		
+		DomainQuota quota = quotas.get(domainId);
+		while ((quota == null) || (quota.limit != limit)) {
+			// Uploads running on a replaced quota will release the old one
+			final DomainQuota newQuota = new DomainQuota(limit);
+			if (quota == null) {
+				final DomainQuota existing = quotas.putIfAbsent(domainId, newQuota);
+				quota = (existing != null) ? existing : newQuota;
+			} else if (quotas.replace(domainId, quota, newQuota)) {
+				quota = newQuota;
+			} else {
+				quota = quotas.get(domainId);
+			}
+		}
+		if (!quota.semaphore.tryAcquire()) {
+			throw new UploadException("Too many uploads in progress, please retry later");
+		}
+		return new Permit(quota.semaphore);
+	}
+	
+	public static long getMaxFileSize(String domainId) {
+		return new CoreServiceSettings(CoreManifest.ID, domainId).getUploadMaxFileSize();
+	}
+	
+	public static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch(NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+	
+	public static String toHex(MessageDigest digest) {
+		return Hex.encodeHexString(digest.digest());
+	}
+	
+	/**
+	 * Copies the stream into the file, updating the passed digest.
+	 * @param is Source stream.
+	 * @param file Target file.
+	 * @param offset Bytes already in the file: written bytes will be appended.
+	 * @param maxSize Maximum size of the whole file, -1 for no limits.
+	 * @param reservation Temp space reservation to account written bytes in, may be null.
+	 * @param digest Digest to update.
+	 * @return Number of written bytes.
+	 * @throws IOException
+	 * @throws UploadException If the file exceeds the maximum size or temp space quotas.
+	 */
+	public static long write(InputStream is, File file, long offset, long maxSize, TempFileManager.Reservation reservation, MessageDigest digest) throws IOException, UploadException {
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(file, offset > 0);
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			long count = 0;
+			int n;
+			while ((n = is.read(buffer)) != -1) {
+				count += n;
+				if ((maxSize > 0) && (offset + count > maxSize)) {
+					throw new UploadException("File exceeds the maximum allowed size [{0} bytes]", maxSize);
+				}
+				if (reservation != null) reservation.consume(n);
+				fos.write(buffer, 0, n);
+				digest.update(buffer, 0, n);
+			}
+			return count;
+		} finally {
+			IOUtils.closeQuietly(fos);
+		}
+	}
+	
+	/**
+	 * Appends a chunk to a chunked upload. The last received chunk can be 
+	 * sent again (eg. a client retry): its previous content is replaced.
+	 * Partial content left by a failed attempt is discarded as well, so a
+	 * broken transfer can be resumed sending the same chunk again.
+	 * @param upf The uploaded file entry.
+	 * @param is Chunk content.
+	 * @param chunk Chunk index (zero-based).
+	 * @param maxSize Maximum size of the whole file, -1 for no limits.
+	 * @param reservation Temp space reservation to account written bytes in, may be null.
+	 * @throws IOException
+	 * @throws UploadException If the chunk is out of sequence, the file is too large or temp space quotas are exceeded.
+	 */
+	public static void writeChunk(WebTopSession.UploadedFile upf, InputStream is, int chunk, long maxSize, TempFileManager.Reservation reservation) throws IOException, UploadException {
+		final WebTopSession.UploadedFile.Chunking ch = upf.getChunking();
+		final File file = getFile(upf);
+		synchronized(ch) {
+			if ((chunk == ch.received - 1) && (ch.lastDigest != null)) {
+				ch.received--;
+			} else if (chunk == ch.received) {
+				ch.lastOffset = upf.getSize();
+				ch.lastDigest = cloneDigest(ch.digest);
+			} else {
+				throw new UploadException("Unexpected chunk [{0}], expecting [{1}]", chunk, ch.received);
+			}
+			
+			if (file.length() != ch.lastOffset) truncate(file, ch.lastOffset);
+			final MessageDigest digest = cloneDigest(ch.lastDigest);
+			long written = write(is, file, ch.lastOffset, maxSize, reservation, digest);
+			ch.digest = digest;
+			upf.setSize(ch.lastOffset + written);
+			ch.received++;
+			if (ch.received >= ch.total) {
+				upf.setChecksum(toHex(cloneDigest(digest)));
+			}
+		}
+	}
+	
+	private static File getFile(WebTopSession.UploadedFile upf) throws IOException {
+		try {
+			return upf.getFile();
+		} catch(WTException ex) {
+			throw new IOException("Unable to get temp file", ex);
+		}
+	}
+	
+	private static void truncate(File file, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private static MessageDigest cloneDigest(MessageDigest digest) {
+		try {
+			return (MessageDigest)digest.clone();
+		} catch(CloneNotSupportedException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+	
+	public static class Permit {
+		private Semaphore semaphore;
+		
+		private Permit(Semaphore semaphore) {
+			this.semaphore = semaphore;
+		}
+		
+		public synchronized void release() {
+			if (semaphore != null) {
+				semaphore.release();
+				semaphore = null;
+			}
+		}
+	}
+	
+	private static class DomainQuota {
+		public final int limit;
+		public final Semaphore semaphore;
+		
+		public DomainQuota(int limit) {
+			this.limit = limit;
+			this.semaphore = new Semaphore(limit);
+		}
+	}
+}
@@ -370,6 +370,20 @@ public class WT {
 		getWTA().getReportManager().generateToStream(runPid.getDomain(), report, outputType, outputStream);
 	}
 	
+	/**
+	 * Queues a report for asynchronous rendering: the session is notified 
+	 * when the result is ready for download.
+	 * @param sessionId The session that will own the result.
+	 * @param report The report to render.
+	 * @param outputType The desired output.
+	 * @return The queued job.
+	 * @throws WTException If the queue is full.
+	 */
+	public static ReportJobManager.Job submitReportJob(String sessionId, AbstractReport report, AbstractReport.OutputType outputType) throws WTException {
+		UserProfileId runPid = RunContext.getRunProfileId();
+		return getWTA().getReportJobManager().submit(runPid, sessionId, report, outputType);
+	}
+	
 	public static String getDomainInternetName(String domainId) {
 		try {
 			return getWTA().getWebTopManager().getDomainInternetName(domainId);
@@ -487,6 +501,10 @@ public class WT {
 	public static void sendEmail(Session session, InternetAddress from, Collection<InternetAddress> to, Collection<InternetAddress> cc, Collection<InternetAddress> bcc, String subject, MimeMultipart part) throws MessagingException {
 		getWTA().sendEmail(session, from, to, cc, bcc, subject, part);
 	}
+	
+	public static void queueEmail(String domainId, boolean rich, InternetAddress from, InternetAddress to, String subject, String body) throws MessagingException, WTException {
+		getWTA().queueEmail(domainId, getGlobalMailSession(domainId), rich, from, Arrays.asList(to), null, null, subject, body);
+	}
 		
 	/**
 	 * Retrieves MediaType associated to a file extension from the local table.
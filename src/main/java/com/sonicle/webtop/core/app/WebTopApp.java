@@ -66,10 +66,12 @@ import com.sonicle.webtop.core.bol.ODomain;
 import com.sonicle.webtop.core.bol.model.ParamsLdapDirectory;
 import com.sonicle.webtop.core.io.FileResource;
 import com.sonicle.webtop.core.io.JarFileResource;
+import com.sonicle.webtop.core.sdk.ConcurrentCache;
 import com.sonicle.webtop.core.sdk.ServiceMessage;
 import com.sonicle.webtop.core.sdk.UserProfileId;
 import com.sonicle.webtop.core.sdk.WTException;
 import com.sonicle.webtop.core.sdk.WTRuntimeException;
+import com.sonicle.webtop.core.servlet.ResourceRequest;
 import com.sonicle.webtop.core.shiro.WTRealm;
 import com.sonicle.webtop.core.util.ICalendarUtils;
 import com.sonicle.webtop.core.util.IdentifierUtils;
@@ -90,7 +92,6 @@ import java.nio.charset.Charset;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.MissingResourceException;
@@ -98,6 +99,7 @@ import java.util.Properties;
 import java.util.ResourceBundle;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarFile;
 import javax.mail.Message;
 import javax.mail.MessagingException;
@@ -114,7 +116,6 @@ import javax.servlet.http.HttpServletRequest;
 import net.sf.uadetector.ReadableUserAgent;
 import net.sf.uadetector.UserAgentStringParser;
 import net.sf.uadetector.service.UADetectorServiceFactory;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.httpclient.contrib.ssl.EasySSLProtocolSocketFactory;
 import org.apache.commons.httpclient.protocol.Protocol;
 import org.apache.commons.lang3.StringEscapeUtils;
@@ -209,9 +210,29 @@ public final class WebTopApp {
 	private SessionManager sesMgr = null;
 	private OTPManager otpMgr = null;
 	private ReportManager rptMgr = null;
+	private TempFileManager tmpMgr = null;
+	private ReportJobManager rptJobMgr = null;
+	private MailManager mailMgr = null;
 	private Scheduler scheduler = null;
-	private final HashMap<String, Session> cacheMailSessionByDomain = new HashMap<>();
-	private static final HashMap<String, ReadableUserAgent> cacheUserAgents =  new HashMap<>(); //TODO: decidere politica conservazion
+	private static final long USER_AGENTS_CACHE_MAXCHARS = 1024 * 1024;
+	private final ConcurrentHashMap<String, Session> cacheMailSessionByHost = new ConcurrentHashMap<>();
+	private final ConcurrentCache<String, Session> cacheMailSessionByDomain = ConcurrentCache.builder()
+			.name("mailSessions")
+			.maximumSize(1000)
+			.expireAfterWrite(5 * 60 * 1000L)
+			.build();
+	private static final ConcurrentCache<String, ReadableUserAgent> cacheUserAgents = ConcurrentCache.builder()
+			.name("userAgents")
+			.maximumWeight(USER_AGENTS_CACHE_MAXCHARS, new ConcurrentCache.Weigher<String, ReadableUserAgent>() {
+				@Override
+				public int weigh(String key, ReadableUserAgent value) {
+					// Raw headers are used as keys: weigh them by length so 
+					// that crawlers sending huge random headers cannot blow up memory
+					return key.length();
+				}
+			})
+			.expireAfterAccess(24 * 60 * 60 * 1000L)
+			.build();
 	
 	WebTopApp(ServletContext servletContext) {
 		this.servletContext = servletContext;
@@ -369,6 +390,9 @@ public final class WebTopApp {
 		this.systemLocale = CoreServiceSettings.getSystemLocale(setMgr); // System locale
 		this.otpMgr = OTPManager.initialize(this); // OTP Manager
 		this.rptMgr = ReportManager.initialize(this); // Report Manager
+		this.tmpMgr = TempFileManager.initialize(this); // Temp Files Manager
+		this.rptJobMgr = ReportJobManager.initialize(this); // Report Jobs Manager
+		this.mailMgr = MailManager.initialize(this); // Mail Manager
 		
 		// Scheduler (services manager requires this component for jobs)
 		try {
@@ -392,6 +416,8 @@ public final class WebTopApp {
 		
 		this.svcMgr = ServiceManager.initialize(this, this.scheduler); // Service Manager
 		
+		ResourceRequest.warmUpLocaleJsCache(this);
+		
 		logger.info("WTA initialization completed [{}]", webappName);
 	}
 	
@@ -404,9 +430,18 @@ public final class WebTopApp {
 		// Service Manager
 		svcMgr.cleanup();
 		svcMgr = null;
+		// Report Jobs Manager
+		rptJobMgr.cleanup();
+		rptJobMgr = null;
 		// Session Manager
 		sesMgr.cleanup();
 		sesMgr = null;
+		// Temp Files Manager
+		tmpMgr.cleanup();
+		tmpMgr = null;
+		// Mail Manager
+		mailMgr.cleanup();
+		mailMgr = null;
 		// Scheduler
 		try {
 			scheduler.shutdown(true);
@@ -414,6 +449,9 @@ public final class WebTopApp {
 		} catch(SchedulerException ex) {
 			logger.error("Error shutting-down scheduler", ex);
 		}
+		// Log Manager (after sessions and jobs, in order to write their records)
+		logMgr.cleanup();
+		logMgr = null;
 		// Report Manager
 		rptMgr.cleanup();
 		rptMgr = null;
@@ -436,6 +474,7 @@ public final class WebTopApp {
 		i18nMgr.cleanup();
 		i18nMgr = null;
 		
+		logger.info("User-Agent cache [{}]", cacheUserAgents);
 		logger.info("WTA shutdown completed [{}]", webappName);
 	}
 	
@@ -773,6 +812,26 @@ public final class WebTopApp {
 		return rptMgr;
 	}
 	
+	public TempFileManager getTempFileManager() {
+		return tmpMgr;
+	}
+	
+	/**
+	 * Returns the ReportJobManager.
+	 * @return ReportJobManager instance.
+	 */
+	public ReportJobManager getReportJobManager() {
+		return rptJobMgr;
+	}
+	
+	/**
+	 * Returns the MailManager.
+	 * @return MailManager instance.
+	 */
+	public MailManager getMailManager() {
+		return mailMgr;
+	}
+	
 	/**
 	 * Returns the SessionManager.
 	 * @return SessionManager instance.
@@ -786,18 +845,25 @@ public final class WebTopApp {
 	 * @param userAgentHeader HTTP Header string.
 	 * @return Object representation of the parsed string.
 	 */
-	public static ReadableUserAgent getUserAgentInfo(String userAgentHeader) {
-		String hash = DigestUtils.md5Hex(userAgentHeader);
-		synchronized(cacheUserAgents) {
-			if(cacheUserAgents.containsKey(hash)) {
-				return cacheUserAgents.get(hash);
-			} else {
+	public static ReadableUserAgent getUserAgentInfo(final String userAgentHeader) {
+		// Parsing is performed outside any lock and only once for concurrent 
+		// requests carrying the same header
+		return cacheUserAgents.get(StringUtils.defaultString(userAgentHeader), new ConcurrentCache.Loader<String, ReadableUserAgent>() {
+			@Override
+			public ReadableUserAgent load(String key) throws Exception {
 				UserAgentStringParser parser = UADetectorServiceFactory.getResourceModuleParser();
-				ReadableUserAgent rua = parser.parse(userAgentHeader);
-				cacheUserAgents.put(hash, rua);
-				return rua;
+				return parser.parse(key);
 			}
-		}
+		});
+	}
+	
+	/**
+	 * Returns statistics (hits, misses, evictions...) of the cache holding 
+	 * parsed User-Agent headers.
+	 * @return Cache statistics
+	 */
+	public static ConcurrentCache.Stats getUserAgentCacheStats() {
+		return cacheUserAgents.getStats();
 	}
 	
 	public String getContextResourcePath(String resource) {
@@ -914,10 +980,16 @@ public final class WebTopApp {
 	}
 	
 	public File createTempFile(String domainId, String prefix, String suffix) throws WTException {
-		return new File(getTempFolder(domainId), buildTempFilename(prefix, suffix));
+		File file = new File(getTempFolder(domainId), buildTempFilename(prefix, suffix));
+		if (tmpMgr != null) tmpMgr.register(domainId, file);
+		return file;
 	}
 	
 	public boolean deleteTempFile(String domainId, String filename) throws WTException {
+		if (tmpMgr != null) {
+			getTempFolder(domainId); // Keeps folder checks
+			return tmpMgr.delete(domainId, filename);
+		}
 		File tempFile = new File(getTempFolder(domainId), filename);
 		return tempFile.delete();
 	}
@@ -1050,34 +1122,52 @@ public final class WebTopApp {
 	}
 	
 	public Session getGlobalMailSession(String domainId) {
-		Session session;
-		synchronized(cacheMailSessionByDomain) {
-			CoreServiceSettings css = new CoreServiceSettings(CoreManifest.ID, domainId);
-			String smtphost=css.getSMTPHost();
-			int smtpport=css.getSMTPPort();
-			String key=smtphost+":"+smtpport;
-			session=cacheMailSessionByDomain.get(key);
-			if (session==null) {
-				Properties props = new Properties(System.getProperties());
-				//props.setProperty("mail.imap.parse.debug", "true");
-				props.setProperty("mail.smtp.host", smtphost);
-				props.setProperty("mail.smtp.port", ""+smtpport);
-				//props.setProperty("mail.socket.debug", "true");
-				props.setProperty("mail.imaps.ssl.trust", "*");
-				props.setProperty("mail.imap.folder.class", "com.sonicle.mail.imap.SonicleIMAPFolder");
-				props.setProperty("mail.imaps.folder.class", "com.sonicle.mail.imap.SonicleIMAPFolder");
-				//support idle events
-				props.setProperty("mail.imap.enableimapevents", "true");
-				
-				session=Session.getInstance(props, null);
-				cacheMailSessionByDomain.put(key,session);
-				
-				logger.info("Created javax.mail.Session for "+key);
+		// Domain settings are read again only when the cached entry expires
+		return cacheMailSessionByDomain.get(domainId, new ConcurrentCache.Loader<String, Session>() {
+			@Override
+			public Session load(String domainId) throws Exception {
+				return createGlobalMailSession(domainId);
 			}
+		});
+	}
+	
+	private Session createGlobalMailSession(String domainId) {
+		CoreServiceSettings css = new CoreServiceSettings(CoreManifest.ID, domainId);
+		String smtphost=css.getSMTPHost();
+		int smtpport=css.getSMTPPort();
+		String key=smtphost+":"+smtpport;
+		Session session=cacheMailSessionByHost.get(key);
+		if (session==null) {
+			Properties props = new Properties(System.getProperties());
+			//props.setProperty("mail.imap.parse.debug", "true");
+			props.setProperty("mail.smtp.host", smtphost);
+			props.setProperty("mail.smtp.port", ""+smtpport);
+			//props.setProperty("mail.socket.debug", "true");
+			props.setProperty("mail.imaps.ssl.trust", "*");
+			props.setProperty("mail.imap.folder.class", "com.sonicle.mail.imap.SonicleIMAPFolder");
+			props.setProperty("mail.imaps.folder.class", "com.sonicle.mail.imap.SonicleIMAPFolder");
+			//support idle events
+			props.setProperty("mail.imap.enableimapevents", "true");
+			
+			session=Session.getInstance(props, null);
+			Session existing=cacheMailSessionByHost.putIfAbsent(key,session);
+			if (existing!=null) return existing;
+			
+			logger.info("Created javax.mail.Session for "+key);
 		}
 		return session;
 	}
 	
+	/**
+	 * Checks if the passed session is one of the shared ones returned by
+	 * {@link #getGlobalMailSession(String)}.
+	 * @param session The mail session.
+	 * @return True if global, false otherwise
+	 */
+	boolean isGlobalMailSession(Session session) {
+		return cacheMailSessionByHost.containsValue(session);
+	}
+	
 	public void sendEmail(javax.mail.Session session, boolean rich, 
 			String from, String[] to, String[] cc, String[] bcc, 
 			String subject, String body) throws MessagingException {
@@ -1169,10 +1259,18 @@ public final class WebTopApp {
         
         msg.setSentDate(new java.util.Date());
         
-        Transport.send(msg);
+        sendMessage(session, msg);
 	}
 	
 	public void sendEmail(javax.mail.Session session, boolean rich, InternetAddress from, Collection<InternetAddress> to, Collection<InternetAddress> cc, Collection<InternetAddress> bcc, String subject, String body, Collection<MimeBodyPart> parts) throws MessagingException {
+		MimeMultipart mp = buildEmailBody(rich, body);
+		if (parts != null) {
+			for (MimeBodyPart part : parts) mp.addBodyPart(part);
+		}
+		sendEmail(session, from, to, cc, bcc, subject, mp);
+	}
+	
+	private MimeMultipart buildEmailBody(boolean rich, String body) throws MessagingException {
 		MimeMultipart mp = new MimeMultipart("mixed");
 		if (rich) {
 			MimeMultipart alternative = new MimeMultipart("alternative");
@@ -1190,7 +1288,7 @@ public final class WebTopApp {
 			mbp1.setContent(body, MailUtils.buildPartContentType("text/plain", "UTF-8"));
 			mp.addBodyPart(mbp1);
 		}
-		sendEmail(session, from, to, cc, bcc, subject, mp);
+		return mp;
 	}
 	
 	public void sendEmail(javax.mail.Session session, String from, Collection<String> to, Collection<String> cc, Collection<String> bcc, String subject, MimeMultipart part) throws MessagingException {
@@ -1216,7 +1314,33 @@ public final class WebTopApp {
 	}
 	
 	public void sendEmail(javax.mail.Session session, InternetAddress from, Collection<InternetAddress> to, Collection<InternetAddress> cc, Collection<InternetAddress> bcc, String subject, MimeMultipart part) throws MessagingException {
-		
+		sendMessage(session, buildEmailMessage(session, from, to, cc, bcc, subject, part));
+	}
+	
+	/**
+	 * Queues an email for asynchronous delivery: delivery is retried on 
+	 * failures and is subject to domain rate limits.
+	 * @param domainId The domain on behalf of which email is sent.
+	 * @throws WTException If the queue is full.
+	 */
+	public void queueEmail(String domainId, javax.mail.Session session, boolean rich, InternetAddress from, Collection<InternetAddress> to, Collection<InternetAddress> cc, Collection<InternetAddress> bcc, String subject, String body) throws MessagingException, WTException {
+		MimeMessage message = buildEmailMessage(session, from, to, cc, bcc, subject, buildEmailBody(rich, body));
+		if (mailMgr != null) {
+			mailMgr.enqueue(domainId, session, message);
+		} else {
+			Transport.send(message);
+		}
+	}
+	
+	private void sendMessage(javax.mail.Session session, MimeMessage message) throws MessagingException {
+		if (mailMgr != null) {
+			mailMgr.send(session, message);
+		} else {
+			Transport.send(message);
+		}
+	}
+	
+	private MimeMessage buildEmailMessage(javax.mail.Session session, InternetAddress from, Collection<InternetAddress> to, Collection<InternetAddress> cc, Collection<InternetAddress> bcc, String subject, MimeMultipart part) throws MessagingException {
 		try {
 			subject = MimeUtility.encodeText(subject);
 		} catch (Exception ex) {}
@@ -1237,8 +1361,8 @@ public final class WebTopApp {
 		
 		message.setContent(part);
 		message.setSentDate(new java.util.Date());
-		Transport.send(message);
-	}	
+		return message;
+	}
 	
 	public void notify(UserProfileId profileId, List<ServiceMessage> messages, boolean enqueueIfOffline) {
 		sesMgr.push(profileId, messages, enqueueIfOffline);
@@ -102,6 +102,7 @@ import com.sonicle.webtop.core.dal.UserDAO;
 import com.sonicle.webtop.core.dal.UserInfoDAO;
 import com.sonicle.webtop.core.dal.UserSettingDAO;
 import com.sonicle.webtop.core.sdk.BaseServiceSettings;
+import com.sonicle.webtop.core.sdk.ConcurrentCache;
 import com.sonicle.webtop.core.sdk.UserProfile;
 import com.sonicle.webtop.core.sdk.UserProfileId;
 import com.sonicle.webtop.core.sdk.WTCyrusException;
@@ -117,8 +118,8 @@ import java.net.URISyntaxException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -163,19 +164,22 @@ public final class WebTopManager {
 	public static final String USERID_ADMINS = "admins";
 	public static final String USERID_USERS = "users";
 	
+	private static final int USER_CACHE_MAX_SIZE = 5000;
+	
+	// Caches are read without locking: locks below only serialize writers
 	private final Object lock0 = new Object();
-	private final HashMap<String, String> cachePublicNameToDomain = new HashMap<>();
-	private final HashMap<String, String> cacheInternetNameToDomain = new HashMap<>();
+	private final ConcurrentCache<String, String> cachePublicNameToDomain = ConcurrentCache.builder().name("publicNameToDomain").build();
+	private final ConcurrentCache<String, String> cacheInternetNameToDomain = ConcurrentCache.builder().name("internetNameToDomain").build();
 	
 	private final Object lock1 = new Object();
-	private final HashMap<UserProfileId, String> cacheUserToUserUid = new HashMap<>();
-	private final HashMap<String, UserProfileId> cacheUserUidToUser = new HashMap<>();
+	private final ConcurrentCache<UserProfileId, String> cacheUserToUserUid = ConcurrentCache.builder().name("userToUid").build();
+	private final ConcurrentCache<String, UserProfileId> cacheUserUidToUser = ConcurrentCache.builder().name("uidToUser").build();
 	private final Object lock2 = new Object();
-	private final HashMap<UserProfileId, String> cacheGroupToGroupUid = new HashMap<>();
-	private final HashMap<String, UserProfileId> cacheGroupUidToGroup = new HashMap<>();
+	private final ConcurrentCache<UserProfileId, String> cacheGroupToGroupUid = ConcurrentCache.builder().name("groupToUid").build();
+	private final ConcurrentCache<String, UserProfileId> cacheGroupUidToGroup = ConcurrentCache.builder().name("uidToGroup").build();
 	
-	private final HashMap<UserProfileId, UserProfile.PersonalInfo> cacheUserToPersonalInfo = new HashMap<>();
-	private final HashMap<UserProfileId, UserProfile.Data> cacheUserToData = new HashMap<>();
+	private final ConcurrentCache<UserProfileId, UserProfile.PersonalInfo> cacheUserToPersonalInfo = ConcurrentCache.builder().name("userToPersonalInfo").maximumSize(USER_CACHE_MAX_SIZE).build();
+	private final ConcurrentCache<UserProfileId, UserProfile.Data> cacheUserToData = ConcurrentCache.builder().name("userToData").maximumSize(USER_CACHE_MAX_SIZE).build();
 	private final Object lock3 = new Object();
 	
 	/**
@@ -206,6 +210,24 @@ public final class WebTopManager {
 		removeFromUserCache(pid);
 	}
 	
+	/**
+	 * Returns a description of identity caches' usage (sizes, hits, misses 
+	 * and evictions).
+	 * @return Statistics string
+	 */
+	public String getCacheStats() {
+		return StringUtils.join(new String[]{
+			cachePublicNameToDomain.toString(),
+			cacheInternetNameToDomain.toString(),
+			cacheUserToUserUid.toString(),
+			cacheUserUidToUser.toString(),
+			cacheGroupToGroupUid.toString(),
+			cacheGroupUidToGroup.toString(),
+			cacheUserToPersonalInfo.toString(),
+			cacheUserToData.toString()
+		}, ", ");
+	}
+	
 	public static String generateSecretKey() {
 		return StringUtils.defaultIfBlank(IdentifierUtils.generateSecretKey(), "0123456789101112");
 	}
@@ -255,29 +277,23 @@ public final class WebTopManager {
 	}
 	
 	public String publicNameToDomainId(String domainPublicName) {
-		synchronized(lock0) {
-			return cachePublicNameToDomain.get(domainPublicName);
-		}
+		return cachePublicNameToDomain.get(domainPublicName);
 	}
 	
 	public String internetNameToDomain(String internetName) {
-		synchronized (lock0) {
-			if (cacheInternetNameToDomain.size() == 1) {
-				// If we have only one domain in cache, simply returns it...
-				Map.Entry<String, String> entry = cacheInternetNameToDomain.entrySet().iterator().next();
-				return entry.getValue();
-			} else {
-				for(int i=2; i<255; i++) {
-					final int iOfNDot = StringUtils.lastOrdinalIndexOf(internetName, ".", i);
-					final String key = StringUtils.substring(internetName, iOfNDot+1);
-					if(cacheInternetNameToDomain.containsKey(key)) {
-						return cacheInternetNameToDomain.get(key);
-					}
-				}
-				return null;
-			}
-			//return cacheInternetNameToDomain.get(internetName);
+		if (cacheInternetNameToDomain.size() == 1) {
+			// If we have only one domain in cache, simply returns it...
+			Iterator<String> it = cacheInternetNameToDomain.values().iterator();
+			if (it.hasNext()) return it.next();
+		}
+		for(int i=2; i<255; i++) {
+			final int iOfNDot = StringUtils.lastOrdinalIndexOf(internetName, ".", i);
+			final String key = StringUtils.substring(internetName, iOfNDot+1);
+			final String domainId = cacheInternetNameToDomain.get(key);
+			if (domainId != null) return domainId;
 		}
+		return null;
+		//return cacheInternetNameToDomain.get(internetName);
 	}
 	
 	public List<ODomain> listDomains(boolean enabledOnly) throws WTException {
@@ -434,7 +450,7 @@ public final class WebTopManager {
 		}
 		
 		// Update cache
-		initDomainCache();
+		updateDomainCache(odomain.getDomainId());
 		
 		return odomain;
 	}
@@ -461,7 +477,7 @@ public final class WebTopManager {
 		}
 		
 		// Update cache
-		initDomainCache();
+		updateDomainCache(domain.getDomainId());
 	}
 	
 	public void deleteDomain(String domainId) throws WTException {
@@ -503,6 +519,7 @@ public final class WebTopManager {
 			domdao.deleteById(con, domainId);
 			
 			DbUtils.commitQuietly(con);
+			RunContext.invalidatePermissions();
 			
 		} catch(SQLException | DAOException ex) {
 			DbUtils.rollbackQuietly(con);
@@ -512,10 +529,10 @@ public final class WebTopManager {
 		}
 		
 		// Update cache
-		initDomainCache();
-		initUserUidCache();
-		initGroupUidCache();
-		cleanupUserCache();
+		removeFromDomainCache(domainId);
+		removeDomainFromUidCaches(domainId);
+		removeDomainFromUserCache(domainId);
+		wta.getSettingsManager().invalidateDomainCache(domainId);
 		
 		try {
 			AuthenticationDomain ad = createAuthenticationDomain(odomain);
@@ -695,6 +712,7 @@ public final class WebTopManager {
 			}
 			
 			DbUtils.commitQuietly(con);
+			RunContext.invalidatePermissions();
 			
 			// Update cache
 			addToUserUidCache(new UserUid(ouser.getDomainId(), user.getUserId(), ouser.getUserUid()));
@@ -757,6 +775,10 @@ public final class WebTopManager {
 			doUserUpdate(con, user);
 			
 			DbUtils.commitQuietly(con);
+			RunContext.invalidatePermissions();
+			
+			// Update cache
+			removeFromUserCache(new UserProfileId(user.getDomainId(), user.getUserId()));
 			
 		} catch(SQLException | DAOException ex) {
 			DbUtils.rollbackQuietly(con);
@@ -851,6 +873,7 @@ public final class WebTopManager {
 			}
 			
 			DbUtils.commitQuietly(con);
+			RunContext.invalidatePermissions();
 			
 			// Update cache
 			removeFromUserUidCache(pid);
@@ -920,7 +943,11 @@ public final class WebTopManager {
 		
 		try {
 			con = wta.getConnectionManager().getConnection();
-			return dao.updateDisplayNameByDomainUser(con, pid.getDomainId(), pid.getUserId(), displayName) == 1;
+			boolean ret = dao.updateDisplayNameByDomainUser(con, pid.getDomainId(), pid.getUserId(), displayName) == 1;
+			
+			// Update cache
+			cacheUserToData.remove(pid);
+			return ret;
 			
 		} catch(SQLException | DAOException ex) {
 			throw new WTException(ex, "DB error");
@@ -954,7 +981,11 @@ public final class WebTopManager {
 			OUserInfo oui = createUserInfo(userPersonalInfo);
 			oui.setDomainId(pid.getDomainId());
 			oui.setUserId(pid.getUserId());
-			return dao.update(con, oui) == 1;
+			boolean ret = dao.update(con, oui) == 1;
+			
+			// Update cache (user data depends on personal email)
+			removeFromUserCache(pid);
+			return ret;
 			
 		} catch(SQLException | DAOException ex) {
 			throw new WTException(ex, "DB error");
@@ -1030,6 +1061,7 @@ public final class WebTopManager {
 			OGroup ogroup = doGroupInsert(con, domain.getDomainId(), group);
 			
 			DbUtils.commitQuietly(con);
+			RunContext.invalidatePermissions();
 			
 			// Update cache
 			addToGroupUidCache(new GroupUid(ogroup.getDomainId(), group.getGroupId(), ogroup.getGroupUid()));
@@ -1051,6 +1083,7 @@ public final class WebTopManager {
 			doGroupUpdate(con, group);
 			
 			DbUtils.commitQuietly(con);
+			RunContext.invalidatePermissions();
 			
 		} catch(SQLException | DAOException ex) {
 			DbUtils.rollbackQuietly(con);
@@ -1083,6 +1116,7 @@ public final class WebTopManager {
 			udao.deleteByDomainGroup(con, pid.getDomainId(), pid.getUserId());
 			
 			DbUtils.commitQuietly(con);
+			RunContext.invalidatePermissions();
 			
 			// Update cache
 			removeFromGroupUidCache(pid);
@@ -1263,6 +1297,7 @@ public final class WebTopManager {
 			}
 			
 			DbUtils.commitQuietly(con);
+			RunContext.invalidatePermissions();
 			
 		} catch(SQLException | DAOException ex) {
 			DbUtils.rollbackQuietly(con);
@@ -1306,6 +1341,7 @@ public final class WebTopManager {
 			}
 			
 			DbUtils.commitQuietly(con);
+			RunContext.invalidatePermissions();
 		
 		} catch(SQLException | DAOException ex) {
 			DbUtils.rollbackQuietly(con);
@@ -1328,6 +1364,7 @@ public final class WebTopManager {
 			rolassdao.deleteByRole(con, uid);
 			rolperdao.deleteByRole(con, uid);
 			DbUtils.commitQuietly(con);
+			RunContext.invalidatePermissions();
 			
 		} catch(SQLException | DAOException ex) {
 			DbUtils.rollbackQuietly(con);
@@ -1430,31 +1467,41 @@ public final class WebTopManager {
 	}
 	
 	public UserProfile.PersonalInfo userPersonalInfo(UserProfileId pid) throws WTException {
-		synchronized(cacheUserToPersonalInfo) {
-			if(!cacheUserToPersonalInfo.containsKey(pid)) {
-				UserProfile.PersonalInfo upi = getUserPersonalInfo(pid);
-				if(upi == null) throw new WTException("UserPersonalInfo not found [{0}]", pid.toString());
-				cacheUserToPersonalInfo.put(pid, upi);
-				return upi;
-			} else {
-				return cacheUserToPersonalInfo.get(pid);
-			}
+		// Read-through: values loaded while the entry gets removed are not cached
+		UserProfile.PersonalInfo upi = null;
+		try {
+			upi = cacheUserToPersonalInfo.get(pid, new ConcurrentCache.Loader<UserProfileId, UserProfile.PersonalInfo>() {
+				@Override
+				public UserProfile.PersonalInfo load(UserProfileId key) throws Exception {
+					return getUserPersonalInfo(key);
+				}
+			});
+		} catch(WTRuntimeException ex) {
+			throw unwrapLoadException(ex);
 		}
+		if (upi == null) throw new WTException("UserPersonalInfo not found [{0}]", pid.toString());
+		return upi;
 	}
 	
 	public UserProfile.Data userData(UserProfileId pid) throws WTException {
-		synchronized(cacheUserToData) {
-			if(!cacheUserToData.containsKey(pid)) {
-				final UserProfile.Data ud = getUserData(pid);
-				if (ud == null) return null;
-				cacheUserToData.put(pid, ud);
-				return ud;
-			} else {
-				return cacheUserToData.get(pid);
-			}
+		// Read-through: values loaded while the entry gets removed are not cached
+		try {
+			return cacheUserToData.get(pid, new ConcurrentCache.Loader<UserProfileId, UserProfile.Data>() {
+				@Override
+				public UserProfile.Data load(UserProfileId key) throws Exception {
+					return getUserData(key);
+				}
+			});
+		} catch(WTRuntimeException ex) {
+			throw unwrapLoadException(ex);
 		}
 	}
 	
+	private WTException unwrapLoadException(WTRuntimeException ex) {
+		if (ex.getCause() instanceof WTException) return (WTException)ex.getCause();
+		return new WTException(ex, "Unable to load user data");
+	}
+	
 	public UserProfile.Data userDataByEmail(String emailAddress) throws WTException {
 		UserInfoDAO uidao = UserInfoDAO.getInstance();
 		Connection con = null;
@@ -1482,35 +1529,27 @@ public final class WebTopManager {
 	}
 	
 	public String userToUid(UserProfileId pid, boolean mandatory) {
-		synchronized(lock1) {
-			if(!cacheUserToUserUid.containsKey(pid)) {
-				if (mandatory)
-					throw new WTRuntimeException("[userToUidCache] Cache miss on key {0}", pid.toString());
-				return null;
-			}
-			return cacheUserToUserUid.get(pid);
-		}
+		String uid = cacheUserToUserUid.get(pid);
+		if ((uid == null) && mandatory) throw new WTRuntimeException("[userToUidCache] Cache miss on key {0}", pid.toString());
+		return uid;
 	}
 	
 	public UserProfileId uidToUser(String uid) {
-		synchronized(lock1) {
-			if(!cacheUserUidToUser.containsKey(uid)) throw new WTRuntimeException("[uidToUserCache] Cache miss on key {0}", uid);
-			return cacheUserUidToUser.get(uid);
-		}
+		UserProfileId pid = cacheUserUidToUser.get(uid);
+		if (pid == null) throw new WTRuntimeException("[uidToUserCache] Cache miss on key {0}", uid);
+		return pid;
 	}
 	
 	public String groupToUid(UserProfileId pid) {
-		synchronized(lock2) {
-			if(!cacheGroupToGroupUid.containsKey(pid)) throw new WTRuntimeException("[groupToUidCache] Cache miss on key {0}", pid.toString());
-			return cacheGroupToGroupUid.get(pid);
-		}
+		String uid = cacheGroupToGroupUid.get(pid);
+		if (uid == null) throw new WTRuntimeException("[groupToUidCache] Cache miss on key {0}", pid.toString());
+		return uid;
 	}
 	
 	public UserProfileId uidToGroup(String uid) {
-		synchronized(lock2) {
-			if(!cacheGroupUidToGroup.containsKey(uid)) throw new WTRuntimeException("[uidToGroupCache] Cache miss on key {0}", uid);
-			return cacheGroupUidToGroup.get(uid);
-		}
+		UserProfileId pid = cacheGroupUidToGroup.get(uid);
+		if (pid == null) throw new WTRuntimeException("[uidToGroupCache] Cache miss on key {0}", uid);
+		return pid;
 	}
 	
 	public String getInternetUserId(UserProfileId pid) throws WTException {
@@ -1919,8 +1958,7 @@ public final class WebTopManager {
 				con = wta.getConnectionManager().getConnection();
 				cleanupDomainCache();
 				for(ODomain odomain : dao.selectEnabled(con)) {
-					cachePublicNameToDomain.put(domainIdToPublicName(odomain.getDomainId()), odomain.getDomainId());
-					cacheInternetNameToDomain.put(odomain.getInternetName(), odomain.getDomainId());
+					addToDomainCache(odomain);
 				}
 			}
 		} catch(SQLException ex) {
@@ -1930,6 +1968,25 @@ public final class WebTopManager {
 		}
 	}
 	
+	private void updateDomainCache(String domainId) {
+		Connection con = null;
+		
+		try {
+			synchronized(lock0) {
+				DomainDAO dao = DomainDAO.getInstance();
+				
+				con = wta.getConnectionManager().getConnection();
+				removeFromDomainCache(domainId);
+				ODomain odomain = dao.selectById(con, domainId);
+				if ((odomain != null) && odomain.getEnabled()) addToDomainCache(odomain);
+			}
+		} catch(SQLException ex) {
+			throw new WTRuntimeException(ex, "Unable to update domain name cache");
+		} finally {
+			DbUtils.closeQuietly(con);
+		}
+	}
+	
 	private void cleanupDomainCache() {
 		synchronized(lock0) {
 			cachePublicNameToDomain.clear();
@@ -1937,33 +1994,44 @@ public final class WebTopManager {
 		}
 	}
 	
-	private void cleanupUserCache() {
-		synchronized(cacheUserToData) {
-			cacheUserToData.clear();
+	private void addToDomainCache(ODomain odomain) {
+		synchronized(lock0) {
+			cachePublicNameToDomain.put(domainIdToPublicName(odomain.getDomainId()), odomain.getDomainId());
+			cacheInternetNameToDomain.put(odomain.getInternetName(), odomain.getDomainId());
 		}
-		synchronized(cacheUserToPersonalInfo) {
-			cacheUserToPersonalInfo.clear();
+	}
+	
+	private void removeFromDomainCache(String domainId) {
+		synchronized(lock0) {
+			cachePublicNameToDomain.removeValue(domainId);
+			cacheInternetNameToDomain.removeValue(domainId);
 		}
 	}
 	
+	private void cleanupUserCache() {
+		cacheUserToData.clear();
+		cacheUserToPersonalInfo.clear();
+	}
+	
 	private void addToUserCache(UserProfileId pid, UserProfile.Data userData) {
-		synchronized(cacheUserToData) {
-			cacheUserToData.put(pid, userData);
-		}
+		cacheUserToData.put(pid, userData);
 	}
 	
 	private void addToUserCache(UserProfileId pid, UserProfile.PersonalInfo userPersonalInfo) {
-		synchronized(cacheUserToPersonalInfo) {
-			cacheUserToPersonalInfo.put(pid, userPersonalInfo);
-		}
+		cacheUserToPersonalInfo.put(pid, userPersonalInfo);
 	}
 	
 	private void removeFromUserCache(UserProfileId pid) {
-		synchronized(cacheUserToData) {
-			cacheUserToData.remove(pid);
+		cacheUserToData.remove(pid);
+		cacheUserToPersonalInfo.remove(pid);
+	}
+	
+	private void removeDomainFromUserCache(String domainId) {
+		for (UserProfileId pid : cacheUserToData.keys()) {
+			if (pid.hasDomain(domainId)) cacheUserToData.remove(pid);
 		}
-		synchronized(cacheUserToPersonalInfo) {
-			cacheUserToPersonalInfo.remove(pid);
+		for (UserProfileId pid : cacheUserToPersonalInfo.keys()) {
+			if (pid.hasDomain(domainId)) cacheUserToPersonalInfo.remove(pid);
 		}
 	}
 	
@@ -2005,10 +2073,8 @@ public final class WebTopManager {
 	
 	private void removeFromUserUidCache(UserProfileId pid) {
 		synchronized(lock1) {
-			if(cacheUserToUserUid.containsKey(pid)) {
-				String uid = cacheUserToUserUid.remove(pid);
-				cacheUserUidToUser.remove(uid);
-			}
+			String uid = cacheUserToUserUid.remove(pid);
+			if (uid != null) cacheUserUidToUser.remove(uid);
 		}
 	}
 	
@@ -2050,9 +2116,20 @@ public final class WebTopManager {
 	
 	private void removeFromGroupUidCache(UserProfileId pid) {
 		synchronized(lock2) {
-			if(cacheGroupToGroupUid.containsKey(pid)) {
-				String uid = cacheGroupToGroupUid.remove(pid);
-				cacheGroupUidToGroup.remove(uid);
+			String uid = cacheGroupToGroupUid.remove(pid);
+			if (uid != null) cacheGroupUidToGroup.remove(uid);
+		}
+	}
+	
+	private void removeDomainFromUidCaches(String domainId) {
+		synchronized(lock1) {
+			for (UserProfileId pid : cacheUserToUserUid.keys()) {
+				if (pid.hasDomain(domainId)) removeFromUserUidCache(pid);
+			}
+		}
+		synchronized(lock2) {
+			for (UserProfileId pid : cacheGroupToGroupUid.keys()) {
+				if (pid.hasDomain(domainId)) removeFromGroupUidCache(pid);
 			}
 		}
 	}
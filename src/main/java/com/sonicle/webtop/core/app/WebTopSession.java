@@ -60,6 +60,8 @@ import com.sonicle.webtop.core.servlet.Otp;
 import com.sonicle.webtop.core.util.IdentifierUtils;
 import com.sonicle.webtop.core.util.LoggerUtils;
 import java.io.File;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
@@ -138,6 +140,8 @@ public class WebTopSession {
 				uploads.clear();
 			}
 		}
+		TempFileManager tmpMgr = wta.getTempFileManager();
+		if(tmpMgr != null) tmpMgr.deleteByOwner(getId());
 	}
 	
 	// TODO: rimuovere metodi deprecati
@@ -446,6 +450,7 @@ public class WebTopSession {
 		wta.getLogManager().write(profile.getId(), CoreManifest.ID, "AUTHENTICATED", null, request, getId(), null);
 		sesm.registerWebTopSession(this);
 		allowedServices = core.listAllowedServices();
+		wta.getSettingsManager().preloadUserSettings(profile.getId(), allowedServices);
 		
 		BaseManager managerInst = null;
 		for(String serviceId : allowedServices) {
@@ -741,12 +746,12 @@ public class WebTopSession {
 		}
 	}
 	
-	public void fillStartup(JsWTSPrivate js) {
+	public void fillStartup(JsWTSPrivate js) throws WTException {
 		if(!isReady()) return;
 		
 		ServiceManager svcm = wta.getServiceManager();
 		ServiceManifest coreManifest = svcm.getManifest(CoreManifest.ID);
-		CoreUserSettings cus = new CoreUserSettings(CoreManifest.ID, profile.getId());
+		CoreUserSettings cus = new CoreUserSettings(wta.getSettingsManager().getUserSettingsSnapshot(profile.getId(), CoreManifest.ID));
 		String theme = cus.getTheme(), layout = cus.getLayout(), lookAndFeel = cus.getLookAndFeel();
 		//ReadableDeviceCategory.Category deviceCategory = getUserAgent().getDeviceCategory().getCategory();
 		//if (ReadableDeviceCategory.Category.SMARTPHONE.equals(deviceCategory) || ReadableDeviceCategory.Category.TABLET.equals(deviceCategory)) {
@@ -768,7 +773,7 @@ public class WebTopSession {
 		}
 	}
 	
-	private JsWTSPrivate.Service fillStartupForService(JsWTSPrivate js, String serviceId, Locale locale, String theme, String lookAndFeel) {
+	private JsWTSPrivate.Service fillStartupForService(JsWTSPrivate js, String serviceId, Locale locale, String theme, String lookAndFeel) throws WTException {
 		ServiceManager svcm = wta.getServiceManager();
 		ServiceDescriptor sdesc = svcm.getDescriptor(serviceId);
 		ServiceManifest manifest = sdesc.getManifest();
@@ -776,15 +781,22 @@ public class WebTopSession {
 		
 		JsWTSPrivate.Permissions perms = new JsWTSPrivate.Permissions();
 		
-		// Generates service auth permissions
+		// Generates service auth permissions (evaluated all together)
+		ArrayList<RunContext.PermissionCheck> checks = new ArrayList<>();
+		for(ServicePermission perm : manifest.getDeclaredPermissions()) {
+			if(perm instanceof ServiceSharePermission) continue;
+			for(String act : perm.getActions()) {
+				checks.add(new RunContext.PermissionCheck(serviceId, perm.getGroupName(), act));
+			}
+		}
+		boolean[] bools = RunContext.arePermitted(subject, checks);
+		int i = 0;
 		for(ServicePermission perm : manifest.getDeclaredPermissions()) {
 			if(perm instanceof ServiceSharePermission) continue;
 			
 			JsWTSPrivate.Actions acts = new JsWTSPrivate.Actions();
 			for(String act : perm.getActions()) {
-				if(RunContext.isPermitted(subject, serviceId, perm.getGroupName(), act)) {
-					acts.put(act, true);
-				}
+				if(bools[i++]) acts.put(act, true);
 			}
 			if(!acts.isEmpty()) perms.put(perm.getGroupName(), acts);
 		}
@@ -831,7 +843,7 @@ public class WebTopSession {
 		return jssvc;
 	}
 	
-	private JsWTSPrivate.Vars getServiceVars(String serviceId) {
+	private JsWTSPrivate.Vars getServiceVars(String serviceId) throws WTException {
 		BaseService svc = getPrivateServiceById(serviceId);
 		BaseService.ServiceVars vars = null;
 		
@@ -853,7 +865,7 @@ public class WebTopSession {
 			//is.put("authTicket", generateAuthTicket());
 			is.put("isWhatsnewNeeded", isWhatsnewNeeded());
 		} else {
-			CoreUserSettings cus = new CoreUserSettings(serviceId, profile.getId());
+			CoreUserSettings cus = new CoreUserSettings(wta.getSettingsManager().getUserSettingsSnapshot(profile.getId(), serviceId));
 			is.put("viewportToolWidth", cus.getViewportToolWidth());
 		}
 		return is;
@@ -1102,6 +1114,18 @@ public class WebTopSession {
 		synchronized(uploads) {
 			uploads.put(uploadedFile.getUploadId(), uploadedFile);
 		}
+		if(!uploadedFile.isVirtual()) trackUploadedFile(uploadedFile);
+	}
+	
+	/**
+	 * Binds the temp file of an uploaded file to this session, updating 
+	 * its size in temp files accounting.
+	 * @param uploadedFile The uploaded file entry
+	 */
+	public void trackUploadedFile(UploadedFile uploadedFile) {
+		TempFileManager tmpMgr = wta.getTempFileManager();
+		String domainId = getProfileDomainId();
+		if((tmpMgr != null) && (domainId != null)) tmpMgr.track(domainId, uploadedFile.getUploadId(), getId());
 	}
 	
 	public UploadedFile getUploadedFile(String uploadId) {
@@ -1153,6 +1177,21 @@ public class WebTopSession {
 		}
 	}
 	
+	/**
+	 * Looks for a chunked upload still waiting for chunks.
+	 * @param chunkKey Key identifying the upload
+	 * @return The uploaded file entry or null if not found
+	 */
+	public UploadedFile findChunkedUpload(String chunkKey) {
+		if(!isReady()) return null;
+		synchronized(uploads) {
+			for(UploadedFile upf : uploads.values()) {
+				if(!upf.isComplete() && StringUtils.equals(upf.getChunking().key, chunkKey)) return upf;
+			}
+			return null;
+		}
+	}
+	
 	/**
 	 * Remove uploaded files by tag value.
 	 * Files will be also deleted from Temp directory.
@@ -1183,10 +1222,12 @@ public class WebTopSession {
 		private final String uploadId;
 		private final String tag;
 		private final String filename;
-		private final long size;
+		private volatile long size;
 		private final String mediaType;
 		private final DateTime uploadedOn;
 		private HashMap<String,Object> properties=null;
+		private volatile String checksum = null;
+		private volatile Chunking chunking = null;
 		
 		public UploadedFile(boolean virtual, String serviceId, String uploadId, String tag, String filename, long size, String mediaType) {
 			this.virtual = virtual;
@@ -1231,6 +1272,40 @@ public class WebTopSession {
 			return uploadedOn;
 		}
 		
+		/**
+		 * Returns the MD5 checksum (hex) computed while receiving the file.
+		 * @return Checksum or null if not available
+		 */
+		public String getChecksum() {
+			return checksum;
+		}
+		
+		/**
+		 * Checks if all content has been received: chunked uploads are 
+		 * incomplete until the last chunk arrives.
+		 * @return True if complete, false otherwise
+		 */
+		public boolean isComplete() {
+			final Chunking ch = chunking;
+			return (ch == null) || (ch.received >= ch.total);
+		}
+		
+		void setSize(long size) {
+			this.size = size;
+		}
+		
+		void setChecksum(String checksum) {
+			this.checksum = checksum;
+		}
+		
+		Chunking getChunking() {
+			return chunking;
+		}
+		
+		void setChunking(Chunking chunking) {
+			this.chunking = chunking;
+		}
+		
 		public File getFile() throws WTException {
 			return new File(WT.getTempFolder(), getUploadId());
 		}
@@ -1244,5 +1319,23 @@ public class WebTopSession {
 			if (properties==null) return null;
 			return properties.get(key);
 		}
+		
+		/**
+		 * Progress of a chunked upload.
+		 */
+		static class Chunking {
+			final String key;
+			final int total;
+			volatile int received = 0;
+			long lastOffset = 0;
+			MessageDigest digest;
+			MessageDigest lastDigest = null;
+			
+			Chunking(String key, int total, MessageDigest digest) {
+				this.key = key;
+				this.total = total;
+				this.digest = digest;
+			}
+		}
 	}
 }
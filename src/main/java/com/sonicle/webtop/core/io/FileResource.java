@@ -50,6 +50,10 @@ public class FileResource implements Resource {
 		this.file = file;
 	}
 
+	public File getFile() {
+		return file;
+	}
+
 	@Override
 	public String getFilename() {
 		return file.getName();
@@ -65,6 +65,8 @@ public class ExcelFileReader extends FileRowsReader {
 	protected boolean binary = false;
 	protected String sheet = null;
 	protected DataFormatter fmt = null;
+	protected boolean lowMemory = false;
+	protected File tempDir = null;
 	
 	public ExcelFileReader() {
 		this.fmt = new DataFormatter();
@@ -83,6 +85,23 @@ public class ExcelFileReader extends FileRowsReader {
 		this.sheet = sheet;
 	}
 	
+	/**
+	 * Enables low memory mode: when reading XLSX rows, shared strings are
+	 * kept in a memory-mapped temp file instead of on heap.
+	 * @param lowMemory True to enable.
+	 */
+	public void setLowMemory(boolean lowMemory) {
+		this.lowMemory = lowMemory;
+	}
+	
+	/**
+	 * Sets the directory for temp files used in low memory mode.
+	 * @param tempDir The directory, null to use the default one.
+	 */
+	public void setTempDir(File tempDir) {
+		this.tempDir = tempDir;
+	}
+	
 	public List<String> listSheets(File file) throws IOException, FileReaderException {
 		if(binary) {
 			return listXlsSheets(file);
@@ -144,15 +163,54 @@ public class ExcelFileReader extends FileRowsReader {
 	}
 	
 	public HashMap<String, String> listXlsxColumnNames(File file) throws IOException, FileReaderException {
+		return sampleXlsxColumns(file).columnNames;
+	}
+	
+	public HashMap<String, String> listXlsColumnNames(File file) throws IOException, FileReaderException {
+		POIFSFileSystem pfs = null;
+		InputStream is = null;
+		
+		try {
+			pfs = new POIFSFileSystem(file);
+			is = pfs.createDocumentInputStream("Workbook");
+			XlsColumnsProcessor processor = new XlsColumnsProcessor(is, headersRow, firstDataRow, lastDataRow, sheet);
+			processor.process();
+			return processor.columnNames;
+			
+		} finally {
+			IOUtils.closeQuietly(is);
+			IOUtils.closeQuietly(pfs);
+		}
+	}
+	
+	/**
+	 * Reads data rows of the current sheet, passing them to the handler 
+	 * one at a time. Workbooks are streamed, never fully loaded in memory.
+	 * Rows indexes passed to the handler are 0-based.
+	 * @param file The source file.
+	 * @param rowHandler The row handler.
+	 * @throws IOException
+	 * @throws FileReaderException If the file cannot be read or the handler fails.
+	 */
+	public void readRows(File file, RowHandler<RowValues> rowHandler) throws IOException, FileReaderException {
+		if(binary) {
+			readXlsRows(file, rowHandler);
+		} else {
+			readXlsxRows(file, rowHandler);
+		}
+	}
+	
+	public void readXlsxRows(File file, RowHandler<RowValues> rowHandler) throws IOException, FileReaderException {
 		OPCPackage opc = null;
+		ReadOnlySharedStringsTable strings = null;
+		XlsxRowsHandler rowsHandler = null;
 		
 		try {
 			opc = OPCPackage.open(file, PackageAccess.READ);
 			XSSFReader reader = new XSSFReader(opc);
-			ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(opc);
+			strings = lowMemory ? new MappedSharedStringsTable(opc, tempDir) : new ReadOnlySharedStringsTable(opc);
 			StylesTable styles = reader.getStylesTable();
 			
-			XlsxColumnsHandler columnsHandler = null;
 			XSSFReader.SheetIterator sit = (XSSFReader.SheetIterator) reader.getSheetsData();
 			while(sit.hasNext()) {
 				InputStream is = null;
@@ -160,39 +218,43 @@ public class ExcelFileReader extends FileRowsReader {
 					is = sit.next();
 					if(StringUtils.equals(sit.getSheetName(), sheet)) {
 						XMLReader xmlReader = SAXHelper.newXMLReader();
-						columnsHandler = new XlsxColumnsHandler(is, headersRow, firstDataRow, lastDataRow);
-						ContentHandler handler = new XSSFSheetXMLHandler(styles, null, strings, columnsHandler, fmt, false);
+						rowsHandler = new XlsxRowsHandler(is, headersRow, firstDataRow, lastDataRow, rowHandler);
+						ContentHandler handler = new XSSFSheetXMLHandler(styles, null, strings, rowsHandler, fmt, false);
 						xmlReader.setContentHandler(handler);
 						xmlReader.parse(new InputSource(is));
+						break;
 					}
 				} catch(SAXException | ParserConfigurationException ex) {
 					throw new FileReaderException(ex, "Error processing file content");
 				} catch(NullPointerException ex) {
 					// Thrown when stream is forcibly closed. Simply ignore this!
+					break;
 				} finally {
 					IOUtils.closeQuietly(is);
 				}
-				if(columnsHandler != null) break;
 			}
-			return columnsHandler.columnNames;
+			if((rowsHandler != null) && (rowsHandler.getHandlerError() != null)) {
+				throw rowsHandler.getHandlerError();
+			}
 			
 		} catch(OpenXML4JException | SAXException ex) {
 			throw new FileReaderException(ex, "Error opening file");
 		} finally {
+			if(strings instanceof MappedSharedStringsTable) ((MappedSharedStringsTable)strings).close();
 			IOUtils.closeQuietly(opc);
 		}
 	}
 	
-	public HashMap<String, String> listXlsColumnNames(File file) throws IOException, FileReaderException {
+	public void readXlsRows(File file, RowHandler<RowValues> rowHandler) throws IOException, FileReaderException {
 		POIFSFileSystem pfs = null;
 		InputStream is = null;
 		
 		try {
 			pfs = new POIFSFileSystem(file);
 			is = pfs.createDocumentInputStream("Workbook");
-			XlsColumnsProcessor processor = new XlsColumnsProcessor(is, headersRow, firstDataRow, lastDataRow, sheet);
+			XlsRowsProcessor processor = new XlsRowsProcessor(is, headersRow, firstDataRow, lastDataRow, sheet, rowHandler);
 			processor.process();
-			return processor.columnNames;
+			if(processor.getHandlerError() != null) throw processor.getHandlerError();
 			
 		} finally {
 			IOUtils.closeQuietly(is);
@@ -209,12 +271,22 @@ public class ExcelFileReader extends FileRowsReader {
 	}
 	
 	public HashMap<String, Integer> listXlsxColumnIndexes(File file) throws IOException, FileReaderException {
+		return sampleXlsxColumns(file).columnIndexes;
+	}
+	
+	/**
+	 * Reads columns from the headers row in one pass: sheet parsing stops
+	 * at the end of the headers row and shared strings are parsed only up 
+	 * to the highest index referenced by it.
+	 */
+	private XlsxColumnsHandler sampleXlsxColumns(File file) throws IOException, FileReaderException {
 		OPCPackage opc = null;
+		LazySharedStringsTable strings = null;
 		
 		try {
 			opc = OPCPackage.open(file, PackageAccess.READ);
 			XSSFReader reader = new XSSFReader(opc);
-			ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(opc);
+			strings = new LazySharedStringsTable(opc);
 			StylesTable styles = reader.getStylesTable();
 			
 			XlsxColumnsHandler columnsHandler = null;
@@ -239,11 +311,12 @@ public class ExcelFileReader extends FileRowsReader {
 				}
 				if(columnsHandler != null) break;
 			}
-			return columnsHandler.columnIndexes;
+			return columnsHandler;
 			
 		} catch(OpenXML4JException | SAXException ex) {
 			throw new FileReaderException(ex, "Error opening file");
 		} finally {
+			IOUtils.closeQuietly(strings);
 			IOUtils.closeQuietly(opc);
 		}
 	}
@@ -0,0 +1,101 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+package com.sonicle.webtop.core.io.input;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import org.apache.commons.io.IOUtils;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.xml.sax.SAXException;
+
+/**
+ * Shared strings table that parses items on demand, only up to the 
+ * highest requested index. Useful when only few rows (eg. headers) are
+ * read: they usually reference the very first strings of the table.
+ * 
+ * @author malbinola
+ */
+public class LazySharedStringsTable extends ReadOnlySharedStringsTable implements Closeable {
+	private final ArrayList<String> items = new ArrayList<>();
+	private SharedStringsParser parser;
+	
+	public LazySharedStringsTable(OPCPackage pkg) throws IOException, SAXException {
+		super(pkg);
+		this.parser = SharedStringsParser.open(pkg);
+	}
+	
+	@Override
+	public void readFrom(InputStream is) throws IOException, SAXException {
+		// Strings are parsed on demand by our own parser
+		IOUtils.closeQuietly(is);
+	}
+	
+	@Override
+	public String getEntryAt(int idx) {
+		try {
+			while ((items.size() <= idx) && (parser != null)) {
+				String s = parser.next();
+				if (s == null) {
+					close();
+				} else {
+					items.add(s);
+				}
+			}
+		} catch(IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		return ((idx >= 0) && (idx < items.size())) ? items.get(idx) : null;
+	}
+	
+	@Override
+	public int getCount() {
+		return items.size();
+	}
+	
+	@Override
+	public int getUniqueCount() {
+		return items.size();
+	}
+	
+	@Override
+	public void close() {
+		if (parser != null) {
+			parser.close();
+			parser = null;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+package com.sonicle.webtop.core.io.input;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.apache.commons.io.IOUtils;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.xml.sax.SAXException;
+
+/**
+ * Shared strings table that keeps strings out of the heap.
+ * Strings are written (length-prefixed, UTF-8) into a temp file that is 
+ * then memory-mapped; only their offsets are kept on heap. 
+ * Remember to close it in order to remove the temp file.
+ * 
+ * @author malbinola
+ */
+public class MappedSharedStringsTable extends ReadOnlySharedStringsTable implements Closeable {
+	private static final long SEGMENT_SIZE = 256 * 1024 * 1024;
+	private final File file;
+	private long[] offsets = new long[1024];
+	private int count = 0;
+	private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	
+	/**
+	 * @param pkg The XLSX package.
+	 * @param tempDir Directory for the temp file, null to use the default one.
+	 * @throws IOException
+	 * @throws SAXException 
+	 */
+	public MappedSharedStringsTable(OPCPackage pkg, File tempDir) throws IOException, SAXException {
+		super(pkg);
+		this.file = File.createTempFile("sst-", ".tmp", tempDir);
+		try {
+			load(pkg);
+		} catch(IOException ex) {
+			close();
+			throw ex;
+		}
+	}
+	
+	@Override
+	public void readFrom(InputStream is) throws IOException, SAXException {
+		// Strings are loaded by our own parser, avoid keeping them on heap
+		IOUtils.closeQuietly(is);
+	}
+	
+	@Override
+	public String getEntryAt(int idx) {
+		if ((idx < 0) || (idx >= count)) return null;
+		final long offset = offsets[idx];
+		ByteBuffer buf = segments[(int)(offset / SEGMENT_SIZE)].duplicate();
+		buf.position((int)(offset % SEGMENT_SIZE));
+		byte[] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	@Override
+	public int getCount() {
+		return count;
+	}
+	
+	@Override
+	public int getUniqueCount() {
+		return count;
+	}
+	
+	@Override
+	public void close() {
+		segments = new MappedByteBuffer[0];
+		count = 0;
+		file.delete();
+	}
+	
+	private void load(OPCPackage pkg) throws IOException {
+		SharedStringsParser parser = SharedStringsParser.open(pkg);
+		if (parser == null) return;
+		
+		long size = 0;
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+			String s;
+			while ((s = parser.next()) != null) {
+				final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				final int length = 4 + bytes.length;
+				// Items never span across segments
+				final long remaining = SEGMENT_SIZE - (size % SEGMENT_SIZE);
+				if (length > remaining) {
+					for (long i=0; i<remaining; i++) dos.write(0);
+					size += remaining;
+				}
+				if (count == offsets.length) offsets = Arrays.copyOf(offsets, count * 2);
+				offsets[count++] = size;
+				dos.writeInt(bytes.length);
+				dos.write(bytes);
+				size += length;
+			}
+		} finally {
+			IOUtils.closeQuietly(dos);
+			parser.close();
+		}
+		
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			segments = new MappedByteBuffer[(int)((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+			for (int i=0; i<segments.length; i++) {
+				final long position = i * SEGMENT_SIZE;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, size - position));
+			}
+		} finally {
+			IOUtils.closeQuietly(raf);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+package com.sonicle.webtop.core.io.input;
+
+/**
+ *
+ * @author malbinola
+ */
+public class RowBatch {
+	private final int[] rows;
+	private final RowValues[] values;
+	private int size = 0;
+	
+	public RowBatch(int capacity) {
+		this.rows = new int[capacity];
+		this.values = new RowValues[capacity];
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int getRow(int index) {
+		return rows[index];
+	}
+	
+	public RowValues getValues(int index) {
+		return values[index];
+	}
+	
+	boolean isFull() {
+		return size == rows.length;
+	}
+	
+	void add(int row, RowValues source) {
+		RowValues target = values[size];
+		if (target == null) {
+			target = new RowValues();
+			values[size] = target;
+		} else {
+			target.clear();
+		}
+		target.putAll(source);
+		rows[size] = row;
+		size++;
+	}
+	
+	void reset() {
+		size = 0;
+	}
+}
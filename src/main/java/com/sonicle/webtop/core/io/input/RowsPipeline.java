@@ -0,0 +1,190 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+package com.sonicle.webtop.core.io.input;
+
+import com.sonicle.webtop.core.app.util.NamedThreadFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decouples row parsing from row handling.
+ * The reader thread, through {@link #handle(int, RowValues)}, copies rows
+ * into recycled batches that are handed to consumer threads through a 
+ * bounded queue: when consumers fall behind the reader waits. Memory is
+ * so bounded to (queueSize + threads + 1) * batchSize rows.
+ * With more than one consumer thread, batches may be handled out of order.
+ * <pre>
+ * RowsPipeline pipeline = new RowsPipeline(batchHandler, 500, 2, 4, null);
+ * try {
+ *     reader.readRows(file, pipeline);
+ * } finally {
+ *     pipeline.finish();
+ * }
+ * </pre>
+ * 
+ * @author malbinola
+ */
+public class RowsPipeline implements CopyingRowHandler<RowValues> {
+	private static final RowBatch END = new RowBatch(0);
+	private final BatchRowHandler batchHandler;
+	private final ProgressListener progressListener;
+	private final int batchSize;
+	private final int maxBatches;
+	private final ArrayBlockingQueue<RowBatch> fullBatches;
+	private final ArrayBlockingQueue<RowBatch> freeBatches;
+	private final Thread[] consumers;
+	private final AtomicLong rowsRead = new AtomicLong(0);
+	private final AtomicLong rowsHandled = new AtomicLong(0);
+	private volatile Throwable error = null;
+	private RowBatch current = null;
+	private int allocatedBatches = 0;
+	private boolean finished = false;
+	
+	/**
+	 * @param batchHandler The handler of batches.
+	 * @param batchSize Number of rows in each batch.
+	 * @param threads Number of consumer threads.
+	 * @param queueSize Max number of batches waiting to be handled.
+	 * @param progressListener Listener notified after each handled batch, may be null.
+	 */
+	public RowsPipeline(BatchRowHandler batchHandler, int batchSize, int threads, int queueSize, ProgressListener progressListener) {
+		this.batchHandler = batchHandler;
+		this.progressListener = progressListener;
+		this.batchSize = Math.max(1, batchSize);
+		this.fullBatches = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+		this.consumers = new Thread[Math.max(1, threads)];
+		this.maxBatches = fullBatches.remainingCapacity() + consumers.length + 1;
+		this.freeBatches = new ArrayBlockingQueue<>(maxBatches);
+		
+		ThreadFactory factory = new NamedThreadFactory("webtop-rows");
+		for (int i=0; i<consumers.length; i++) {
+			consumers[i] = factory.newThread(new Runnable() {
+				@Override
+				public void run() {
+					consume();
+				}
+			});
+			consumers[i].start();
+		}
+	}
+	
+	/**
+	 * Called by readers for each row: row values are copied so readers
+	 * are free to reuse their instance.
+	 */
+	@Override
+	public void handle(int row, RowValues rowBean) throws Exception {
+		if (error != null) throw new FileReaderException(error, "Row handling failed");
+		if (current == null) current = takeFreeBatch();
+		current.add(row, rowBean);
+		rowsRead.incrementAndGet();
+		if (current.isFull()) {
+			fullBatches.put(current);
+			current = null;
+		}
+	}
+	
+	/**
+	 * Hands the last partial batch to consumers and waits for them to 
+	 * complete. Must be called once, when reading is over.
+	 * @throws FileReaderException If a batch could not be handled.
+	 */
+	public void finish() throws FileReaderException {
+		if (finished) return;
+		finished = true;
+		try {
+			if ((current != null) && (current.size() > 0)) fullBatches.put(current);
+			current = null;
+			for (Thread consumer : consumers) {
+				fullBatches.put(END);
+			}
+			for (Thread consumer : consumers) {
+				consumer.join();
+			}
+		} catch(InterruptedException ex) {
+			for (Thread consumer : consumers) {
+				consumer.interrupt();
+			}
+			Thread.currentThread().interrupt();
+			throw new FileReaderException(ex, "Interrupted waiting for row handling");
+		}
+		if (error != null) throw new FileReaderException(error, "Row handling failed");
+	}
+	
+	public long getRowsRead() {
+		return rowsRead.get();
+	}
+	
+	public long getRowsHandled() {
+		return rowsHandled.get();
+	}
+	
+	private RowBatch takeFreeBatch() throws InterruptedException {
+		RowBatch batch = freeBatches.poll();
+		if (batch != null) return batch;
+		if (allocatedBatches < maxBatches) {
+			allocatedBatches++;
+			return new RowBatch(batchSize);
+		}
+		return freeBatches.take();
+	}
+	
+	private void consume() {
+		try {
+			while (true) {
+				RowBatch batch = fullBatches.take();
+				if (batch == END) break;
+				if (error == null) {
+					try {
+						batchHandler.handle(batch);
+						rowsHandled.addAndGet(batch.size());
+						if (progressListener != null) progressListener.onProgress(rowsRead.get(), rowsHandled.get());
+					} catch(Throwable t) {
+						// Keeps draining the queue, so the reader is never stuck
+						if (error == null) error = t;
+					}
+				}
+				batch.reset();
+				freeBatches.offer(batch);
+			}
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	public static interface ProgressListener {
+		public void onProgress(long rowsRead, long rowsHandled);
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+package com.sonicle.webtop.core.io.input;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.commons.io.IOUtils;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+
+/**
+ * Pull parser of the XLSX shared strings part: strings are returned one 
+ * at a time, in index order, without keeping them in memory.
+ * Phonetic runs are skipped, as ReadOnlySharedStringsTable does.
+ * 
+ * @author malbinola
+ */
+class SharedStringsParser implements Closeable {
+	private final InputStream is;
+	private final XMLStreamReader xr;
+	private final StringBuilder sb = new StringBuilder();
+	
+	private SharedStringsParser(InputStream is) throws IOException {
+		try {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			this.is = is;
+			this.xr = factory.createXMLStreamReader(is);
+		} catch(XMLStreamException ex) {
+			IOUtils.closeQuietly(is);
+			throw new IOException("Unable to parse shared strings", ex);
+		}
+	}
+	
+	/**
+	 * Opens the shared strings part of the package.
+	 * @param pkg The XLSX package.
+	 * @return The parser or null if the package has no shared strings.
+	 * @throws IOException 
+	 */
+	public static SharedStringsParser open(OPCPackage pkg) throws IOException {
+		List<PackagePart> parts = pkg.getPartsByContentType(XSSFRelation.SHARED_STRINGS.getContentType());
+		if (parts.isEmpty()) return null;
+		return new SharedStringsParser(parts.get(0).getInputStream());
+	}
+	
+	/**
+	 * Returns the next string item.
+	 * @return The string or null if there are no more items.
+	 * @throws IOException 
+	 */
+	public String next() throws IOException {
+		try {
+			boolean inItem = false, inText = false, inPhonetic = false;
+			while (xr.hasNext()) {
+				switch(xr.next()) {
+					case XMLStreamConstants.START_ELEMENT:
+						final String startName = xr.getLocalName();
+						if ("si".equals(startName)) {
+							sb.setLength(0);
+							inItem = true;
+						} else if ("rPh".equals(startName)) {
+							inPhonetic = true;
+						} else if ("t".equals(startName)) {
+							inText = inItem && !inPhonetic;
+						}
+						break;
+					case XMLStreamConstants.CHARACTERS:
+					case XMLStreamConstants.CDATA:
+					case XMLStreamConstants.SPACE:
+						if (inText) sb.append(xr.getTextCharacters(), xr.getTextStart(), xr.getTextLength());
+						break;
+					case XMLStreamConstants.END_ELEMENT:
+						final String endName = xr.getLocalName();
+						if ("t".equals(endName)) {
+							inText = false;
+						} else if ("rPh".equals(endName)) {
+							inPhonetic = false;
+						} else if ("si".equals(endName)) {
+							return sb.toString();
+						}
+						break;
+				}
+			}
+			return null;
+			
+		} catch(XMLStreamException ex) {
+			throw new IOException("Unable to parse shared strings", ex);
+		}
+	}
+	
+	@Override
+	public void close() {
+		try {
+			xr.close();
+		} catch(XMLStreamException ex) { /* Do nothing... */ }
+		IOUtils.closeQuietly(is);
+	}
+}
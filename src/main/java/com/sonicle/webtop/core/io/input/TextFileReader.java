@@ -143,6 +143,52 @@ public class TextFileReader extends FileRowsReader {
 		return hm;
 	}
 	
+	public void readRows(File file, RowHandler<RowValues> rowHandler) throws IOException, FileReaderException {
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(file);
+			readRows(fis, rowHandler);
+		} finally {
+			IOUtils.closeQuietly(fis);
+		}
+	}
+	
+	/**
+	 * Reads data rows passing them to the handler, one at a time.
+	 * Rows indexes passed to the handler are 0-based.
+	 * @param is The source stream.
+	 * @param rowHandler The row handler.
+	 * @throws IOException
+	 * @throws FileReaderException If the handler fails.
+	 */
+	public void readRows(InputStream is, RowHandler<RowValues> rowHandler) throws IOException, FileReaderException {
+		CsvListReader lr = new CsvListReader(new InputStreamReader(is, charset), pref);
+		final boolean reuse = (rowHandler instanceof CopyingRowHandler);
+		RowValues rowValues = new RowValues();
+		
+		int row;
+		List<String> line = null;
+		while((line = lr.read()) != null) {
+			row = lr.getRowNumber();
+			if(row < firstDataRow) continue;
+			if((lastDataRow != -1) && (row > lastDataRow)) break;
+			
+			if(reuse) {
+				rowValues.clear();
+			} else {
+				rowValues = new RowValues();
+			}
+			for(int i=0; i<line.size(); i++) {
+				rowValues.put(i, line.get(i));
+			}
+			try {
+				rowHandler.handle(row-1, rowValues);
+			} catch(Exception ex) {
+				throw new FileReaderException(ex, "Error handling row [" + row + "]");
+			}
+		}
+	}
+	
 	public static CsvPreference buildCsvPreference(String fieldDelimiter, String recordSeparator) {
 		return buildCsvPreference(fieldDelimiter, recordSeparator, null);
 	}
@@ -45,12 +45,21 @@ import org.apache.poi.hssf.record.Record;
 public class XlsRowsProcessor extends XlsRecordsProcessor implements HSSFListener {
 	protected final RowHandler rowHandler;
 	public RowValues rowValues;
+	protected FileReaderException handlerError = null;
 	
 	public XlsRowsProcessor(InputStream is, int headersRow, int firstDataRow, int lastDataRow, String sheetName, RowHandler rowHandler) {
 		super(is, headersRow, firstDataRow, lastDataRow, sheetName);
 		this.rowHandler = rowHandler;
 	}
 	
+	/**
+	 * Returns the error thrown by the row handler, that stopped reading.
+	 * @return The error or null if rows were all handled
+	 */
+	public FileReaderException getHandlerError() {
+		return handlerError;
+	}
+	
 	@Override
 	protected HSSFRequest createRequest() {
 		HSSFRequest request = new HSSFRequest();
@@ -62,12 +71,20 @@ public class XlsRowsProcessor extends XlsRecordsProcessor implements HSSFListene
 	public void processRecord(Record record) {
 		super.processRecord(record);
 		
-		if(isNewRow) rowValues = new RowValues();
+		if(isNewRow) {
+			// Handlers that copy values allow recycling the same instance
+			if((rowValues != null) && (rowHandler instanceof CopyingRowHandler)) {
+				rowValues.clear();
+			} else {
+				rowValues = new RowValues();
+			}
+		}
 		if(isInRange) {
 			if(isDummyEndRow) {
 				try {
 					rowHandler.handle(row, rowValues);
 				} catch(Throwable t) {
+					handlerError = new FileReaderException(t, "Error handling row [" + row + "]");
 					close();
 				}
 			} else {
@@ -59,4 +59,25 @@ public abstract class XlsxBaseHandler {
 	public void close() {
 		IOUtils.closeQuietly(is);
 	}
+	
+	/**
+	 * Returns the 0-based column index of a cell reference (eg. "AB12"),
+	 * without building a CellReference for each cell.
+	 * @param cellReference The cell reference.
+	 * @return The column index
+	 */
+	protected static int toColumnIndex(String cellReference) {
+		int col = 0;
+		for (int i=0; i<cellReference.length(); i++) {
+			final char c = cellReference.charAt(i);
+			if ((c >= 'A') && (c <= 'Z')) {
+				col = col * 26 + (c - 'A' + 1);
+			} else if ((c >= 'a') && (c <= 'z')) {
+				col = col * 26 + (c - 'a' + 1);
+			} else if (c != '$') {
+				break;
+			}
+		}
+		return col - 1;
+	}
 }
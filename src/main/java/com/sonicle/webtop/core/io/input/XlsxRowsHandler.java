@@ -34,7 +34,6 @@
 package com.sonicle.webtop.core.io.input;
 
 import java.io.InputStream;
-import org.apache.poi.ss.util.CellReference;
 import org.apache.poi.xssf.usermodel.XSSFComment;
 
 /**
@@ -44,17 +43,31 @@ import org.apache.poi.xssf.usermodel.XSSFComment;
 public class XlsxRowsHandler extends XlsxColumnsHandler {
 	protected final RowHandler rowHandler;
 	public RowValues rowValues;
+	protected FileReaderException handlerError = null;
 	
 	public XlsxRowsHandler(InputStream is, int headersRow, int firstDataRow, int lastDataRow, RowHandler rowHandler) {
 		super(is, headersRow, firstDataRow, lastDataRow);
 		this.rowHandler = rowHandler;
 	}
 	
+	/**
+	 * Returns the error thrown by the row handler, that stopped reading.
+	 * @return The error or null if rows were all handled
+	 */
+	public FileReaderException getHandlerError() {
+		return handlerError;
+	}
+	
 	@Override
 	public void startRow(int i) {
 		super.startRow(i);
 		if(isInRange) {
-			rowValues = new RowValues();
+			// Handlers that copy values allow recycling the same instance
+			if((rowValues != null) && (rowHandler instanceof CopyingRowHandler)) {
+				rowValues.clear();
+			} else {
+				rowValues = new RowValues();
+			}
 		} else {
 			if((lastDataRow != -1) && (row > lastDataRow)) close();
 		}
@@ -66,6 +79,7 @@ public class XlsxRowsHandler extends XlsxColumnsHandler {
 			try {
 				rowHandler.handle(row, rowValues);
 			} catch(Throwable t) {
+				handlerError = new FileReaderException(t, "Error handling row [" + row + "]");
 				close();
 			}
 		}
@@ -75,8 +89,7 @@ public class XlsxRowsHandler extends XlsxColumnsHandler {
 	public void cell(String cellReference, String formattedValue, XSSFComment comment) {
 		super.cell(cellReference, formattedValue, comment);
 		if(isInRange) {
-			final int col = new CellReference(cellReference).getCol();
-			rowValues.put(col, formattedValue);
+			rowValues.put(toColumnIndex(cellReference), formattedValue);
 		}
 	}
 }
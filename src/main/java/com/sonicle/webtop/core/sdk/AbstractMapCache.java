@@ -33,14 +33,18 @@
  */
 package com.sonicle.webtop.core.sdk;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
 /**
- *
+ * Simple cache backed by a map guarded by the instance lock.
+ * Consider {@link ConcurrentCache} for caches shared among many threads.
+ * 
  * @author malbinola
  * @param <K>
  * @param <V>
@@ -89,25 +93,31 @@ public abstract class AbstractMapCache<K, V> implements Cache<K, V> {
 	}
 	
 	@Override
-	public int size() {
+	public synchronized int size() {
 		return map.size();
 	}
 	
+	/**
+	 * Returns a snapshot of the keys: it is safe to iterate it outside the lock.
+	 * @return Keys copy
+	 */
 	@Override
-	public Set<K> keys() {
-		final Set<K> keys = map.keySet();
-		if (!keys.isEmpty()) {
-			return Collections.unmodifiableSet(keys);
+	public synchronized Set<K> keys() {
+		if (!map.isEmpty()) {
+			return Collections.unmodifiableSet(new HashSet<>(map.keySet()));
 		} else {
 			return Collections.emptySet();
 		}
 	}
 	
+	/**
+	 * Returns a snapshot of the values: it is safe to iterate it outside the lock.
+	 * @return Values copy
+	 */
 	@Override
-	public Collection<V> values() {
-		final Collection<V> values = map.values();
+	public synchronized Collection<V> values() {
 		if (!map.isEmpty()) {
-			return Collections.unmodifiableCollection(values);
+			return Collections.unmodifiableCollection(new ArrayList<>(map.values()));
 		} else {
 			return Collections.emptySet();
 		}
@@ -33,21 +33,35 @@
  */
 package com.sonicle.webtop.core.sdk;
 
+import com.sonicle.webtop.core.app.RunContext;
 import com.sonicle.webtop.core.model.ShareRoot;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.apache.commons.collections.map.MultiValueMap;
 
 /**
- *
+ * Base class for caches of incoming shares.
+ * Implementations fill protected structures below (that act as a staging 
+ * area, accessed only while holding the load lock) into {@link #internalInitCache()}
+ * and, optionally, into per-key loaders. Data is then published as an 
+ * immutable snapshot so that readers never need to lock.
+ * Snapshots are versioned against permissions: any sharing change makes
+ * the current one stale, and it will be reloaded on next access.
+ * Keys not found even after a (re)load are remembered for a while, until
+ * permissions change, so that unknown keys do not trigger a load each time.
+ * 
  * @author malbinola
  * @param <T>
  * @param <R>
  */
 public abstract class AbstractShareCache <T, R extends ShareRoot> {
+	private static final long MISS_TTL = 30000;
+	private static final int MAX_MISSES = 10000;
+	
 	protected boolean ready = false;
 	protected final ArrayList<R> shareRoots = new ArrayList<>();
 	protected final HashMap<UserProfileId, R> ownerToShareRoot = new HashMap<>(); // <ownerPid, shareRoot>
@@ -57,38 +71,81 @@ public abstract class AbstractShareCache <T, R extends ShareRoot> {
 	protected final HashMap<T, String> folderToShareFolder = new HashMap<>(); // <folderId, shareFolderId>
 	protected final HashMap<T, String> folderToWildcardShareFolder = new HashMap<>(); // <folderId, wildcardShareFolderId>
 	
+	private final Object loadLock = new Object();
+	private volatile Snapshot<T, R> snapshot = null;
+	// Misses survive reloads: they are tied to the permissions version they were recorded in
+	private final ConcurrentCache<UserProfileId, Long> ownerMisses = ConcurrentCache.builder()
+			.maximumSize(MAX_MISSES)
+			.expireAfterWrite(MISS_TTL)
+			.build();
+	private final ConcurrentCache<T, Long> folderMisses = ConcurrentCache.builder()
+			.maximumSize(MAX_MISSES)
+			.expireAfterWrite(MISS_TTL)
+			.build();
+	private long missesVersion = -1;
+	private boolean reloading = false;
+	
 	protected abstract void internalInitCache();
 	
-	public final synchronized void init() {
-		clear();
-		internalInitCache();
+	/**
+	 * Loads data related to the specified owner, adding it to the 
+	 * protected structures without clearing them.
+	 * Override this to avoid a full reload when an unknown owner is requested.
+	 * @param owner The owner profile.
+	 * @return False if not supported, true otherwise.
+	 */
+	protected boolean internalLoadByOwner(UserProfileId owner) {
+		return false;
 	}
 	
-	public synchronized void clear() {
-		shareRoots.clear();
-		ownerToShareRoot.clear();
-		ownerToWildcardShareFolder.clear();
-		rootShareToFolderShare.clear();
-		folderTo.clear();
-		folderToShareFolder.clear();
-		folderToWildcardShareFolder.clear();
+	/**
+	 * Loads data related to the specified folder, adding it to the 
+	 * protected structures without clearing them.
+	 * Override this to avoid a full reload when an unknown folder is requested.
+	 * @param folderId The folder ID.
+	 * @return False if not supported, true otherwise.
+	 */
+	protected boolean internalLoadByFolderId(T folderId) {
+		return false;
 	}
 	
-	public final synchronized List<R> getShareRoots() {
-		if (!ready) internalInitCache();
-		return Collections.unmodifiableList(shareRoots);
+	public final void init() {
+		synchronized(loadLock) {
+			reload();
+		}
 	}
-
-	public final synchronized R getShareRootByOwner(UserProfileId owner) {
-		if (!ready) {
-			internalInitCache();
-		} else {
-			if (!ownerToShareRoot.containsKey(owner)) {
-				clear();
-				internalInitCache();
+	
+	/**
+	 * Clears cached data. It is also called before every full reload:
+	 * override it to reset structures of subclasses too.
+	 */
+	public void clear() {
+		synchronized(loadLock) {
+			if (!reloading) {
+				// Misses survive reloads, not explicit clears
+				ownerMisses.clear();
+				folderMisses.clear();
 			}
+			snapshot = null;
+			shareRoots.clear();
+			ownerToShareRoot.clear();
+			ownerToWildcardShareFolder.clear();
+			rootShareToFolderShare.clear();
+			folderTo.clear();
+			folderToShareFolder.clear();
+			folderToWildcardShareFolder.clear();
 		}
-		return ownerToShareRoot.get(owner);
+	}
+	
+	public final List<R> getShareRoots() {
+		return current().shareRoots;
+	}
+
+	public final R getShareRootByOwner(UserProfileId owner) {
+		Snapshot<T, R> snap = current();
+		R root = snap.ownerToShareRoot.get(owner);
+		if (root != null) return root;
+		return loadOwner(snap, owner).ownerToShareRoot.get(owner);
 	}
 	
 	public final String getShareRootIdByOwner(UserProfileId owner) {
@@ -96,50 +153,151 @@ public abstract class AbstractShareCache <T, R extends ShareRoot> {
 		return (root != null) ? root.getShareId() : null;
 	}
 
-	public final synchronized String getWildcardShareFolderIdByOwner(UserProfileId owner) {
-		if (!ready) {
-			internalInitCache();
-		} else {
-			if (!ownerToWildcardShareFolder.containsKey(owner) && ownerToShareRoot.isEmpty()) {
-				clear();
-				internalInitCache();
-			}
-		}
-		return ownerToWildcardShareFolder.get(owner);
+	public final String getWildcardShareFolderIdByOwner(UserProfileId owner) {
+		Snapshot<T, R> snap = current();
+		String id = snap.ownerToWildcardShareFolder.get(owner);
+		if ((id != null) || !snap.ownerToShareRoot.isEmpty()) return id;
+		return loadOwner(snap, owner).ownerToWildcardShareFolder.get(owner);
 	}
 
-	public final synchronized String getShareFolderIdByFolderId(T folderId) {
-		if (!ready) {
-			internalInitCache();
-		} else {
-			if (!folderToShareFolder.containsKey(folderId) && !folderToWildcardShareFolder.containsKey(folderId)){
-				clear();
-				internalInitCache();
-			}
+	public final String getShareFolderIdByFolderId(T folderId) {
+		Snapshot<T, R> snap = current();
+		String id = snap.getShareFolderId(folderId);
+		if (id != null) return id;
+		return loadFolder(snap, folderId).getShareFolderId(folderId);
+	}
+	
+	public final List<T> getFolderIds() {
+		return current().folderIds;
+	}
+	
+	public final List<T> getFolderIdsByShareRoot(String shareRootId) {
+		List<T> ids = current().rootShareToFolderIds.get(shareRootId);
+		return (ids != null) ? ids : Collections.<T>emptyList();
+	}
+	
+	public final String getShareRootIdByFolderId(T folderId) {
+		return current().folderToShareRootId.get(folderId);
+	}
+	
+	private Snapshot<T, R> current() {
+		Snapshot<T, R> snap = snapshot;
+		if (isValid(snap)) return snap;
+		synchronized(loadLock) {
+			// Another thread may have completed the load while waiting
+			snap = snapshot;
+			if (isValid(snap)) return snap;
+			return reload();
 		}
-		if (folderToShareFolder.containsKey(folderId)) return folderToShareFolder.get(folderId);
-		if (folderToWildcardShareFolder.containsKey(folderId)) return folderToWildcardShareFolder.get(folderId);
-		return null;
 	}
 	
-	public final synchronized List<T> getFolderIds() {
-		if (!ready) internalInitCache();
-		return Collections.unmodifiableList(folderTo);
+	private Snapshot<T, R> loadOwner(Snapshot<T, R> seen, UserProfileId owner) {
+		if (isRecentMiss(ownerMisses, owner, seen)) return seen;
+		synchronized(loadLock) {
+			Snapshot<T, R> snap = current();
+			if (snap.ownerToShareRoot.containsKey(owner) || isRecentMiss(ownerMisses, owner, snap)) return snap;
+			snap = internalLoadByOwner(owner) ? publish() : reload();
+			if (!snap.ownerToShareRoot.containsKey(owner)) ownerMisses.put(owner, snap.version);
+			return snap;
+		}
 	}
 	
-	public final synchronized List<T> getFolderIdsByShareRoot(String shareRootId) {
-		if (!ready) internalInitCache();
-		final List<T> ids = new ArrayList<>();
-		if (rootShareToFolderShare.containsKey(shareRootId)) ids.addAll(rootShareToFolderShare.getCollection(shareRootId));
-		return Collections.unmodifiableList(ids);
+	private Snapshot<T, R> loadFolder(Snapshot<T, R> seen, T folderId) {
+		if (isRecentMiss(folderMisses, folderId, seen)) return seen;
+		synchronized(loadLock) {
+			Snapshot<T, R> snap = current();
+			if ((snap.getShareFolderId(folderId) != null) || isRecentMiss(folderMisses, folderId, snap)) return snap;
+			snap = internalLoadByFolderId(folderId) ? publish() : reload();
+			if (snap.getShareFolderId(folderId) == null) folderMisses.put(folderId, snap.version);
+			return snap;
+		}
 	}
 	
-	public final synchronized String getShareRootIdByFolderId(T folderId) {
-		if (!ready) internalInitCache();
+	private Snapshot<T, R> reload() {
+		reloading = true;
+		try {
+			clear();
+		} finally {
+			reloading = false;
+		}
+		ready = false;
+		internalInitCache();
+		return publish();
+	}
+	
+	private Snapshot<T, R> publish() {
+		Snapshot<T, R> snap = new Snapshot<>(RunContext.getPermissionsVersion(), ready);
+		if (snap.version != missesVersion) {
+			// Sharing changed: unknown keys may now be resolvable
+			ownerMisses.clear();
+			folderMisses.clear();
+			missesVersion = snap.version;
+		}
+		snap.shareRoots = Collections.unmodifiableList(new ArrayList<>(shareRoots));
+		snap.ownerToShareRoot = new HashMap<>(ownerToShareRoot);
+		snap.ownerToWildcardShareFolder = new HashMap<>(ownerToWildcardShareFolder);
+		snap.folderIds = Collections.unmodifiableList(new ArrayList<>(folderTo));
+		snap.folderToShareFolder = new HashMap<>(folderToShareFolder);
+		snap.folderToWildcardShareFolder = new HashMap<>(folderToWildcardShareFolder);
+		
+		// Builds also the reverse index folder -> root, respecting roots order
+		HashMap<String, List<T>> rootToFolders = new HashMap<>();
+		HashMap<T, String> folderToRoot = new HashMap<>();
 		for (R root : shareRoots) {
-			Collection<T> folderIds = rootShareToFolderShare.getCollection(root.getShareId());
-			if (folderIds.contains(folderId)) return root.getShareId();
+			final String rootId = root.getShareId();
+			if (rootToFolders.containsKey(rootId)) continue;
+			final List<T> folderIds = toList(rootShareToFolderShare.getCollection(rootId));
+			rootToFolders.put(rootId, folderIds);
+			for (T folderId : folderIds) {
+				if (!folderToRoot.containsKey(folderId)) folderToRoot.put(folderId, rootId);
+			}
+		}
+		for (Object key : rootShareToFolderShare.keySet()) {
+			if (!rootToFolders.containsKey((String)key)) {
+				rootToFolders.put((String)key, toList(rootShareToFolderShare.getCollection(key)));
+			}
+		}
+		snap.rootShareToFolderIds = rootToFolders;
+		snap.folderToShareRootId = folderToRoot;
+		snapshot = snap;
+		return snap;
+	}
+	
+	private boolean isValid(Snapshot<T, R> snap) {
+		return (snap != null) && snap.complete && (snap.version == RunContext.getPermissionsVersion());
+	}
+	
+	private static <K> boolean isRecentMiss(ConcurrentCache<K, Long> misses, K key, Snapshot<?, ?> snap) {
+		final Long version = misses.getIfPresent(key);
+		return (version != null) && (version == snap.version);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private List<T> toList(Collection<?> items) {
+		if (items == null) return Collections.emptyList();
+		return Collections.unmodifiableList(new ArrayList<>((Collection<T>)items));
+	}
+	
+	private static class Snapshot<T, R> {
+		public final long version;
+		public final boolean complete;
+		public List<R> shareRoots;
+		public Map<UserProfileId, R> ownerToShareRoot;
+		public Map<UserProfileId, String> ownerToWildcardShareFolder;
+		public List<T> folderIds;
+		public Map<String, List<T>> rootShareToFolderIds;
+		public Map<T, String> folderToShareFolder;
+		public Map<T, String> folderToWildcardShareFolder;
+		public Map<T, String> folderToShareRootId;
+		
+		public Snapshot(long version, boolean complete) {
+			this.version = version;
+			this.complete = complete;
+		}
+		
+		public String getShareFolderId(T folderId) {
+			final String id = folderToShareFolder.get(folderId);
+			return (id != null) ? id : folderToWildcardShareFolder.get(folderId);
 		}
-		return null;
 	}
 }
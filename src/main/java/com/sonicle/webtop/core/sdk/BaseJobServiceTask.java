@@ -34,6 +34,7 @@
 package com.sonicle.webtop.core.sdk;
 
 import com.sonicle.webtop.core.app.WebTopApp;
+import java.util.Date;
 import org.apache.shiro.subject.Subject;
 import org.apache.shiro.subject.support.SubjectThreadState;
 import org.apache.shiro.util.ThreadState;
@@ -69,6 +70,15 @@ public abstract class BaseJobServiceTask implements Job {
 		}
 	}
 	
+	/**
+	 * Returns the time at which current execution was scheduled to fire:
+	 * compare it with the actual time to know how late the execution is.
+	 * @return The scheduled fire time.
+	 */
+	public Date getScheduledFireTime() {
+		return jec.getScheduledFireTime();
+	}
+	
 	public abstract void setJobService(BaseJobService jobService);
 	
 	/**
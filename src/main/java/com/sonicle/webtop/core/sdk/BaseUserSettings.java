@@ -36,6 +36,7 @@ package com.sonicle.webtop.core.sdk;
 import com.sonicle.commons.LangUtils;
 import com.sonicle.commons.web.json.JsonResult;
 import com.sonicle.webtop.core.app.SettingsManager;
+import com.sonicle.webtop.core.app.SettingsSnapshot;
 import com.sonicle.webtop.core.app.WebTopApp;
 import com.sonicle.webtop.core.bol.OUserSetting;
 import java.util.ArrayList;
@@ -52,6 +53,7 @@ public abstract class BaseUserSettings extends BaseSettings {
 	public static final String HIDDEN_FOLDERS = "folders.hidden";
 	
 	private SettingsManager setm;
+	private SettingsSnapshot snapshot;
 	protected String serviceId;
 	protected UserProfileId profileId;
 	
@@ -65,6 +67,18 @@ public abstract class BaseUserSettings extends BaseSettings {
 		this.profileId = profileId;
 	}
 	
+	/**
+	 * Creates settings that read values from the passed snapshot, 
+	 * without querying the database for every key.
+	 * Note that setters still write-through, but the snapshot will 
+	 * not reflect changes: use it for read-mostly scenarios.
+	 * @param snapshot The snapshot to read from.
+	 */
+	public BaseUserSettings(SettingsSnapshot snapshot) {
+		this(snapshot.getServiceId(), snapshot.getProfileId());
+		this.snapshot = snapshot;
+	}
+	
 	public List<UserProfileId> getProfilesThatHave(String key, Object value) {
 		ArrayList<UserProfileId> profiles = new ArrayList<>();
 		for(OUserSetting setting : setm.getUserSettings(serviceId, key, value)) {
@@ -93,7 +107,7 @@ public abstract class BaseUserSettings extends BaseSettings {
 	
 	@Override
 	public String getSetting(String key) {
-		return setm.getUserSetting(profileId.getDomainId(), profileId.getUserId(), serviceId, key);
+		return readSetting(key);
 	}
 	
 	@Override
@@ -103,7 +117,7 @@ public abstract class BaseUserSettings extends BaseSettings {
 	
 	@Override
 	public String getString(String key, String defaultValue) {
-		return LangUtils.value(setm.getUserSetting(profileId.getDomainId(), profileId.getUserId(), serviceId, key), defaultValue);
+		return LangUtils.value(readSetting(key), defaultValue);
 	}
 	
 	@Override
@@ -113,7 +127,7 @@ public abstract class BaseUserSettings extends BaseSettings {
 	
 	@Override
 	public Boolean getBoolean(String key, Boolean defaultValue) {
-		return LangUtils.value(setm.getUserSetting(profileId.getDomainId(), profileId.getUserId(), serviceId, key), defaultValue);
+		return LangUtils.value(readSetting(key), defaultValue);
 	}
 	
 	@Override
@@ -123,7 +137,7 @@ public abstract class BaseUserSettings extends BaseSettings {
 	
 	@Override
 	public Integer getInteger(String key, Integer defaultValue) {
-		return LangUtils.value(setm.getUserSetting(profileId.getDomainId(), profileId.getUserId(), serviceId, key), defaultValue);
+		return LangUtils.value(readSetting(key), defaultValue);
 	}
 	
 	@Override
@@ -133,7 +147,7 @@ public abstract class BaseUserSettings extends BaseSettings {
 	
 	@Override
 	public Long getLong(String key, Long defaultValue) {
-		return LangUtils.value(setm.getUserSetting(profileId.getDomainId(), profileId.getUserId(), serviceId, key), defaultValue);
+		return LangUtils.value(readSetting(key), defaultValue);
 	}
 	
 	@Override
@@ -161,6 +175,11 @@ public abstract class BaseUserSettings extends BaseSettings {
 		return integers;
 	}
 	
+	private String readSetting(String key) {
+		if (snapshot != null) return snapshot.get(key);
+		return setm.getUserSetting(profileId.getDomainId(), profileId.getUserId(), serviceId, key);
+	}
+	
 	private boolean setHiddenFolders(HiddenFolders value) {
 		return setObject(HIDDEN_FOLDERS, value, HiddenFolders.class);
 	}
@@ -0,0 +1,537 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+package com.sonicle.webtop.core.sdk;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe {@link Cache} implementation, preferable to {@link AbstractMapCache}
+ * whenever a cache is shared among threads.
+ * Entries are kept in a {@link ConcurrentHashMap}: reads take no locks and 
+ * record the access time approximately (with a resolution of one second).
+ * When bounds are exceeded, a single thread at a time evicts the least 
+ * recently used entries, while the others go on without waiting. 
+ * It supports:
+ * <ul>
+ * <li>read-through loading: concurrent loads of the same key are performed once</li>
+ * <li>size or weight bounds, evicting (approximately) least recently used entries</li>
+ * <li>expiration after write and/or after last access</li>
+ * <li>snapshot iteration: {@link #keys()} and {@link #values()} return copies</li>
+ * <li>hit, miss, load, eviction and expiration statistics</li>
+ * </ul>
+ * A loaded value is not published if its key has been written, removed or 
+ * cleared while loading, so stale values never replace newer ones.
+ * Instances are created through {@link #builder()}.
+ * 
+ * @author malbinola
+ * @param <K>
+ * @param <V>
+ */
+public class ConcurrentCache<K, V> implements Cache<K, V> {
+	private static final long ACCESS_RESOLUTION = 1000;
+	
+	private final String name;
+	private final Loader<K, V> loader;
+	private final Weigher<K, V> weigher;
+	private final long maxWeight;
+	private final long expireAfterWrite;
+	private final long expireAfterAccess;
+	private final ConcurrentHashMap<K, Entry<V>> map = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<K, Loading<V>> loadings = new ConcurrentHashMap<>();
+	private final AtomicLong weight = new AtomicLong(0);
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong loadSuccesses = new AtomicLong(0);
+	private final AtomicLong loadFailures = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
+	private final AtomicLong expirations = new AtomicLong(0);
+	
+	@SuppressWarnings("unchecked")
+	private ConcurrentCache(Builder builder, Loader<K, V> loader) {
+		this.name = builder.name;
+		this.loader = loader;
+		this.weigher = (Weigher<K, V>)builder.weigher;
+		this.maxWeight = builder.maxWeight;
+		this.expireAfterWrite = builder.expireAfterWrite;
+		this.expireAfterAccess = builder.expireAfterAccess;
+	}
+	
+	public static Builder builder() {
+		return new Builder();
+	}
+	
+	/**
+	 * Returns the value associated to the key, loading it using the 
+	 * configured loader (if any) when not present.
+	 * @param key The key.
+	 * @return The value or null if not present and not loadable.
+	 */
+	@Override
+	public V get(K key) {
+		V value = getIfPresent(key);
+		if ((value != null) || (loader == null)) return value;
+		return load(key, loader);
+	}
+	
+	/**
+	 * Returns the value associated to the key, loading it using the passed 
+	 * loader when not present.
+	 * @param key The key.
+	 * @param loader Loader to use in place of the configured one.
+	 * @return The value or null if the loader returns null.
+	 */
+	public V get(K key, Loader<? super K, V> loader) {
+		V value = getIfPresent(key);
+		if (value != null) return value;
+		return load(key, loader);
+	}
+	
+	/**
+	 * Returns the value associated to the key, without loading it.
+	 * @param key The key.
+	 * @return The value or null if not present.
+	 */
+	public V getIfPresent(K key) {
+		final Entry<V> entry = map.get(key);
+		if (entry != null) {
+			final long now = System.currentTimeMillis();
+			if (!isExpired(entry, now)) {
+				// Avoids writing a shared field on every read
+				if ((now - entry.accessTime) > ACCESS_RESOLUTION) entry.accessTime = now;
+				hits.incrementAndGet();
+				return entry.value;
+			}
+			if (removeEntry(key, entry)) expirations.incrementAndGet();
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+	
+	@Override
+	public V put(K key, V value) {
+		markStale(key);
+		publish(key, value);
+		return value;
+	}
+	
+	@Override
+	public V remove(K key) {
+		markStale(key);
+		final Entry<V> entry = map.remove(key);
+		if (entry == null) return null;
+		weight.addAndGet(-entry.weight);
+		return entry.value;
+	}
+	
+	/**
+	 * Removes all entries mapped to the specified value.
+	 * @param value The value to look for.
+	 */
+	public void removeValue(V value) {
+		for (Map.Entry<K, Entry<V>> entry : map.entrySet()) {
+			final V ev = entry.getValue().value;
+			if ((ev == value) || ((value != null) && value.equals(ev))) {
+				markStale(entry.getKey());
+				removeEntry(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+	
+	@Override
+	public void clear() {
+		for (Loading<V> loading : loadings.values()) {
+			loading.stale = true;
+		}
+		for (Map.Entry<K, Entry<V>> entry : map.entrySet()) {
+			removeEntry(entry.getKey(), entry.getValue());
+		}
+	}
+	
+	/**
+	 * Returns the number of entries; expired entries not yet cleaned-up
+	 * are counted too.
+	 * @return Number of entries.
+	 */
+	@Override
+	public int size() {
+		return map.size();
+	}
+	
+	/**
+	 * Returns a snapshot of (not expired) keys.
+	 * @return Keys copy, safe to iterate.
+	 */
+	@Override
+	public Set<K> keys() {
+		final HashSet<K> keys = new HashSet<>();
+		final long now = System.currentTimeMillis();
+		for (Map.Entry<K, Entry<V>> entry : map.entrySet()) {
+			if (!isExpired(entry.getValue(), now)) keys.add(entry.getKey());
+		}
+		return Collections.unmodifiableSet(keys);
+	}
+	
+	/**
+	 * Returns a snapshot of (not expired) values.
+	 * @return Values copy, safe to iterate.
+	 */
+	@Override
+	public Collection<V> values() {
+		final ArrayList<V> values = new ArrayList<>();
+		final long now = System.currentTimeMillis();
+		for (Entry<V> entry : map.values()) {
+			if (!isExpired(entry, now)) values.add(entry.value);
+		}
+		return Collections.unmodifiableList(values);
+	}
+	
+	/**
+	 * Removes all expired entries. Expiration is otherwise performed lazily
+	 * on access and on writes.
+	 */
+	public void cleanUp() {
+		final long now = System.currentTimeMillis();
+		for (Map.Entry<K, Entry<V>> entry : map.entrySet()) {
+			if (isExpired(entry.getValue(), now) && removeEntry(entry.getKey(), entry.getValue())) {
+				expirations.incrementAndGet();
+			}
+		}
+	}
+	
+	public Stats getStats() {
+		return new Stats(hits.get(), misses.get(), loadSuccesses.get(), loadFailures.get(), evictions.get(), expirations.get());
+	}
+	
+	@Override
+	public String toString() {
+		return name + "{size=" + size() + ", " + getStats().toString() + "}";
+	}
+	
+	private V load(final K key, final Loader<? super K, V> loader) {
+		final Loading<V> loading = new Loading<>(new FutureTask<>(new Callable<V>() {
+			@Override
+			public V call() throws Exception {
+				return loader.load(key);
+			}
+		}));
+		final Loading<V> running = loadings.putIfAbsent(key, loading);
+		if (running != null) return await(key, running.task);
+		
+		try {
+			loading.task.run();
+			final V value = await(key, loading.task);
+			loadSuccesses.incrementAndGet();
+			// Values whose key changed while loading may be stale
+			if ((value != null) && !loading.stale) {
+				final Entry<V> entry = publish(key, value);
+				if ((entry != null) && loading.stale) removeEntry(key, entry);
+			}
+			return value;
+		} catch(RuntimeException ex) {
+			loadFailures.incrementAndGet();
+			throw ex;
+		} finally {
+			loadings.remove(key, loading);
+		}
+	}
+	
+	private V await(K key, FutureTask<V> task) {
+		try {
+			return task.get();
+		} catch(ExecutionException ex) {
+			throw new WTRuntimeException(ex.getCause(), "Unable to load cache entry [{0}]", key);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new WTRuntimeException(ex, "Interrupted while loading cache entry [{0}]", key);
+		}
+	}
+	
+	private void markStale(K key) {
+		final Loading<V> loading = loadings.get(key);
+		if (loading != null) loading.stale = true;
+	}
+	
+	private Entry<V> publish(K key, V value) {
+		final int ew = (weigher != null) ? Math.max(0, weigher.weigh(key, value)) : 1;
+		if ((maxWeight > 0) && (ew > maxWeight)) {
+			// Never fits: keeping it would mean evicting everything else
+			final Entry<V> old = map.remove(key);
+			if (old != null) weight.addAndGet(-old.weight);
+			return null;
+		}
+		final Entry<V> entry = new Entry<>(value, ew, System.currentTimeMillis());
+		final Entry<V> old = map.put(key, entry);
+		weight.addAndGet(ew - ((old != null) ? old.weight : 0));
+		if ((maxWeight > 0) && (weight.get() > maxWeight)) evict();
+		return entry;
+	}
+	
+	private boolean removeEntry(K key, Entry<V> entry) {
+		if (!map.remove(key, entry)) return false;
+		weight.addAndGet(-entry.weight);
+		return true;
+	}
+	
+	private void evict() {
+		// A single thread evicts at a time, others go on without waiting
+		if (!evictionLock.tryLock()) return;
+		try {
+			final long now = System.currentTimeMillis();
+			// Access times are copied: they may change while sorting
+			final ArrayList<Candidate<K, V>> candidates = new ArrayList<>(map.size());
+			for (Map.Entry<K, Entry<V>> entry : map.entrySet()) {
+				candidates.add(new Candidate<>(entry.getKey(), entry.getValue()));
+			}
+			Collections.sort(candidates, new Comparator<Candidate<K, V>>() {
+				@Override
+				public int compare(Candidate<K, V> o1, Candidate<K, V> o2) {
+					return Long.compare(o1.accessTime, o2.accessTime);
+				}
+			});
+			// Evicts down to 90% of the bound in order to amortize sorting
+			final long target = maxWeight - (maxWeight / 10);
+			final Iterator<Candidate<K, V>> it = candidates.iterator();
+			while (it.hasNext() && (weight.get() > target)) {
+				final Candidate<K, V> candidate = it.next();
+				if (removeEntry(candidate.key, candidate.entry)) {
+					if (isExpired(candidate.entry, now)) {
+						expirations.incrementAndGet();
+					} else {
+						evictions.incrementAndGet();
+					}
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+	
+	private boolean isExpired(Entry<V> entry, long now) {
+		if ((expireAfterWrite > 0) && (now - entry.writeTime >= expireAfterWrite)) return true;
+		if ((expireAfterAccess > 0) && (now - entry.accessTime >= expireAfterAccess)) return true;
+		return false;
+	}
+	
+	/**
+	 * Computes values missing from the cache.
+	 * @param <K>
+	 * @param <V>
+	 */
+	public static interface Loader<K, V> {
+		public V load(K key) throws Exception;
+	}
+	
+	/**
+	 * Computes the weight of an entry, used against the maximum weight.
+	 * @param <K>
+	 * @param <V>
+	 */
+	public static interface Weigher<K, V> {
+		public int weigh(K key, V value);
+	}
+	
+	public static class Builder {
+		private String name = "cache";
+		private long maxWeight = 0;
+		private Weigher<?, ?> weigher = null;
+		private long expireAfterWrite = 0;
+		private long expireAfterAccess = 0;
+		
+		private Builder() {}
+		
+		/**
+		 * Sets the name reported in statistics.
+		 * @param name Cache name.
+		 * @return The builder
+		 */
+		public Builder name(String name) {
+			this.name = name;
+			return this;
+		}
+		
+		/**
+		 * Bounds the number of entries.
+		 * @param maxSize Maximum number of entries, 0 means unbounded.
+		 * @return The builder
+		 */
+		public Builder maximumSize(long maxSize) {
+			this.maxWeight = maxSize;
+			this.weigher = null;
+			return this;
+		}
+		
+		/**
+		 * Bounds the total weight of entries.
+		 * @param maxWeight Maximum total weight, 0 means unbounded.
+		 * @param weigher Computes the weight of each entry.
+		 * @return The builder
+		 */
+		public Builder maximumWeight(long maxWeight, Weigher<?, ?> weigher) {
+			this.maxWeight = maxWeight;
+			this.weigher = weigher;
+			return this;
+		}
+		
+		/**
+		 * Expires entries after a fixed time since their last write.
+		 * @param millis Duration in milliseconds, 0 means never.
+		 * @return The builder
+		 */
+		public Builder expireAfterWrite(long millis) {
+			this.expireAfterWrite = millis;
+			return this;
+		}
+		
+		/**
+		 * Expires entries after a fixed time since their last access.
+		 * @param millis Duration in milliseconds, 0 means never.
+		 * @return The builder
+		 */
+		public Builder expireAfterAccess(long millis) {
+			this.expireAfterAccess = millis;
+			return this;
+		}
+		
+		public <K, V> ConcurrentCache<K, V> build() {
+			return new ConcurrentCache<>(this, null);
+		}
+		
+		public <K, V> ConcurrentCache<K, V> build(Loader<K, V> loader) {
+			return new ConcurrentCache<>(this, loader);
+		}
+	}
+	
+	public static class Stats {
+		private final long hitCount;
+		private final long missCount;
+		private final long loadSuccessCount;
+		private final long loadFailureCount;
+		private final long evictionCount;
+		private final long expirationCount;
+		
+		public Stats(long hitCount, long missCount, long loadSuccessCount, long loadFailureCount, long evictionCount, long expirationCount) {
+			this.hitCount = hitCount;
+			this.missCount = missCount;
+			this.loadSuccessCount = loadSuccessCount;
+			this.loadFailureCount = loadFailureCount;
+			this.evictionCount = evictionCount;
+			this.expirationCount = expirationCount;
+		}
+		
+		public long getHitCount() {
+			return hitCount;
+		}
+		
+		public long getMissCount() {
+			return missCount;
+		}
+		
+		public long getLoadSuccessCount() {
+			return loadSuccessCount;
+		}
+		
+		public long getLoadFailureCount() {
+			return loadFailureCount;
+		}
+		
+		public long getEvictionCount() {
+			return evictionCount;
+		}
+		
+		public long getExpirationCount() {
+			return expirationCount;
+		}
+		
+		public double getHitRate() {
+			final long requests = hitCount + missCount;
+			return (requests == 0) ? 1.0 : (double)hitCount / requests;
+		}
+		
+		@Override
+		public String toString() {
+			return "hits=" + hitCount + ", misses=" + missCount + ", loads=" + loadSuccessCount + ", loadFailures=" + loadFailureCount
+					+ ", evictions=" + evictionCount + ", expirations=" + expirationCount;
+		}
+	}
+	
+	private static class Entry<V> {
+		public final V value;
+		public final int weight;
+		public final long writeTime;
+		public volatile long accessTime;
+		
+		public Entry(V value, int weight, long now) {
+			this.value = value;
+			this.weight = weight;
+			this.writeTime = now;
+			this.accessTime = now;
+		}
+	}
+	
+	private static class Loading<V> {
+		public final FutureTask<V> task;
+		// Set when the key is written, removed or cleared while loading
+		public volatile boolean stale = false;
+		
+		public Loading(FutureTask<V> task) {
+			this.task = task;
+		}
+	}
+	
+	private static class Candidate<K, V> {
+		public final K key;
+		public final Entry<V> entry;
+		public final long accessTime;
+		
+		public Candidate(K key, Entry<V> entry) {
+			this.key = key;
+			this.entry = entry;
+			this.accessTime = entry.accessTime;
+		}
+	}
+}
@@ -37,12 +37,14 @@ import com.sonicle.commons.web.ServletUtils;
 import com.sonicle.webtop.core.app.AbstractServlet;
 import com.sonicle.webtop.core.sdk.WTException;
 import com.sonicle.webtop.core.util.LoggerUtils;
-import java.util.Arrays;
 import java.io.PrintWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
-import java.text.MessageFormat;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.io.IOUtils;
@@ -53,6 +55,8 @@ import org.apache.commons.lang3.StringUtils;
  * @author malbinola
  */
 public abstract class BaseRequest extends AbstractServlet {
+	private static final ConcurrentHashMap<Class<?>, DispatchTable> dispatchTables = new ConcurrentHashMap<>();
+	private static final Object NO_METHOD = new Object();
 	
 	protected String[] splitPath(String pathInfo) throws MalformedURLException {
 		String[] tokens = StringUtils.split(pathInfo, "/", 2);
@@ -61,59 +65,56 @@ public abstract class BaseRequest extends AbstractServlet {
 	}
 	
 	protected MethodInfo getMethod(Class clazz, String service, String action, boolean nowriter, Class<?>... args) throws WTException {
-		String methodName = null;
-		ArrayList<Class<?>> classArgs = new ArrayList<>();
-		classArgs.add(HttpServletRequest.class);
-		classArgs.add(HttpServletResponse.class);
-		
-		if(nowriter) {
-			methodName = MessageFormat.format("process{0}", action);
-		} else {
-			if(StringUtils.isEmpty(action)) {
-				action = "DefaultAction";
-				nowriter = true;
-			}
-			//action = StringUtils.isEmpty(action) ? "DefaultAction" : action;
-			methodName = MessageFormat.format("process{0}", action);
-			if(!nowriter) classArgs.add(PrintWriter.class);
+		DispatchTable table = dispatchTables.get(clazz);
+		if (table == null) {
+			table = new DispatchTable(clazz);
+			DispatchTable oldTable = dispatchTables.putIfAbsent(clazz, table);
+			if (oldTable != null) table = oldTable;
 		}
-		if(args.length > 0) classArgs.addAll(Arrays.asList(args));
 		
-		try {
-			return new MethodInfo(clazz.getMethod(methodName, classArgs.toArray(new Class<?>[classArgs.size()])), nowriter);
-			//return clazz.getMethod(methodName, classArgs.toArray(new Class<?>[classArgs.size()]));
-		} catch(NoSuchMethodException ex) {
+		if(!nowriter && StringUtils.isEmpty(action)) {
+			action = "DefaultAction";
+			nowriter = true;
+		}
+		MethodInfo methodInfo = table.lookup(action, nowriter, args);
+		if (methodInfo == null) {
 			if(nowriter) {
-				throw new WTException("Service {0} has no action with name {1} [{2}(request,response,...) not found in {3}]", service, action, methodName, clazz.getName());
+				throw new WTException("Service {0} has no action with name {1} [{2}(request,response,...) not found in {3}]", service, action, "process" + action, clazz.getName());
 			} else {
-				throw new WTException("Service {0} has no action with name {1} [{2}(request,response,out,...) not found in {3}]", service, action, methodName, clazz.getName());
+				throw new WTException("Service {0} has no action with name {1} [{2}(request,response,out,...) not found in {3}]", service, action, "process" + action, clazz.getName());
 			}
 		}
+		return methodInfo;
 	}
 	
 	protected void invokeMethod(Object instance, MethodInfo methodInfo, String service, HttpServletRequest request, HttpServletResponse response, Object... args) throws Exception {
 		PrintWriter out = null;
 		try {
 			try {
-				ArrayList<Object> invokeArgs = new ArrayList<>();
-				invokeArgs.add(request);
-				invokeArgs.add(response);
+				int fixed = methodInfo.nowriter ? 2 : 3;
+				Object[] invokeArgs = new Object[fixed + args.length];
+				invokeArgs[0] = request;
+				invokeArgs[1] = response;
 				if (!methodInfo.nowriter) {
 					ServletUtils.setJsonContentType(response);
 					ServletUtils.setCacheControlPrivateNoCache(response);
 					out = response.getWriter();
-					invokeArgs.add(out);
+					invokeArgs[2] = out;
 				}
-				if (args.length > 0) invokeArgs.addAll(Arrays.asList(args));
+				if (args.length > 0) System.arraycopy(args, 0, invokeArgs, fixed, args.length);
 				LoggerUtils.setContextDC(service);
-				methodInfo.method.invoke(instance, invokeArgs.toArray());
+				if (methodInfo.handle != null) {
+					methodInfo.handle.invokeExact(instance, invokeArgs);
+				} else {
+					methodInfo.method.invoke(instance, invokeArgs);
+				}
 				
 			} finally {
 				if(out != null) out.flush();
 				LoggerUtils.clearContextServiceDC();
 			}
-		} catch(Exception ex) {
-			throw new Exception("Error during method invocation", ex);
+		} catch(Throwable t) {
+			throw new Exception("Error during method invocation", t);
 		} finally {
 			IOUtils.closeQuietly(out);
 		}
@@ -158,12 +159,82 @@ public abstract class BaseRequest extends AbstractServlet {
 	public static class MethodInfo {
 		public Method method;
 		public boolean nowriter;
+		public MethodHandle handle;
 		
 		public MethodInfo() {};
 		
 		public MethodInfo(Method method, boolean nowriter) {
 			this.method = method;
 			this.nowriter = nowriter;
+			this.handle = toSpreadHandle(method);
+		}
+		
+		/**
+		 * Adapts the method to a (Object instance, Object[] args) signature,
+		 * ignoring any return value.
+		 * @return The handle or null if method is not accessible this way.
+		 */
+		private static MethodHandle toSpreadHandle(Method method) {
+			try {
+				MethodHandle mh = MethodHandles.publicLookup().unreflect(method);
+				int paramCount = method.getParameterTypes().length;
+				mh = mh.asType(mh.type().changeReturnType(void.class).changeParameterType(0, Object.class));
+				return mh.asSpreader(Object[].class, paramCount);
+			} catch(IllegalAccessException ex) {
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * Dispatch table of a service class: it indexes public process{Action} 
+	 * methods once and remembers, for each requested action/signature, the 
+	 * resolved method (or its absence).
+	 */
+	static class DispatchTable {
+		private static final int MAX_NEGATIVE_ENTRIES = 1000;
+		private final HashMap<String, Method> methods = new HashMap<>();
+		private final ConcurrentHashMap<String, Object> resolved = new ConcurrentHashMap<>();
+		private final AtomicInteger negatives = new AtomicInteger(0);
+		
+		public DispatchTable(Class<?> clazz) {
+			for (Method method : clazz.getMethods()) {
+				if (!method.getName().startsWith("process")) continue;
+				methods.put(signatureKey(method.getName(), method.getParameterTypes()), method);
+			}
+		}
+		
+		public MethodInfo lookup(String action, boolean nowriter, Class<?>[] args) {
+			if (action == null) return null;
+			StringBuilder sb = new StringBuilder(action.length() + 16).append(action).append(nowriter ? "|N" : "|W");
+			for (Class<?> arg : args) sb.append('|').append(arg.getName());
+			String key = sb.toString();
+			
+			Object value = resolved.get(key);
+			if (value == null) {
+				Class<?>[] paramTypes = new Class<?>[(nowriter ? 2 : 3) + args.length];
+				paramTypes[0] = HttpServletRequest.class;
+				paramTypes[1] = HttpServletResponse.class;
+				if (!nowriter) paramTypes[2] = PrintWriter.class;
+				System.arraycopy(args, 0, paramTypes, paramTypes.length - args.length, args.length);
+				
+				Method method = methods.get(signatureKey("process" + action, paramTypes));
+				if (method != null) {
+					value = new MethodInfo(method, nowriter);
+					resolved.put(key, value);
+				} else {
+					value = NO_METHOD;
+					// Actions come from the client: do not let negative entries grow forever
+					if (negatives.incrementAndGet() <= MAX_NEGATIVE_ENTRIES) resolved.put(key, value);
+				}
+			}
+			return (value == NO_METHOD) ? null : (MethodInfo)value;
+		}
+		
+		private static String signatureKey(String name, Class<?>[] paramTypes) {
+			StringBuilder sb = new StringBuilder(name);
+			for (Class<?> paramType : paramTypes) sb.append('|').append(paramType.getName());
+			return sb.toString();
 		}
 	}
 }
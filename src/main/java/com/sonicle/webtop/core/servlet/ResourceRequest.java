@@ -43,25 +43,36 @@ import com.sonicle.webtop.core.app.WT;
 import com.sonicle.webtop.core.app.WebTopApp;
 import com.sonicle.webtop.core.app.WebTopManager;
 import com.sonicle.webtop.core.app.WebTopSession;
+import com.sonicle.webtop.core.io.FileResource;
 import com.sonicle.webtop.core.io.Resource;
 import com.sonicle.webtop.core.sdk.ServiceManifest;
 import com.sonicle.webtop.core.sdk.WTRuntimeException;
+import com.sonicle.webtop.core.util.AppLocale;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -86,6 +97,13 @@ public class ResourceRequest extends HttpServlet {
 	private static final Pattern PATTERN_LAF_PATH = Pattern.compile("^laf\\/([\\w\\-\\.]+)\\/(.*)$");
 	private static final Pattern PATTERN_LOCALE_FILE = Pattern.compile("^(Locale_(\\w*)).js$");
 	private static final ConcurrentHashMap<String, Long> lastModifiedCache = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, CompiledContent> localeJsCache = new ConcurrentHashMap<>();
+	private static final int MAX_CACHED_RESOURCES = 10000;
+	private static final ConcurrentHashMap<String, Resource> resourceCache = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Object> resUrlCache = new ConcurrentHashMap<>();
+	private static final Object NO_URL = new Object();
+	private static final StaticAssetCache assetCache = new StaticAssetCache(256 * 1024, 32 * 1024 * 1024);
+	private static final long[] RANGE_NOT_SATISFIABLE = new long[0];
 	
 	@Override
 	protected void doPut(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -256,9 +274,17 @@ public class ResourceRequest extends HttpServlet {
 		}
 	}
 	
-	private URL getResURL(String name) {
-		//logger.trace("Try getting resource [{}]", name);
-		return this.getClass().getResource(name);
+	private static URL getResURL(String name) {
+		// Classpath lookups are remembered (also negative ones, like missing 
+		// debug versions): resources cannot change until the webapp is reloaded.
+		Object value = resUrlCache.get(name);
+		if (value == null) {
+			//logger.trace("Try getting resource [{}]", name);
+			URL url = ResourceRequest.class.getResource(name);
+			value = (url != null) ? url : NO_URL;
+			if (resUrlCache.size() < MAX_CACHED_RESOURCES) resUrlCache.put(name, value);
+		}
+		return (value == NO_URL) ? null : (URL)value;
 	}
 	
 	private LookupResult lookupDomainImage(HttpServletRequest request, URL targetUrl, String domainId) {
@@ -391,42 +417,8 @@ public class ResourceRequest extends HttpServlet {
 	}
 	
 	private LookupResult lookupLocaleJs(HttpServletRequest request, URL targetUrl, String serviceId) {
-		String targetPath = targetUrl.getPath();
-		URL fileUrl = null;
-		
 		try {
-			WebTopApp wta = WebTopApp.get(request);
-			String fileName = FilenameUtils.getName(targetPath);
-			String baseTargetPath = StringUtils.substringBefore(targetPath, fileName);
-			Matcher matcher = PATTERN_LOCALE_FILE.matcher(fileName);
-			if (!matcher.matches()) throw new InternalServerException();
-			String nameBase = matcher.group(1);
-			String nameLoc = matcher.group(2);
-			String[] tokens = StringUtils.split(nameLoc, "_", 2);
-			
-			// Try to get the properties file that match the requested locale...
-			// If not found, look for the basic english locale (en)
-			String[] suffixes = null;
-			if (tokens.length == 2) {
-				suffixes = new String[]{nameLoc, tokens[0], "en"};
-			} else {
-				suffixes = new String[]{nameLoc, "en"};
-			}
-			for (String suffix : suffixes) {
-				fileUrl = getResURL(baseTargetPath + "locale_" + suffix + ".properties");
-				if(fileUrl != null) break;
-			}
-			if (fileUrl == null) throw new NotFoundException();
-			
-			// Defines specific params
-			ServiceManager svcm = wta.getServiceManager();
-			ServiceManifest manifest = svcm.getManifest(serviceId);
-			String clazz = manifest.getJsPackageName() + "." + nameBase;
-			String override = manifest.getPrivateServiceJsClassName(true);
-			
-			//logger.trace("Class: {} - Override: {}", clazz, override);
-			Resource resFile = getFile(wta, fileUrl);
-			return new LocaleJsFile(clazz, override, fileUrl.toString(), ClientCaching.YES, resFile);
+			return resolveLocaleJs(WebTopApp.get(request), targetUrl.getPath(), serviceId);
 			
 		} catch (ForbiddenException ex) {
 			return new Error(HttpServletResponse.SC_FORBIDDEN, "Forbidden");
@@ -439,6 +431,66 @@ public class ResourceRequest extends HttpServlet {
 		}
 	}
 	
+	private static LocaleJsFile resolveLocaleJs(WebTopApp wta, String targetPath, String serviceId) throws ForbiddenException, NotFoundException, InternalServerException {
+		URL fileUrl = null;
+		String fileName = FilenameUtils.getName(targetPath);
+		String baseTargetPath = StringUtils.substringBefore(targetPath, fileName);
+		Matcher matcher = PATTERN_LOCALE_FILE.matcher(fileName);
+		if (!matcher.matches()) throw new InternalServerException();
+		String nameBase = matcher.group(1);
+		String nameLoc = matcher.group(2);
+		String[] tokens = StringUtils.split(nameLoc, "_", 2);
+
+		// Try to get the properties file that match the requested locale...
+		// If not found, look for the basic english locale (en)
+		String[] suffixes = null;
+		if (tokens.length == 2) {
+			suffixes = new String[]{nameLoc, tokens[0], "en"};
+		} else {
+			suffixes = new String[]{nameLoc, "en"};
+		}
+		for (String suffix : suffixes) {
+			fileUrl = getResURL(baseTargetPath + "locale_" + suffix + ".properties");
+			if(fileUrl != null) break;
+		}
+		if (fileUrl == null) throw new NotFoundException();
+
+		// Defines specific params
+		ServiceManager svcm = wta.getServiceManager();
+		ServiceManifest manifest = svcm.getManifest(serviceId);
+		String clazz = manifest.getJsPackageName() + "." + nameBase;
+		String override = manifest.getPrivateServiceJsClassName(true);
+
+		//logger.trace("Class: {} - Override: {}", clazz, override);
+		Resource resFile = getFile(wta, fileUrl);
+		return new LocaleJsFile(clazz, override, fileUrl.toString(), ClientCaching.YES, resFile);
+	}
+	
+	/**
+	 * Pre-compiles locale JS bundles of all registered services for all 
+	 * the locales supported by {@link com.sonicle.webtop.core.app.I18nManager}.
+	 * @param wta WebTopApp instance.
+	 */
+	public static void warmUpLocaleJsCache(WebTopApp wta) {
+		ServiceManager svcm = wta.getServiceManager();
+		int count = 0;
+		for (String serviceId : svcm.listRegisteredServices()) {
+			ServiceManifest manifest = svcm.getManifest(serviceId);
+			for (AppLocale appLocale : wta.getI18nManager().getLocales()) {
+				String targetPath = "/client/" + serviceId + "/" + manifest.getLocaleJsFileName(appLocale.getLocale());
+				try {
+					resolveLocaleJs(wta, targetPath, serviceId).prepareContent();
+					count++;
+				} catch(NotFoundException ex) {
+					// Service has no locale files, skip it...
+				} catch(Exception ex) {
+					logger.warn("Unable to compile locale bundle [{}]", targetPath, ex);
+				}
+			}
+		}
+		logger.debug("Locale bundles warmed-up [{}]", count);
+	}
+	
 	private LookupResult lookupLAF(HttpServletRequest request, URL targetUrl, String path, String serviceId, String subjectPath) {
 		URL fileUrl = null;
 		
@@ -478,7 +530,7 @@ public class ResourceRequest extends HttpServlet {
 		URL fileUrl = null;
 		
 		try {
-			fileUrl = this.getClass().getResource(path);
+			fileUrl = getResURL(path);
 			Resource resFile = getFile(WebTopApp.get(request), fileUrl);
 			return new StaticFile(fileUrl.toString(), getMimeType(path), clientCaching, resFile);
 			
@@ -493,10 +545,25 @@ public class ResourceRequest extends HttpServlet {
 		}
 	}
 	
-	private Resource getFile(WebTopApp wta, URL url) throws ResourceRequest.ForbiddenException, ResourceRequest.NotFoundException, ResourceRequest.InternalServerException {
-		Resource resource = null;
+	private static Resource getFile(WebTopApp wta, URL url) throws ResourceRequest.ForbiddenException, ResourceRequest.NotFoundException, ResourceRequest.InternalServerException {
 		if(url == null) throw new ResourceRequest.NotFoundException();
 		
+		// Resources are resolved only once: jar ones are immutable while file 
+		// ones are resolved again if the underlying file disappears.
+		String key = url.toString();
+		Resource resource = resourceCache.get(key);
+		if (resource != null) {
+			if (!(resource instanceof FileResource) || ((FileResource)resource).getFile().isFile()) return resource;
+			resourceCache.remove(key);
+		}
+		resource = resolveFile(wta, url);
+		if (resourceCache.size() < MAX_CACHED_RESOURCES) resourceCache.put(key, resource);
+		return resource;
+	}
+	
+	private static Resource resolveFile(WebTopApp wta, URL url) throws ResourceRequest.ForbiddenException, ResourceRequest.NotFoundException, ResourceRequest.InternalServerException {
+		Resource resource = null;
+		
 		String protocol = url.getProtocol();
 		if(protocol.equals("file")) {
 			try {
@@ -520,19 +587,19 @@ public class ResourceRequest extends HttpServlet {
 		return resource;
 	}
 	
-	public class NotFoundException extends Exception {
+	public static class NotFoundException extends Exception {
 		public NotFoundException() {
 			super();
 		}
 	}
 	
-	public class InternalServerException extends Exception {
+	public static class InternalServerException extends Exception {
 		public InternalServerException() {
 			super();
 		}
 	}
 	
-	public class ForbiddenException extends Exception {
+	public static class ForbiddenException extends Exception {
 		public ForbiddenException() {
 			super();
 		}
@@ -595,25 +662,110 @@ public class ResourceRequest extends HttpServlet {
 
 		@Override
 		public void respondGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			prepareContent();
+			ServletUtils.setContentTypeHeader(response, mimeType);
+			setCacheControlHeaders(response);
+			
+			// Small assets are served from memory, without touching the resource
+			CompiledContent cc = assetCache.get(url, resourceFile);
+			if (cc != null) {
+				cc.write(request, response);
+				return;
+			}
+			
+			long lastModified = resourceFile.getLastModified();
+			long size = resourceFile.getSize();
+			if (assetCache.isCacheable(size)) {
+				InputStream is = getInputStream();
+				try {
+					cc = new CompiledContent(IOUtils.toByteArray(is), lastModified, isCompressible(mimeType));
+				} finally {
+					IOUtils.closeQuietly(is);
+				}
+				assetCache.put(url, cc);
+				cc.write(request, response);
+				
+			} else if (size >= 0) {
+				writeLarge(request, response, lastModified, size);
+				
+			} else {
+				// Size is unknown (eg. some jar entries), simply copy the stream
+				writeStream(request, response);
+			}
+		}
+		
+		protected void writeLarge(HttpServletRequest request, HttpServletResponse response, long lastModified, long size) throws IOException {
+			final boolean compressible = isCompressible(mimeType);
+			final String tag = Long.toHexString(lastModified) + "-" + Long.toHexString(size);
+			final String etag = "\"" + tag + "\"";
+			final String gzippedEtag = compressible ? "\"" + tag + "-gz\"" : null;
+			long[] range = parseRange(request, etag, size);
+			// Ranges are always served on the identity content
+			final boolean gzip = (range == null) && compressible && acceptsGzip(request);
+			
+			response.setHeader("ETag", gzip ? gzippedEtag : etag);
+			response.setHeader("Accept-Ranges", "bytes");
+			if (compressible) response.setHeader("Vary", "Accept-Encoding");
+			if (matchesETag(request, etag, gzippedEtag)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+			
+			if (range == RANGE_NOT_SATISFIABLE) {
+				response.setHeader("Content-Range", "bytes */" + size);
+				response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return;
+			}
+			if (gzip) {
+				// Big text files: keep compressing them on the fly
+				writeStream(request, response);
+				return;
+			}
+			
+			long start = 0, length = size;
+			if (range != null) {
+				start = range[0];
+				length = range[1] - range[0] + 1;
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+			} else {
+				response.setStatus(HttpServletResponse.SC_OK);
+			}
+			response.setHeader("Content-Length", String.valueOf(length));
+			
+			OutputStream os = response.getOutputStream();
+			if (resourceFile instanceof FileResource) {
+				FileInputStream fis = null;
+				try {
+					fis = new FileInputStream(((FileResource)resourceFile).getFile());
+					FileChannel fc = fis.getChannel();
+					WritableByteChannel wbc = Channels.newChannel(os);
+					long position = start, remaining = length;
+					while (remaining > 0) {
+						long count = fc.transferTo(position, remaining, wbc);
+						if (count <= 0) break;
+						position += count;
+						remaining -= count;
+					}
+				} finally {
+					IOUtils.closeQuietly(fis);
+				}
+			} else {
+				InputStream is = getInputStream();
+				try {
+					IOUtils.copyLarge(is, os, start, length);
+				} finally {
+					IOUtils.closeQuietly(is);
+				}
+			}
+			os.flush();
+		}
+		
+		protected void writeStream(HttpServletRequest request, HttpServletResponse response) throws IOException {
 			OutputStream os = null;
 			InputStream is = null;
 			
 			try {
-				prepareContent();
-				ServletUtils.setContentTypeHeader(response, mimeType);
-				if (clientCaching.equals(ClientCaching.YES)) {
-					ServletUtils.setCacheControlPrivateMaxAge(response, 60*60*24*365); // long (365 days)
-				} else {
-					if (clientCaching.equals(ClientCaching.NO)) {
-						ServletUtils.setCacheControlPrivateNoCache(response);
-					} else {
-						if (StringUtils.startsWith(mimeType, "image") || StringUtils.startsWith(mimeType, "text/css")) {
-							ServletUtils.setCacheControlPrivateMaxAge(response, 60*60*24); // 1 day
-						} else {
-							ServletUtils.setCacheControlPrivateNoCache(response);
-						}
-					}
-				}
 				os = ServletUtils.prepareForStreamCopy(request, response, mimeType, getContentLength(), ServletUtils.GZIP_MIN_THRESHOLD);
 				is = getInputStream();
 				ServletUtils.transferStreams(is, os);
@@ -628,6 +780,22 @@ public class ResourceRequest extends HttpServlet {
 		@Override
 		public void respondHead(HttpServletRequest request, HttpServletResponse response) {}
 		
+		protected void setCacheControlHeaders(HttpServletResponse response) {
+			if (clientCaching.equals(ClientCaching.YES)) {
+				ServletUtils.setCacheControlPrivateMaxAge(response, 60*60*24*365); // long (365 days)
+			} else {
+				if (clientCaching.equals(ClientCaching.NO)) {
+					ServletUtils.setCacheControlPrivateNoCache(response);
+				} else {
+					if (StringUtils.startsWith(mimeType, "image") || StringUtils.startsWith(mimeType, "text/css")) {
+						ServletUtils.setCacheControlPrivateMaxAge(response, 60*60*24); // 1 day
+					} else {
+						ServletUtils.setCacheControlPrivateNoCache(response);
+					}
+				}
+			}
+		}
+		
 		protected void prepareContent() throws IOException {}
 		
 		protected InputStream getInputStream() throws IOException {
@@ -642,8 +810,7 @@ public class ResourceRequest extends HttpServlet {
 	public static class LocaleJsFile extends StaticFile {
 		protected String clazz;
 		protected String override;
-		protected String json = null;
-		protected int contentLength = -1;
+		protected CompiledContent compiled = null;
 		
 		public LocaleJsFile(String clazz, String override, String url, ClientCaching clientCaching, Resource resourceFile) {
 			super(url, "application/javascript", clientCaching, "utf-8", resourceFile);
@@ -651,27 +818,44 @@ public class ResourceRequest extends HttpServlet {
 			this.override = override;
 		}
 		
+		@Override
+		public void respondGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			prepareContent();
+			ServletUtils.setContentTypeHeader(response, mimeType);
+			setCacheControlHeaders(response);
+			compiled.write(request, response);
+		}
+		
 		@Override
 		protected void prepareContent() throws IOException {
-			InputStream is = resourceFile.getInputStream();
-			String strings = loadProperties(is);
-			IOUtils.closeQuietly(is);
-			is = null;
-			
-			json = buildLocaleJson(clazz, strings);
-			contentLength = json.getBytes().length;
+			// Bundles are compiled once for each properties file version
+			String key = clazz + "|" + url;
+			long lastModified = resourceFile.getLastModified();
+			CompiledContent cc = localeJsCache.get(key);
+			if ((cc == null) || (cc.lastModified != lastModified)) {
+				InputStream is = resourceFile.getInputStream();
+				String strings = null;
+				try {
+					strings = loadProperties(is);
+				} finally {
+					IOUtils.closeQuietly(is);
+				}
+				cc = new CompiledContent(buildLocaleJson(clazz, strings).getBytes(StandardCharsets.UTF_8), lastModified);
+				localeJsCache.put(key, cc);
+			}
+			compiled = cc;
 		}
 		
 		@Override
 		public InputStream getInputStream() throws IOException {
-			if(json == null) throw new WTRuntimeException("This method needs to be called after prepareContent()");
-			return IOUtils.toInputStream(json, WT.getSystemCharset());
+			if(compiled == null) throw new WTRuntimeException("This method needs to be called after prepareContent()");
+			return new ByteArrayInputStream(compiled.content);
 		}
 		
 		@Override
 		protected int getContentLength() {
-			if(contentLength == -1) throw new WTRuntimeException("This method needs to be called after prepareContent()");
-			return contentLength;
+			if(compiled == null) throw new WTRuntimeException("This method needs to be called after prepareContent()");
+			return compiled.content.length;
 		}
 		
 		private String buildLocaleJson(String clazz, String strings) {
@@ -731,6 +915,153 @@ public class ResourceRequest extends HttpServlet {
 		}
 	}
 	
+	/**
+	 * Ready-to-send content: plain and gzipped bytes, each one with its own 
+	 * strong ETag (as required for different representations).
+	 */
+	public static class CompiledContent {
+		public final byte[] content;
+		public final byte[] gzippedContent;
+		public final String etag;
+		public final String gzippedEtag;
+		public final long lastModified;
+		
+		public CompiledContent(byte[] content, long lastModified) throws IOException {
+			this(content, lastModified, true);
+		}
+		
+		public CompiledContent(byte[] content, long lastModified, boolean compress) throws IOException {
+			this.content = content;
+			this.gzippedContent = compress ? gzip(content) : null;
+			final String hash = DigestUtils.md5Hex(content);
+			this.etag = "\"" + hash + "\"";
+			this.gzippedEtag = (gzippedContent != null) ? "\"" + hash + "-gz\"" : null;
+			this.lastModified = lastModified;
+		}
+		
+		/**
+		 * Writes content on the response, choosing the gzipped variant if 
+		 * supported by the client, answering 304 if ETag matches and 
+		 * serving single byte-ranges (on the identity content) if requested.
+		 */
+		public void write(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			long[] range = parseRange(request, etag, content.length);
+			// Ranges are always served on the identity content
+			final boolean gzip = (range == null) && (gzippedContent != null) && acceptsGzip(request) && (gzippedContent.length < content.length);
+			
+			response.setHeader("ETag", gzip ? gzippedEtag : etag);
+			response.setHeader("Accept-Ranges", "bytes");
+			if (gzippedContent != null) response.setHeader("Vary", "Accept-Encoding");
+			if (matchesETag(request, etag, gzippedEtag)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+			
+			if (range == RANGE_NOT_SATISFIABLE) {
+				response.setHeader("Content-Range", "bytes */" + content.length);
+				response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return;
+			}
+			
+			OutputStream os = response.getOutputStream();
+			if (range != null) {
+				int length = (int)(range[1] - range[0] + 1);
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + content.length);
+				response.setContentLength(length);
+				os.write(content, (int)range[0], length);
+				
+			} else {
+				byte[] data = content;
+				if (gzip) {
+					response.setHeader("Content-Encoding", "gzip");
+					data = gzippedContent;
+				}
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.setContentLength(data.length);
+				os.write(data);
+			}
+			os.flush();
+		}
+		
+		private static byte[] gzip(byte[] data) throws IOException {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 3 + 64);
+			GZIPOutputStream gzos = new GZIPOutputStream(baos);
+			try {
+				gzos.write(data);
+			} finally {
+				gzos.close();
+			}
+			return baos.toByteArray();
+		}
+	}
+	
+	protected static boolean acceptsGzip(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		return (acceptEncoding != null) && StringUtils.containsIgnoreCase(acceptEncoding, "gzip");
+	}
+	
+	protected static boolean isCompressible(String mimeType) {
+		return StringUtils.startsWith(mimeType, "text/")
+				|| StringUtils.contains(mimeType, "javascript")
+				|| StringUtils.contains(mimeType, "json")
+				|| StringUtils.contains(mimeType, "xml");
+	}
+	
+	/**
+	 * Parses the Range header supporting single byte-ranges only.
+	 * @return Start/end (inclusive) positions, {@link #RANGE_NOT_SATISFIABLE} 
+	 *         or null if the whole content should be returned.
+	 */
+	protected static long[] parseRange(HttpServletRequest request, String etag, long size) {
+		String range = request.getHeader("Range");
+		if ((range == null) || !range.startsWith("bytes=")) return null;
+		String ifRange = request.getHeader("If-Range");
+		if ((ifRange != null) && !StringUtils.trim(ifRange).equals(etag)) return null;
+		
+		String spec = range.substring(6).trim();
+		if (spec.indexOf(',') != -1) return null; // Multiple ranges are not supported
+		int dash = spec.indexOf('-');
+		if (dash == -1) return null;
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			long start, end;
+			if (first.isEmpty()) {
+				// Suffix range: last N bytes
+				long suffix = Long.parseLong(last);
+				if (suffix <= 0) return RANGE_NOT_SATISFIABLE;
+				start = Math.max(0, size - suffix);
+				end = size - 1;
+			} else {
+				start = Long.parseLong(first);
+				end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+			}
+			if ((start >= size) || (start > end)) return RANGE_NOT_SATISFIABLE;
+			return new long[]{start, end};
+			
+		} catch(NumberFormatException ex) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Checks the If-None-Match header against the ETags of the available 
+	 * representations (null values are ignored).
+	 */
+	protected static boolean matchesETag(HttpServletRequest request, String... etags) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch == null) return false;
+		for (String tag : StringUtils.split(ifNoneMatch, ",")) {
+			tag = StringUtils.removeStart(StringUtils.trim(tag), "W/");
+			if (tag.equals("*")) return true;
+			for (String etag : etags) {
+				if (tag.equals(etag)) return true;
+			}
+		}
+		return false;
+	}
+	
 	public static class Error implements LookupResult {
 		protected final int statusCode;
 		protected final String message;
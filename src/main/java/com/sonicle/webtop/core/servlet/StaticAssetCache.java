@@ -0,0 +1,129 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * "Powered by Sonicle WebTop" logo. If the display of the logo is not reasonably
+ * feasible for technical reasons, the Appropriate Legal Notices must display
+ * the words "Powered by Sonicle WebTop".
+ */
+package com.sonicle.webtop.core.servlet;
+
+import com.sonicle.webtop.core.io.Resource;
+import com.sonicle.webtop.core.sdk.ConcurrentCache;
+import com.sonicle.webtop.core.servlet.ResourceRequest.CompiledContent;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache of small static assets kept as ready-to-send 
+ * byte buffers. Entries are bound to the lastModified value of the resource 
+ * they come from: it is checked again, on lookup, at most once every 
+ * {@link #CHECK_INTERVAL} ms and a stale entry is then discarded.
+ * 
+ * @author malbinola
+ */
+public class StaticAssetCache {
+	public static final long CHECK_INTERVAL = 5000;
+	private final int maxAssetSize;
+	private final ConcurrentCache<String, Asset> assets;
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	
+	public StaticAssetCache(int maxAssetSize, long maxTotalSize) {
+		this.maxAssetSize = maxAssetSize;
+		this.assets = ConcurrentCache.builder()
+				.name("static-assets")
+				.maximumWeight(maxTotalSize, new ConcurrentCache.Weigher<String, Asset>() {
+					@Override
+					public int weigh(String key, Asset value) {
+						return weight(value.content);
+					}
+				})
+				.build();
+	}
+	
+	/**
+	 * Checks if an asset of the specified size can be kept in memory.
+	 * @param size Asset size in bytes, negative if unknown.
+	 * @return True if cacheable, false otherwise.
+	 */
+	public boolean isCacheable(long size) {
+		return (size >= 0) && (size <= maxAssetSize);
+	}
+	
+	/**
+	 * Returns the cached content for the specified key.
+	 * @param key Asset key (usually the resource URL).
+	 * @param resource The resource the asset comes from, used to check freshness.
+	 * @return Cached content or null if missing or stale.
+	 */
+	public CompiledContent get(String key, Resource resource) {
+		final Asset asset = assets.getIfPresent(key);
+		if (asset == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		final long now = System.currentTimeMillis();
+		if (now - asset.checkedOn >= CHECK_INTERVAL) {
+			asset.checkedOn = now;
+			if (resource.getLastModified() != asset.content.lastModified) {
+				// Newer content is put by the caller after reloading it
+				assets.remove(key);
+				misses.incrementAndGet();
+				return null;
+			}
+		}
+		hits.incrementAndGet();
+		return asset.content;
+	}
+	
+	public void put(String key, CompiledContent content) {
+		assets.put(key, new Asset(content));
+	}
+	
+	public void clear() {
+		assets.clear();
+	}
+	
+	public String getStats() {
+		return "assets=" + assets.size() + ", hits=" + hits.get() + ", misses=" + misses.get() + ", evictions=" + assets.getStats().getEvictionCount();
+	}
+	
+	private static int weight(CompiledContent content) {
+		return content.content.length + ((content.gzippedContent != null) ? content.gzippedContent.length : 0);
+	}
+	
+	private static class Asset {
+		public final CompiledContent content;
+		public volatile long checkedOn;
+		
+		public Asset(CompiledContent content) {
+			this.content = content;
+			this.checkedOn = System.currentTimeMillis();
+		}
+	}
+}
@@ -43,13 +43,15 @@ import org.apache.commons.codec.binary.Base32;
 import org.apache.commons.lang3.StringUtils;
 
 /**
- *
+ * Identifiers and random tokens generation.
+ * Methods are not synchronized: underlying generators are thread-safe.
+ * 
  * @author malbinola
  */
 public class IdentifierUtils {
 	private static final char[] VALID_CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456879".toCharArray();
 	
-	public static synchronized String getUUID() {
+	public static String getUUID() {
 		return getUUID(false);
 	}
 	
@@ -59,30 +61,30 @@ public class IdentifierUtils {
 	 * @param noDashes
 	 * @return 
 	 */
-	public static synchronized String getUUID(boolean noDashes) {
+	public static String getUUID(boolean noDashes) {
 		String uuid = UUID.randomUUID().toString();
 		return (noDashes) ? StringUtils.replace(uuid, "-", "") : uuid;
 	}
 	
-	public static synchronized String getUUIDTimeBased() {
+	public static String getUUIDTimeBased() {
 		return getUUIDTimeBased(false);
 	}
 	
-	public static synchronized String getUUIDTimeBased(boolean noDashes) {
+	public static String getUUIDTimeBased(boolean noDashes) {
 		final String uuid = Generators.timeBasedGenerator().generate().toString();
 		return (noDashes) ? StringUtils.replace(uuid, "-", "") : uuid;
 	}
 	
-	public static synchronized String getUUIDRandom() {
+	public static String getUUIDRandom() {
 		return getUUIDRandom(false);
 	}
 	
-	public static synchronized String getUUIDRandom(boolean noDashes) {
+	public static String getUUIDRandom(boolean noDashes) {
 		final String uuid = Generators.randomBasedGenerator().generate().toString();
 		return (noDashes) ? StringUtils.replace(uuid, "-", "") : uuid;
 	}
 	
-	public static synchronized String getCRSFToken() {
+	public static String getCRSFToken() {
 		try {
 			byte[] buffer = new byte[80/8];
 			SecureRandom sr = SecureRandom.getInstance("SHA1PRNG");
@@ -95,7 +97,7 @@ public class IdentifierUtils {
 		}
 	}
 	
-	public static synchronized String generateSecretKey() {
+	public static String generateSecretKey() {
 		try {
 			byte[] buffer = new byte[80/8];
 			SecureRandom sr = SecureRandom.getInstance("SHA1PRNG");
@@ -108,7 +110,7 @@ public class IdentifierUtils {
 		}
 	}
 	
-	public static synchronized String getRandomAlphaNumericString(int length) {
+	public static String getRandomAlphaNumericString(int length) {
 		try {
 			SecureRandom sr = SecureRandom.getInstance("SHA1PRNG");
 			Random rand = new Random();
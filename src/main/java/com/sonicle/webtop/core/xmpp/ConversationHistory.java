@@ -34,44 +34,120 @@
 package com.sonicle.webtop.core.xmpp;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import org.jxmpp.jid.EntityBareJid;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- *
+ * Chats to be restored at login, along with the IDs of messages already 
+ * stored in history, used to skip messages replayed by the server.
+ * Message IDs are not loaded upfront: those of a chat are fetched through 
+ * the {@link StanzaIdsProvider} the first time they are needed, that is 
+ * when the chat receives its first replayed message after being joined.
+ * 
  * @author malbinola
  */
 public class ConversationHistory {
+	private final static Logger logger = (Logger) LoggerFactory.getLogger(ConversationHistory.class);
 	private final ArrayList<ChatRoom> chats;
-	private final HashMap<EntityBareJid, HashSet<String>> messageStanzaIds;
+	private final StanzaIdsProvider stanzaIdsProvider;
+	private final ConcurrentHashMap<EntityBareJid, StanzaIdFilter> stanzaIdFilters;
 	
 	public ConversationHistory() {
-		this.chats = new ArrayList<>();
-		this.messageStanzaIds = new HashMap<>();
+		this(null);
 	}
 	
-	public void addChat(ChatRoom chat) {
-		addChat(chat, null);
+	public ConversationHistory(StanzaIdsProvider stanzaIdsProvider) {
+		this.chats = new ArrayList<>();
+		this.stanzaIdsProvider = stanzaIdsProvider;
+		this.stanzaIdFilters = new ConcurrentHashMap<>();
 	}
 	
-	public void addChat(ChatRoom chat, List<String> stanzaIds) {
+	public void addChat(ChatRoom chat) {
 		this.chats.add(chat);
-		if (stanzaIds != null) {
-			this.messageStanzaIds.put(chat.getChatJid(), new HashSet(stanzaIds));
-		}
 	}
 	
 	public List<ChatRoom> getChats() {
 		return this.chats;
 	}
 	
-	public HashSet<String> getStanzaIds(EntityBareJid chatJid) {
-		if (messageStanzaIds.containsKey(chatJid)) {
-			return messageStanzaIds.get(chatJid);
-		} else {
+	/**
+	 * Checks if a message is already in history, loading IDs of the chat
+	 * if not done yet.
+	 * @param chatJid The chat JID.
+	 * @param stanzaId The message stanza ID.
+	 * @return True if the message is known, false otherwise.
+	 */
+	public boolean containsStanzaId(EntityBareJid chatJid, String stanzaId) {
+		if ((stanzaIdsProvider == null) || (stanzaId == null)) return false;
+		final StanzaIdFilter filter = getStanzaIdFilter(chatJid);
+		synchronized(filter) {
+			if (filter.isLoaded()) return filter.contains(stanzaId);
+		}
+		
+		// Storage is queried without holding the filter, so that a slow 
+		// query does not block other threads adding IDs to it
+		final List<String> stanzaIds = fetchStanzaIds(chatJid);
+		synchronized(filter) {
+			if (!filter.isLoaded()) {
+				filter.load(stanzaIds);
+				logger.debug("History IDs loaded [{}, {}]", chatJid, filter.size());
+			}
+			return filter.contains(stanzaId);
+		}
+	}
+	
+	/**
+	 * Records a message as being in history, so that it will be recognized
+	 * if replayed again (eg. when re-joining after a reconnection).
+	 * IDs of chats never checked are ignored: they will be fetched from 
+	 * storage when needed. Those added while a chat is being loaded are 
+	 * kept, together with the loaded ones.
+	 * @param chatJid The chat JID.
+	 * @param stanzaId The message stanza ID.
+	 */
+	public void addStanzaId(EntityBareJid chatJid, String stanzaId) {
+		if (stanzaId == null) return;
+		final StanzaIdFilter filter = stanzaIdFilters.get(chatJid);
+		if (filter != null) {
+			synchronized(filter) {
+				filter.add(stanzaId);
+			}
+		}
+	}
+	
+	private StanzaIdFilter getStanzaIdFilter(EntityBareJid chatJid) {
+		StanzaIdFilter filter = stanzaIdFilters.get(chatJid);
+		if (filter == null) {
+			final StanzaIdFilter newFilter = new StanzaIdFilter();
+			filter = stanzaIdFilters.putIfAbsent(chatJid, newFilter);
+			if (filter == null) filter = newFilter;
+		}
+		return filter;
+	}
+	
+	private List<String> fetchStanzaIds(EntityBareJid chatJid) {
+		try {
+			final long start = System.currentTimeMillis();
+			final List<String> stanzaIds = stanzaIdsProvider.listStanzaIds(chatJid);
+			if (logger.isDebugEnabled()) {
+				logger.debug("History IDs fetched [{}, {} ms]", chatJid, System.currentTimeMillis() - start);
+			}
+			return stanzaIds;
+		} catch(Throwable t) {
+			// Filter will be marked as loaded anyway: better a duplicated 
+			// message than querying storage for each replayed one
+			logger.error("Unable to load history IDs [{}]", chatJid, t);
 			return null;
 		}
 	}
+	
+	/**
+	 * Provides the IDs of messages stored in history for a chat.
+	 */
+	public static interface StanzaIdsProvider {
+		public List<String> listStanzaIds(EntityBareJid chatJid) throws Exception;
+	}
 }
@@ -0,0 +1,141 @@
+/*
+ * WebTop Services is a Web Application framework developed by Sonicle S.r.l.
+ * Copyright (C) 2014 Sonicle S.r.l.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License version 3 as published by
+ * the Free Software Foundation with the addition of the following permission
+ * added to Section 15 as permitted in Section 7(a): FOR ANY PART OF THE COVERED
+ * WORK IN WHICH THE COPYRIGHT IS OWNED BY SONICLE, SONICLE DISCLAIMS THE
+ * WARRANTY OF NON INFRINGEMENT OF THIRD PARTY RIGHTS.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses or write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301 USA.
+ *
+ * You can contact Sonicle S.r.l. at email address sonicle@sonicle.com
+ *
+ * The interactive user interfaces in modified source and object code versions
+ * of this program must display Appropriate Legal Notices, as required under
+ * Section 5 of the GNU Affero General Public License version 3.
+ *
+ * In accordance with Section 7(b) of the GNU Affero General Public License
+ * version 3, these Appropriate Legal Notices must retain the display of the
+ * Sonicle logo and Sonicle copyright notice. If the display of the logo is not
+ * reasonably feasible for technical reasons, the Appropriate Legal Notices must
+ * display the words "Copyright (C) 2014 Sonicle S.r.l.".
+ */
+package com.sonicle.webtop.core.xmpp;
+
+import java.util.Collection;
+
+/**
+ * Compact set of message stanza IDs, used to recognize messages already in
+ * history. IDs are not kept as strings: each one is reduced to a 64-bit hash
+ * stored in an open-addressing table, so an entry costs about 12 bytes
+ * instead of the 100+ taken by a String in a HashSet.
+ * Chance of a false positive (a new message recognized as known) is 
+ * negligible for the amount of messages of a single chat.
+ * This class is not thread-safe.
+ * 
+ * @author malbinola
+ */
+class StanzaIdFilter {
+	private static final long FNV64_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV64_PRIME = 0x100000001b3L;
+	private static final int MIN_CAPACITY = 16;
+	private long[] table;
+	private int size;
+	private boolean loaded = false;
+	
+	public StanzaIdFilter() {
+		this.table = new long[MIN_CAPACITY];
+		this.size = 0;
+	}
+	
+	public boolean isLoaded() {
+		return loaded;
+	}
+	
+	public void load(Collection<String> stanzaIds) {
+		if (stanzaIds != null) {
+			ensureCapacity(size + stanzaIds.size());
+			for(String stanzaId : stanzaIds) {
+				add(stanzaId);
+			}
+		}
+		loaded = true;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean contains(String stanzaId) {
+		if (stanzaId == null) return false;
+		final long hash = hash(stanzaId);
+		final int mask = table.length - 1;
+		int i = index(hash, mask);
+		while (table[i] != 0) {
+			if (table[i] == hash) return true;
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+	
+	public boolean add(String stanzaId) {
+		if (stanzaId == null) return false;
+		ensureCapacity(size + 1);
+		return insert(table, hash(stanzaId));
+	}
+	
+	private boolean insert(long[] target, long hash) {
+		final int mask = target.length - 1;
+		int i = index(hash, mask);
+		while (target[i] != 0) {
+			if (target[i] == hash) return false;
+			i = (i + 1) & mask;
+		}
+		target[i] = hash;
+		if (target == table) size++;
+		return true;
+	}
+	
+	private void ensureCapacity(int count) {
+		// Keeps load factor under 0.75
+		if ((long)count * 4 < (long)table.length * 3) return;
+		int capacity = table.length;
+		while ((long)count * 4 >= (long)capacity * 3) capacity <<= 1;
+		
+		final long[] oldTable = table;
+		final long[] newTable = new long[capacity];
+		for(long hash : oldTable) {
+			if (hash != 0) insert(newTable, hash);
+		}
+		table = newTable;
+	}
+	
+	private static int index(long hash, int mask) {
+		return (int)(hash ^ (hash >>> 32)) & mask;
+	}
+	
+	private static long hash(String s) {
+		// 64-bit FNV-1a over UTF-16 code units
+		long h = FNV64_OFFSET_BASIS;
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			h ^= (c & 0xff);
+			h *= FNV64_PRIME;
+			h ^= (c >>> 8);
+			h *= FNV64_PRIME;
+		}
+		// Zero marks empty slots
+		return (h == 0) ? 1 : h;
+	}
+}
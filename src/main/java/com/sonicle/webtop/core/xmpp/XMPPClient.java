@@ -1218,10 +1218,7 @@ public class XMPPClient {
 				final DateTime delay = retrieveDelayInformation(message);
 				if (!skipListener) {
 					if (delay != null && history != null) {
-						final HashSet<String> idsInHistory = history.getStanzaIds(getChatRoom().getChatJid());
-						if (idsInHistory != null) {
-							skipListener = idsInHistory.contains(message.getStanzaId());
-						}
+						skipListener = history.containsStanzaId(getChatRoom().getChatJid(), message.getStanzaId());
 					}
 				}
 				
@@ -1248,6 +1245,7 @@ public class XMPPClient {
 					} catch(Throwable t) {
 						logger.error("Listener error", t);
 					}
+					if (history != null) history.addStanzaId(chatRoom.getChatJid(), message.getStanzaId());
 				}
 				
 				// In groupchat the sender jid is not directly reconducible to